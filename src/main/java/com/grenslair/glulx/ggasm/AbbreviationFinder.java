@@ -0,0 +1,236 @@
+package com.grenslair.glulx.ggasm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The AbbreviationFinder chooses substrings that are worth adding to the
+ * string decoding table as string nodes. A string node lets a whole
+ * substring be written with a single Huffman code, so substrings that are
+ * both long and repeated many times give the largest savings.
+ *
+ * All the strings are joined into one sequence and indexed with a suffix
+ * array. Every group of suffixes that share a prefix (an interval of the
+ * longest-common-prefix array) gives one candidate: the shared prefix, with
+ * the number of suffixes in the group as the number of times it occurs.
+ * This finds every repeated substring in time close to linear in the total
+ * length of the strings.
+ */
+public class AbbreviationFinder {
+	/** the approximate number of bits a single character takes once compressed */
+	private static final int BITS_PER_CHAR = 6;
+	/** the longest substring considered */
+	private static final int MAX_LENGTH = 64;
+
+	private int[] text;
+	private int[] suffixes;
+	private int[] lcp;
+
+	/**
+	 * A possible abbreviation: the substring starting at a text position.
+	 */
+	private static class Candidate {
+		int start;
+		int length;
+		int count;
+		long score;
+	}
+
+	/**
+	 * Choose abbreviations for a set of strings.
+	 * @param strings  the strings that will be compressed
+	 * @param limit    the largest number of abbreviations to choose
+	 * @return the abbreviations chosen, best first
+	 */
+	public static List<String> find(Collection<String> strings, int limit) {
+		if (limit <= 0 || strings.isEmpty()) {
+			return new ArrayList<String>();
+		}
+		AbbreviationFinder finder = new AbbreviationFinder(strings);
+		return finder.choose(limit);
+	}
+
+	private AbbreviationFinder(Collection<String> strings) {
+		int length = 0;
+		for (String s : strings) {
+			length += s.codePointCount(0, s.length()) + 1;
+		}
+		// each string is followed by a separator that occurs nowhere else,
+		// so no common prefix can run from one string into the next
+		text = new int[length];
+		int pos = 0, separator = Character.MAX_CODE_POINT + 1;
+		for (String s : strings) {
+			for (int i = 0; i < s.length(); ) {
+				int cp = s.codePointAt(i);
+				text[pos++] = cp;
+				i += Character.charCount(cp);
+			}
+			text[pos++] = separator++;
+		}
+		buildSuffixArray();
+		buildLcp();
+	}
+
+	/**
+	 * Sort the suffixes of the text by prefix doubling: after each round
+	 * the suffixes are ordered by their first k characters, and the next
+	 * round sorts by pairs of those ranks to order them by 2k characters.
+	 */
+	private void buildSuffixArray() {
+		int n = text.length;
+		int[] rank = new int[n];
+		int[] sorted = text.clone();
+		Arrays.sort(sorted);
+		for (int i = 0; i < n; ++i) {
+			rank[i] = Arrays.binarySearch(sorted, text[i]) + 1;
+		}
+
+		suffixes = new int[n];
+		int[] temp = new int[n];
+		int[] newRank = new int[n];
+		int[] count = new int[n + 2];
+		for (int i = 0; i < n; ++i) {
+			suffixes[i] = i;
+		}
+		for (int k = 1; ; k <<= 1) {
+			// sort by the second rank, then stably by the first
+			countingSort(suffixes, temp, rank, k, count);
+			countingSort(temp, suffixes, rank, 0, count);
+
+			newRank[suffixes[0]] = 1;
+			for (int i = 1; i < n; ++i) {
+				int a = suffixes[i - 1], b = suffixes[i];
+				boolean same = rank[a] == rank[b] && rankAt(rank, a + k) == rankAt(rank, b + k);
+				newRank[b] = newRank[a] + (same ? 0 : 1);
+			}
+			System.arraycopy(newRank, 0, rank, 0, n);
+			if (rank[suffixes[n - 1]] == n) {
+				break;
+			}
+		}
+	}
+
+	private static int rankAt(int[] rank, int index) {
+		return index < rank.length ? rank[index] : 0;
+	}
+
+	private static void countingSort(int[] from, int[] to, int[] rank, int offset, int[] count) {
+		Arrays.fill(count, 0);
+		for (int i : from) {
+			++count[rankAt(rank, i + offset)];
+		}
+		int total = 0;
+		for (int r = 0; r < count.length; ++r) {
+			int c = count[r];
+			count[r] = total;
+			total += c;
+		}
+		for (int i : from) {
+			to[count[rankAt(rank, i + offset)]++] = i;
+		}
+	}
+
+	/**
+	 * Find the length of the common prefix of each suffix and the one sorted
+	 * before it, using Kasai's algorithm.
+	 */
+	private void buildLcp() {
+		int n = text.length;
+		int[] position = new int[n];
+		for (int i = 0; i < n; ++i) {
+			position[suffixes[i]] = i;
+		}
+		lcp = new int[n];
+		int h = 0;
+		for (int i = 0; i < n; ++i) {
+			if (position[i] > 0) {
+				int j = suffixes[position[i] - 1];
+				while (i + h < n && j + h < n && text[i + h] == text[j + h]) {
+					++h;
+				}
+				lcp[position[i]] = h;
+				if (h > 0) {
+					--h;
+				}
+			} else {
+				h = 0;
+			}
+		}
+	}
+
+	/**
+	 * Estimate how many bytes using a substring as an abbreviation would save.
+	 * Each occurrence saves all but one character's worth of bits; the
+	 * table grows by a branch node and a string node.
+	 */
+	private static long score(int length, int count) {
+		return (long)count * (length - 1) * BITS_PER_CHAR / 8 - (9 + length + 2);
+	}
+
+	private List<String> choose(int limit) {
+		// walk the lcp intervals with a stack; each interval closed gives a
+		// substring (its lcp value, capped) shared by every suffix in it
+		PriorityQueue<Candidate> best = new PriorityQueue<Candidate>(
+				(a, b) -> Long.compare(a.score, b.score));
+		int keep = limit * 4;
+		int n = text.length;
+		int[] stackLcp = new int[n + 1];
+		int[] stackLeft = new int[n + 1];
+		int top = 0;
+		for (int i = 1; i <= n; ++i) {
+			int current = i < n ? lcp[i] : 0;
+			int left = i - 1;
+			while (top > 0 && stackLcp[top - 1] > current) {
+				--top;
+				left = stackLeft[top];
+				int length = Math.min(stackLcp[top], MAX_LENGTH);
+				int count = i - left;
+				long score = score(length, count);
+				if (length >= 2 && score > 0 && (best.size() < keep || score > best.peek().score)) {
+					Candidate c = new Candidate();
+					c.start = suffixes[left];
+					c.length = length;
+					c.count = count;
+					c.score = score;
+					best.add(c);
+					if (best.size() > keep) {
+						best.poll();
+					}
+				}
+			}
+			if (current > 0 && (top == 0 || stackLcp[top - 1] < current)) {
+				stackLcp[top] = current;
+				stackLeft[top] = left;
+				++top;
+			}
+		}
+
+		Candidate[] candidates = best.toArray(new Candidate[best.size()]);
+		Arrays.sort(candidates, (a, b) -> Long.compare(b.score, a.score));
+		List<String> chosen = new ArrayList<String>();
+		List<Integer> chosenCounts = new ArrayList<Integer>();
+		for (Candidate c : candidates) {
+			if (chosen.size() >= limit) {
+				break;
+			}
+			String s = new String(text, c.start, c.length);
+			// a substring of an abbreviation already chosen is only worth
+			// adding if it also occurs often on its own
+			boolean redundant = false;
+			for (int i = 0; i < chosen.size(); ++i) {
+				if (chosen.get(i).contains(s) && c.count < chosenCounts.get(i) * 2) {
+					redundant = true;
+					break;
+				}
+			}
+			if (!redundant && !chosen.contains(s)) {
+				chosen.add(s);
+				chosenCounts.add(c.count);
+			}
+		}
+		return chosen;
+	}
+}
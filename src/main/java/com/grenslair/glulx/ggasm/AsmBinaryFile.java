@@ -0,0 +1,84 @@
+package com.grenslair.glulx.ggasm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Part of a file included as binary data. Only the name of the file and the
+ * part of it to include are kept; the bytes are read from the file straight
+ * into the game file as it is written.
+ */
+public class AsmBinaryFile extends AsmLine {
+	private String filename;
+	private long offset;
+	private int length;
+
+	/**
+	 * Include part of a file.
+	 * @param filename  the name of the file
+	 * @param offset    the position in the file of the first byte to include
+	 * @param length    the number of bytes to include
+	 */
+	public AsmBinaryFile(String filename, long offset, int length) {
+		super();
+		this.filename = filename;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Copy the included bytes through a stream writer, which transfers them
+	 * from this file to the game file without reading them onto the heap.
+	 * @param out  the writer to write to
+	 */
+	void writeTo(StreamingWriter out) throws IOException {
+		try (FileChannel in = open()) {
+			out.transfer(getPosition(), in, offset, length);
+		}
+	}
+
+	private FileChannel open() throws IOException {
+		FileChannel in = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+		if (in.size() < offset + length) {
+			in.close();
+			throw new IOException("\"" + filename + "\" has changed size since it was included");
+		}
+		return in;
+	}
+
+	@Override
+	public void buildByteCode(ByteBuffer code) {
+		ByteBuffer target = code.duplicate();
+		target.limit(code.position() + length);
+		try (FileChannel in = open()) {
+			while (target.hasRemaining()) {
+				if (in.read(target, offset + target.position() - code.position()) <= 0) {
+					throw new IOException("\"" + filename + "\" ended " + target.remaining()
+							+ " bytes early");
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		code.position(target.limit());
+	}
+	@Override
+	public int getSize() {
+		return length;
+	}
+	@Override
+	public String toString() {
+		return "[BINARY:" + filename + " " + offset + "+" + length + "]";
+	}
+}
@@ -34,11 +34,13 @@ public class AsmData extends AsmLine {
 	/**
         Create a data segment containing a string value. This will automatically
         decide whether to create a unicode or regular string.
-        @param content  the string to store in the data segment
-        @param type     the mode to save the string with
+        @param sourceFile  the file the string was declared in
+        @param sourceLine  the line the string was declared on
+        @param content     the string to store in the data segment
+        @param type        the mode to save the string with
 	 */
-	public AsmData(Token sourcePos, String content, StringType type) throws AsmException {
-		super(sourcePos);
+	public AsmData(String sourceFile, int sourceLine, String content, StringType type) throws AsmException {
+		super(sourceFile, sourceLine);
 
 		boolean needsUnicode = false;
         if (type == StringType.Unicode) {
@@ -88,6 +90,13 @@ public class AsmData extends AsmLine {
 		}
 		data = Arrays.copyOf(content, length);
 	}
+	/**
+        Return the bytes this data segment contains.
+        @return the content of the data segment
+	 */
+	public byte[] getData() {
+		return data;
+	}
 	@Override
 	public void buildByteCode(ByteBuffer code) {
 		code.put(data);
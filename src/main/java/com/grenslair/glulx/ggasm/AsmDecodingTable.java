@@ -0,0 +1,316 @@
+package com.grenslair.glulx.ggasm;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * The string decoding table used by compressed (E1) strings. This is a
+ * Huffman tree built from how often each character occurs across all the
+ * strings in the string table, so common characters take fewer bits. The
+ * tree may also contain abbreviations: string nodes that stand for a whole
+ * substring, which is then encoded with a single code wherever it occurs.
+ * The tree is written in the format described in section 1.6.1.4 of the Glulx
+ * specification, with every node address based on the position of the
+ * table in the game file.
+ */
+public class AsmDecodingTable extends AsmLine {
+	private static final int NODE_BRANCH = 0x00;
+	private static final int NODE_TERMINATOR = 0x01;
+	private static final int NODE_CHAR = 0x02;
+	private static final int NODE_STRING = 0x03;
+	private static final int NODE_UNICODE_CHAR = 0x04;
+	private static final int NODE_UNICODE_STRING = 0x05;
+
+	/**
+	 * A node of the decoding tree. Leaves hold the text they stand for, or
+	 * null for the string terminator.
+	 */
+	private static class Node {
+		int weight;
+		int order;
+		Node left;
+		Node right;
+		String text;
+		int offset;
+		long code;
+		int codeLength;
+
+		boolean isLeaf() {
+			return left == null;
+		}
+		int getSize() {
+			if (!isLeaf()) {
+				return 9;
+			}
+			return nodeSize(text);
+		}
+	}
+
+	private Node root;
+	private HashMap<String,Node> leaves;
+	private List<Node> nodes;
+	private int size;
+	private HashMap<Integer,List<String>> abbreviations;
+
+	/**
+	 * Create a decoding table suited to a set of strings.
+	 * @param strings  the strings that will be encoded with the table
+	 */
+	public AsmDecodingTable(Collection<String> strings) {
+		this(strings, new ArrayList<String>());
+	}
+	/**
+	 * Create a decoding table suited to a set of strings, including string
+	 * nodes for a list of abbreviations. Abbreviations that turn out not to
+	 * save space once the strings are encoded are left out.
+	 * @param strings        the strings that will be encoded with the table
+	 * @param abbreviations  substrings to consider adding as string nodes
+	 */
+	public AsmDecodingTable(Collection<String> strings, List<String> abbreviations) {
+		setAbbreviations(abbreviations);
+		TreeMap<String,Integer> counts = count(strings);
+		List<String> useful = new ArrayList<String>();
+		for (String a : abbreviations) {
+			int uses = counts.getOrDefault(a, 0);
+			if (uses * (a.length() - 1) * 6 / 8 > 9 + nodeSize(a)) {
+				useful.add(a);
+			}
+		}
+		if (useful.size() != abbreviations.size()) {
+			setAbbreviations(useful);
+			counts = count(strings);
+		}
+
+		leaves = new HashMap<String,Node>();
+		PriorityQueue<Node> queue = new PriorityQueue<Node>(
+				(a, b) -> a.weight != b.weight ? Integer.compare(a.weight, b.weight) : Integer.compare(a.order, b.order));
+		int order = 0;
+		Node terminator = new Node();
+		terminator.weight = strings.size();
+		terminator.order = order++;
+		queue.add(terminator);
+		for (String text : counts.keySet()) {
+			Node leaf = new Node();
+			leaf.text = text;
+			leaf.weight = counts.get(text);
+			leaf.order = order++;
+			leaves.put(text, leaf);
+			queue.add(leaf);
+		}
+		// the root has to be a branch, so a table for strings without any
+		// characters still needs a second leaf
+		if (queue.size() == 1) {
+			Node filler = new Node();
+			filler.text = " ";
+			filler.order = order++;
+			queue.add(filler);
+		}
+		while (queue.size() > 1) {
+			Node branch = new Node();
+			branch.left = queue.poll();
+			branch.right = queue.poll();
+			branch.weight = branch.left.weight + branch.right.weight;
+			branch.order = order++;
+			queue.add(branch);
+		}
+		root = queue.poll();
+		leaves.put(null, terminator);
+
+		nodes = new ArrayList<Node>();
+		size = 12;
+		addNode(root, 0, 0);
+	}
+
+	private void setAbbreviations(List<String> list) {
+		abbreviations = new HashMap<Integer,List<String>>();
+		for (String a : list) {
+			abbreviations.computeIfAbsent(a.codePointAt(0), k -> new ArrayList<String>()).add(a);
+		}
+		for (List<String> group : abbreviations.values()) {
+			group.sort((a, b) -> b.length() - a.length());
+		}
+	}
+
+	/**
+	 * Count how often each leaf of the tree is needed to encode a set of
+	 * strings. A tree map keeps the order of the leaves, and so the tree
+	 * built, the same from run to run.
+	 */
+	private TreeMap<String,Integer> count(Collection<String> strings) {
+		TreeMap<String,Integer> counts = new TreeMap<String,Integer>();
+		for (String s : strings) {
+			for (int i = 0; i < s.length(); ) {
+				String token = tokenAt(s, i);
+				counts.merge(token, 1, Integer::sum);
+				i += token.length();
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Find the text of the leaf used to encode a string at a position: the
+	 * longest abbreviation that matches there, or else the single character.
+	 */
+	private String tokenAt(String text, int index) {
+		int cp = text.codePointAt(index);
+		List<String> group = abbreviations.get(cp);
+		if (group != null) {
+			for (String a : group) {
+				if (text.startsWith(a, index)) {
+					return a;
+				}
+			}
+		}
+		return new String(Character.toChars(cp));
+	}
+
+	/**
+	 * Return the size of the leaf node for a piece of text, or for the
+	 * terminator if the text is null.
+	 */
+	private static int nodeSize(String text) {
+		if (text == null) {
+			return 1;
+		}
+		int length = text.codePointCount(0, text.length());
+		if (length == 1) {
+			return text.codePointAt(0) <= 0xFF ? 2 : 5;
+		}
+		if (isByteString(text)) {
+			return length + 2;
+		}
+		return length * 4 + 5;
+	}
+
+	/**
+	 * Can a piece of text be stored as a C string node?
+	 */
+	private static boolean isByteString(String text) {
+		for (int i = 0; i < text.length(); ++i) {
+			char c = text.charAt(i);
+			if (c == 0 || c > 0xFF) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Place a node and its children in the table and work out the bit
+	 * sequence that leads to it.
+	 */
+	private void addNode(Node node, long code, int codeLength) {
+		node.offset = size;
+		node.code = code;
+		node.codeLength = codeLength;
+		nodes.add(node);
+		size += node.getSize();
+		if (!node.isLeaf()) {
+			addNode(node.left, code, codeLength + 1);
+			addNode(node.right, code | (1L << codeLength), codeLength + 1);
+		}
+	}
+
+	/**
+	 * Encode a string as a compressed (E1) string using this table.
+	 * @param text  the string to encode
+	 * @return the encoded string
+	 */
+	public byte[] encode(String text) {
+		BitWriter out = new BitWriter();
+		for (int i = 0; i < text.length(); ) {
+			String token = tokenAt(text, i);
+			out.write(leaves.get(token));
+			i += token.length();
+		}
+		out.write(leaves.get(null));
+		return out.toByteArray();
+	}
+
+	/**
+	 * Collects the bits of a compressed string. Bits are stored starting with
+	 * the lowest bit of each byte.
+	 */
+	private static class BitWriter {
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private int current;
+		private int bitCount;
+
+		BitWriter() {
+			bytes.write(0xE1);
+		}
+		void write(Node leaf) {
+			for (int i = 0; i < leaf.codeLength; ++i) {
+				if ((leaf.code & (1L << i)) != 0) {
+					current |= 1 << bitCount;
+				}
+				++bitCount;
+				if (bitCount == 8) {
+					bytes.write(current);
+					current = 0;
+					bitCount = 0;
+				}
+			}
+		}
+		byte[] toByteArray() {
+			if (bitCount > 0) {
+				bytes.write(current);
+			}
+			return bytes.toByteArray();
+		}
+	}
+
+	@Override
+	public void buildByteCode(ByteBuffer code) {
+		int base = getPosition();
+		code.putInt(size);
+		code.putInt(nodes.size());
+		code.putInt(base + root.offset);
+		for (Node node : nodes) {
+			if (!node.isLeaf()) {
+				code.put((byte)NODE_BRANCH);
+				code.putInt(base + node.left.offset);
+				code.putInt(base + node.right.offset);
+			} else if (node.text == null) {
+				code.put((byte)NODE_TERMINATOR);
+			} else if (node.text.codePointCount(0, node.text.length()) > 1) {
+				if (isByteString(node.text)) {
+					code.put((byte)NODE_STRING);
+					for (int i = 0; i < node.text.length(); ++i) {
+						code.put((byte)node.text.charAt(i));
+					}
+					code.put((byte)0);
+				} else {
+					code.put((byte)NODE_UNICODE_STRING);
+					for (int i = 0; i < node.text.length(); ) {
+						int cp = node.text.codePointAt(i);
+						code.putInt(cp);
+						i += Character.charCount(cp);
+					}
+					code.putInt(0);
+				}
+			} else if (node.text.codePointAt(0) <= 0xFF) {
+				code.put((byte)NODE_CHAR);
+				code.put((byte)node.text.codePointAt(0));
+			} else {
+				code.put((byte)NODE_UNICODE_CHAR);
+				code.putInt(node.text.codePointAt(0));
+			}
+		}
+	}
+	@Override
+	public int getSize() {
+		return size;
+	}
+	@Override
+	public String toString() {
+		return "[DECODING TABLE: " + nodes.size() + " nodes, " + (leaves.size() - 1) + " leaves]";
+	}
+}
@@ -7,7 +7,12 @@ import java.util.List;
 public class AsmInstruction extends AsmLine {
 	public Mnemonic mnemonic;
 	public int opcode;
+	/**
+	 * The operands of this instruction. Use addOperand and setOperand to
+	 * change them, so the cached size of the instruction stays correct.
+	 */
 	public List<Operand> operands;
+	private int size = -1;
 
 	public AsmInstruction(Mnemonic mnemonic, Operand... operands) {
 		super();
@@ -15,33 +20,56 @@ public class AsmInstruction extends AsmLine {
 		this.opcode = mnemonic.opcode;
 		this.operands = new ArrayList<Operand>();
 		for (Operand op : operands) {
-			this.operands.add(op);
+			addOperand(op);
 		}
 	}
 	public void addOperand(Operand o) {
 		if (o != null) {
 			operands.add(o);
+			o.owner = this;
+			size = -1;
 		}
 	}
+	/**
+	 * Replace one of the operands of this instruction.
+	 * @param index  the position of the operand
+	 * @param o      the new operand
+	 */
+	public void setOperand(int index, Operand o) {
+		operands.set(index, o);
+		o.owner = this;
+		size = -1;
+	}
+	/**
+	 * Forget the cached size of this instruction. This is called by its
+	 * operands whenever their size or mode changes.
+	 */
+	void invalidateSize() {
+		size = -1;
+	}
 	@Override
 	public void replaceSymbols() throws AsmException {
-		for (Operand o : operands) {
+		for (int i = 0; i < operands.size(); ++i) {
+			Operand o = operands.get(i);
 			if (o.isSymbol()) {
-				if (!getObjectFile().isSymbolKnown(o.getSymbol())) {
+				int id = o.getSymbolId(getObjectFile());
+				if (!getObjectFile().isSymbolKnown(id)) {
 					throw new AsmException(getSource() + ": Undefined symbol \""+o.getSymbol()+"\"");
 				}
-				int value = getObjectFile().getSymbolValue(o.getSymbol());
-				o.setValue(value);
+				o.setValue(getObjectFile().getSymbolValue(id));
 			}
 		}
 	}
 	@Override
 	public void buildByteCode(ByteBuffer code) {
-		if (opcode <= 0x7F) {
+		switch (Mnemonic.sizeOfOpcode(opcode)) {
+		case 1:
 			code.put((byte)opcode);
-		} else if (opcode <= 0x3FFF) {
+			break;
+		case 2:
 			code.putShort((short)(opcode | 0x8000));
-		} else {
+			break;
+		default:
 			code.putInt(opcode | 0xC0000000);
 		}
 
@@ -82,34 +110,31 @@ public class AsmInstruction extends AsmLine {
 				code.putInt(value);
 				break;
 			default:
-				System.out.println("Bad operand size " + o.getSize());
+				throw new IllegalStateException("Bad operand size " + o.getSize());
 			}
 		}
 	}
 	@Override
 	public int getSize() {
-		int size = 0;
+		if (size >= 0) {
+			return size;
+		}
 
 		// opcode size
-		if (opcode <= 0x7F) {
-			size = 1;
-		} else if (opcode <= 0x3FFF) {
-			size = 2;
-		} else {
-			size = 4;
-		}
+		int newSize = Mnemonic.sizeOfOpcode(opcode);
 
 		// addressing modes size
-		size += operands.size() / 2;
+		newSize += operands.size() / 2;
 		if (operands.size() % 2 != 0) {
-			++size;
+			++newSize;
 		}
 
 		// operands size
-		for (Operand o : operands) {
-			size += o.getSize();
+		for (int i = 0; i < operands.size(); ++i) {
+			newSize += operands.get(i).getSize();
 		}
 
+		size = newSize;
 		return size;
 	}
 	@Override
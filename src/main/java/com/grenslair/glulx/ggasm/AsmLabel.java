@@ -39,9 +39,25 @@ public class AsmLabel extends AsmLine {
 	public Type getType() {
 		return type;
 	}
+	public int getLocalCount() {
+		return localCount;
+	}
 
 	@Override
 	public void buildByteCode(ByteBuffer code) {
+		writeHeader(code, type, localCount);
+	}
+	@Override
+	public int getSize() {
+		return headerSize(type, localCount);
+	}
+	/**
+	 * Write the function header a label of a given type starts with, if any.
+	 * @param code        the buffer to write to
+	 * @param type        the type of the label
+	 * @param localCount  the number of locals the function has
+	 */
+	static void writeHeader(ByteBuffer code, Type type, int localCount) {
 		if (type != Type.StackFunction && type != Type.LocalFunction) {
 			return;
 		}
@@ -64,8 +80,14 @@ public class AsmLabel extends AsmLine {
 		code.put((byte)0);
 		code.put((byte)0);
 	}
-	@Override
-	public int getSize() {
+	/**
+	 * Return the size of the function header a label of a given type starts
+	 * with.
+	 * @param type        the type of the label
+	 * @param localCount  the number of locals the function has
+	 * @return the size of the header, or 0 if the label isn't a function
+	 */
+	static int headerSize(Type type, int localCount) {
 		if (type != Type.StackFunction && type != Type.LocalFunction) {
 			return 0;
 		}
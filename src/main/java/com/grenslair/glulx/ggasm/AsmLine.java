@@ -11,9 +11,9 @@ public abstract class AsmLine {
     public AsmLine() {
         position = 0;
     }
-    public AsmLine(Token token) {
+    public AsmLine(String file, int line) {
         position = 0;
-        setSource(token);
+        setSource(file, line);
     }
     public void setObjectFile(ObjectFile owner) {
         this.owner = owner;
@@ -28,11 +28,9 @@ public abstract class AsmLine {
         return position;
     }
 
-    public void setSource(Token token) {
-        if (token != null) {
-            sourceFile = token.getFile();
-            sourceLine = token.getLine();
-        }
+    public void setSource(String file, int line) {
+        sourceFile = file;
+        sourceLine = line;
     }
     public String getSource() {
         return sourceFile+"("+sourceLine+")";
@@ -2,6 +2,7 @@ package com.grenslair.glulx.ggasm;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.List;
 
 public class AsmVarData extends AsmLine {
 
@@ -38,11 +39,23 @@ public class AsmVarData extends AsmLine {
 		}
 	}
 
+	/**
+	 * Get the fixed size of this data segment in words, or -1 if the size
+	 * depends on the number of items.
+	 * @return the fixed size of the data segment
+	 */
+	public int getItemCount() {
+	    return itemCount;
+	}
+	public List<Operand> getItems() {
+	    return items;
+	}
+
 	@Override
 	public void buildByteCode(ByteBuffer code) {
 	    for (Operand item : items) {
 	        if (item.isSymbol()) {
-	            int v = getObjectFile().getSymbolValue(item.getSymbol());
+	            int v = getObjectFile().getSymbolValue(item.getSymbolId(getObjectFile()));
 	            code.putInt(v);
 	        } else {
 	            code.putInt(item.getValue());
@@ -1,324 +1,112 @@
 package com.grenslair.glulx.ggasm;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
 public class Assemble {
     public static final int majorVersion = 0;
     public static final int minorVersion = 5;
     public static final int patchVersion = 0;
 
+    /**
+     * Every statement type the assembler understands, by name. This contains
+     * both directives and mnemonics. It is only filled in when the class is
+     * loaded, so it is the same for every build.
+     */
+    private static final Map<String, Directive> directives = new HashMap<>();
+    static {
+        addDirective("stackSize", false, Assemble::doStackSize);
+        addDirective("toROM", false, Assemble::doToRom);
+        addDirective("endROM", false, Assemble::doToRom);
+        addDirective("include", false, Assemble::doInclude);
+        addDirective("includeBinary", false, Assemble::doIncludeBinary);
+        addDirective("constant", false, Assemble::doConstant);
+
+        addDirective("function", true, (a, stmt) -> a.doFunction(stmt, AsmLabel.Type.LocalFunction));
+        addDirective("stkfunction", true, (a, stmt) -> a.doFunction(stmt, AsmLabel.Type.StackFunction));
+        addDirective("addString", true, Assemble::doAddString);
+        addDirective("string", true, (a, stmt) -> a.doString(stmt, AsmData.StringType.Automatic));
+        addDirective("basicString", true, (a, stmt) -> a.doString(stmt, AsmData.StringType.Basic));
+        addDirective("unicodeString", true, (a, stmt) -> a.doString(stmt, AsmData.StringType.Unicode));
+        addDirective("bytes", true, Assemble::doBytes);
+        addDirective("bytesFixed", true, Assemble::doBytesFixed);
+        addDirective("words", true, Assemble::doWords);
+        addDirective("wordsFixed", true, Assemble::doWordsFixed);
+        addDirective("_glk", true, Assemble::doShortcutCall);
+        addDirective("_call", true, Assemble::doShortcutCall);
+
+        for (Map.Entry<String, Mnemonic> entry : Mnemonic.list.entrySet()) {
+            Mnemonic m = entry.getValue();
+            addDirective(entry.getKey(), true, (a, stmt) -> a.parseAsmStatement(m, stmt));
+        }
+    }
+
     private ObjectFile asm;
+    private SourceLoader loader;
     private String inputFile;
     private String filePath;
-    private String fileContent;
-    private int fileLength;
-    private ArrayList<Token> tokenList;
-
-    private int lexPos;
-    private int lexerLast;
-    private int lexerLine;
-
-    private int curToken;
+    private TokenBuffer tokens;
 
     public Assemble(ObjectFile asm, String filename) throws AsmException {
-        tokenList = new ArrayList<>();
+        this(asm, filename, new SourceLoader());
+    }
+
+    /**
+     * Assemble a file, taking its tokens (and those of anything it includes)
+     * from the specified source loader.
+     *
+     * @param asm
+     *            the game file to add to
+     * @param filename
+     *            the file to assemble
+     * @param loader
+     *            the source loader for this build
+     */
+    public Assemble(ObjectFile asm, String filename, SourceLoader loader) throws AsmException {
         this.asm = asm;
+        this.loader = loader;
         this.inputFile = filename;
+        filePath = SourceLoader.directoryOf(inputFile);
 
-        try {
-            Path path = Paths.get(inputFile);
-            if (path.getParent() != null) {
-                filePath = path.getParent().toString() + "/";
-            } else {
-                filePath = "./";
-            }
-            byte[] fileBytes;
-            fileBytes = Files.readAllBytes(path);
-            fileContent = new String(fileBytes, StandardCharsets.UTF_8);
-        } catch (IOException e) {
-            throw new AsmException("IO Error: " + e.getMessage());
-        }
-        fileLength = fileContent.length();
-
+        loader.load(inputFile);
         doLex();
         doParse();
     }
 
     /**
-     * Replace escape characters within the provided text with their real
-     * versions. This will also remove any actual newlines and stray whitespace
-     * surronding them (such that would result from a multiline string).
-     * TODO update for unicode handling
+     * Add a statement type to the assembler. This may be either a directive
+     * or a mnemonic.
      *
-     * @param text
-     *            the string to replace escape codes within
-     * @return the string after escape evaluation is complete
+     * @param name
+     *            the name that starts the statement
+     * @param afterLabel
+     *            true if the statement may follow a label on the same line
+     * @param handler
+     *            the code to parse the statement
      */
-    public String doEscapes(String text) throws AsmException {
-        boolean didWhitespace = false;
-        boolean lastWasNewline = false;
-        StringBuilder sb = new StringBuilder();
-
-        for (int i = 0; i < text.length(); ++i) {
-            // check to see if we start a new line; if so, compress all the
-            // whitespace to a single space
-            if (Character.isWhitespace(text.charAt(i))) {
-                if (!didWhitespace) {
-                    int j;
-                    boolean compress = false;
-                    for (j = i; j < text.length() && Character.isWhitespace(text.charAt(j)); ++j) {
-                        if (text.charAt(j) == '\n') {
-                            compress = true;
-                        }
-                    }
-                    if (compress) {
-                        if (!lastWasNewline) {
-                            sb.append(" ");
-                        }
-                        i = j - 1;
-                        continue;
-                    } else {
-                        didWhitespace = true;
-                    }
-                }
-            } else {
-                didWhitespace = false;
-            }
-            lastWasNewline = false;
-            // handle the actual string escapes
-            if (text.charAt(i) == '\\') {
-                ++i;
-                switch (text.charAt(i)) {
-                case '0': // nothing
-                    break;
-                case '\\': // backslash
-                case '"': // quote
-                case '\'': // single quote
-                    sb.append(text.charAt(i));
-                    break;
-                case 'n': // newline
-                    sb.append('\n');
-                    lastWasNewline = true;
-                    break;
-                case 'r': // return
-                    sb.append('\r');
-                    break;
-                case 't': // tab
-                    sb.append('\t');
-                    break;
-                case 'x': // character by hex code
-                    ++i;
-                    if (i >= text.length() || !isHexDigit(text.charAt(i))) {
-                        throw new AsmException(inputFile + "(" + lexerLine + "): Unexpected end of escape in \\xXX");
-                    }
-                    int start = i;
-                    while (i < text.length() && isHexDigit(text.charAt(i))) {
-                        ++i;
-                    }
-                    int v = Integer.parseInt(text.substring(start, i), 16);
-                    System.err.println(v);
-                    sb.appendCodePoint(v);
-                    --i;
-                    break;
-                default: // unknown
-                    throw new AsmException(inputFile + "(" + lexerLine + "): Unknown character escape \\" + text.charAt(i));
-                }
-            } else {
-                sb.append(text.charAt(i));
-            }
-        }
-        return sb.toString();
+    private static void addDirective(String name, boolean afterLabel, Directive.Handler handler) {
+        directives.put(name, new Directive(name, afterLabel, handler));
     }
 
     /**
-     * Parse one line from an assembly input file and return a list of tokens
-     * representing the content.
+     * Return the game file this assembler is adding to.
+     *
+     * @return the game file
      */
-    public void doLex() throws AsmException {
-        if (fileContent.isEmpty()) {
-            return;
-        }
-
-        lexPos = 0;
-        lexerLine = 1;
-        int start = 0, end;
-        while (lexChar() != 0) {
-
-            // parse end of statement
-            if (lexChar() == '\n') {
-                lexNext();
-                tokenList.add(new Token(inputFile, lexerLine, Token.Type.End));
-                continue;
-            }
-
-            if (Character.isWhitespace(lexChar())) {
-                while (lexChar() != '\n' && Character.isWhitespace(lexChar())) {
-                    lexNext();
-                }
-                continue;
-            }
-
-            // end-of-line comment
-            if (lexChar() == ';' || (lexChar() == '/' && lexPeek() == '/')) {
-                tokenList.add(new Token(inputFile, lexerLine, "", Token.Type.End));
-                while (lexChar() != 0 && lexChar() != '\n') {
-                    lexNext();
-                }
-                continue;
-            }
-            // block comments
-            if (lexChar() == '/' && lexPeek() == '*') {
-                lexNext();
-                lexNext();
-                while (lexChar() != 0 && (lexChar() != '*' || lexPeek() != '/')) {
-                    lexNext();
-                }
-                if (lexChar() == 0) {
-                    throw new AsmException(inputFile + "(" + lexerLine + "): Unterminated block comment.");
-                }
-                lexNext();
-                lexNext();
-                continue;
-            }
-
-            // parse character constants
-            if (lexChar() == '\'') {
-                lexNext();
-                start = lexPos;
-                while (lexChar() != 0 && (lexChar() != '\'' || lexPrev() == '\\')) {
-                    lexNext();
-                }
-                if (lexChar() == 0) {
-                    throw new AsmException(inputFile + "(" + lexerLine + "): Unterminated character constant.");
-                }
-                end = lexPos;
-                lexNext();
-                String text = fileContent.substring(start, end);
-                text = doEscapes(text);
-
-                if (text.length() == 0) {
-                    throw new AsmException(inputFile + "(" + lexerLine + "): empty character constant.");
-                }
-                if (text.length() > 1) {
-                    throw new AsmException(inputFile + "(" + lexerLine + "): character constant has multiple characters.");
-                }
-                tokenList.add(new Token(inputFile, lexerLine, text.codePointAt(0)));
-                continue;
-            }
-
-            // parse strings
-            if (lexChar() == '"') {
-                lexNext();
-                start = lexPos;
-                while (lexChar() != 0 && (lexChar() != '"' || lexPrev() == '\\')) {
-                    lexNext();
-                }
-                if (lexChar() == 0) {
-                    throw new AsmException(inputFile + "(" + lexerLine + "): Unterminated string.");
-                }
-                end = lexPos;
-                lexNext();
-                String text = fileContent.substring(start, end);
-                text = doEscapes(text);
-
-                tokenList.add(new Token(inputFile, lexerLine, text, Token.Type.String));
-
-                // parse decimal numbers
-            } else if (lexChar() == '-' || Character.isDigit(lexChar())) {
-                start = lexPos;
-                boolean parseFloat = false;
-                lexNext();
-                while (Character.isDigit(lexChar()) || lexChar() == '.') {
-                    if (lexChar() == '.') {
-                        parseFloat = true;
-                    }
-                    lexNext();
-                }
-                String unparsedNumber = fileContent.substring(start, lexPos);
-                if (parseFloat) {
-                    tokenList.add(new Token(inputFile, lexerLine, Float.parseFloat(unparsedNumber)));
-                } else {
-                    if (unparsedNumber.codePointAt(0) == '-') {
-                        tokenList.add(new Token(inputFile, lexerLine, Integer.parseInt(unparsedNumber, 10)));
-                    } else {
-                        tokenList.add(new Token(inputFile, lexerLine, Integer.parseUnsignedInt(unparsedNumber, 10)));
-                    }
-                }
-
-                // parse hex numbers
-            } else if (lexChar() == '$') {
-                lexNext();
-                start = lexPos;
-                while (isHexDigit(lexChar())) {
-                    lexNext();
-                }
-                tokenList.add(new Token(inputFile, lexerLine, Integer.parseUnsignedInt(fileContent.substring(start, lexPos), 16)));
-
-                // parse identifiers
-            } else if (isIdentifier(lexChar(), true)) {
-                start = lexPos;
-                lexNext();
-                while (isIdentifier(lexChar(), false)) {
-                    lexNext();
-                }
-                if (lexChar() == ':') {
-                    lexNext();
-                }
-                end = lexPos;
-                String text = fileContent.substring(start, end);
-                tokenList.add(new Token(inputFile, lexerLine, text, Token.Type.Identifier));
-
-            } else {
-                // unknown
-                throw new AsmException(
-                        inputFile + "(" + lexerLine + "): Lexer: unexpected " + new String(Character.toChars(lexChar())) + " (" + lexChar() + ")");
-            }
-        }
-        tokenList.add(new Token(inputFile, lexerLine, "", Token.Type.End));
+    public ObjectFile getObjectFile() {
+        return asm;
     }
 
     /**
-     * Return the value of the next character from the file. This will advance
-     * the lexer position to the next value.
-     *
-     * @return the next character
+     * Get the lexed content of the input file from the source loader, waiting
+     * for it if it has not been lexed yet.
      */
-    private int lexNext() {
-        int here = lexChar();
-        if (here != 0) {
-            if (here == '\n') {
-                ++lexerLine;
-            }
-            lexerLast = here;
-            lexPos += Character.charCount(here);
-        }
-        return lexChar();
-    }
-
-    private int lexChar() {
-        if (lexPos < fileLength) {
-            return fileContent.codePointAt(lexPos);
-        } else {
-            return 0;
-        }
-    }
-
-    private int lexPrev() {
-        return lexerLast;
-    }
-
-    private int lexPeek() {
-        int tmpPos = lexPos + Character.charCount(lexChar());
-        if (tmpPos < fileLength) {
-            return fileContent.codePointAt(tmpPos);
-        }
-        return 0;
+    public void doLex() throws AsmException {
+        tokens = loader.getTokens(inputFile);
     }
 
     /**
@@ -332,10 +120,7 @@ public class Assemble {
      * @return true if the character is valid, false otherwise
      */
     static public boolean isIdentifier(int what, boolean initialChar) {
-        if (initialChar) {
-            return (Character.isAlphabetic(what) || what == '*' || what == '#' || what == '_');
-        }
-        return (Character.isAlphabetic(what) || Character.isDigit(what) || what == '_');
+        return Lexer.isIdentifier(what, initialChar);
     }
 
     /**
@@ -347,14 +132,7 @@ public class Assemble {
      *         otherwise
      */
     static public boolean isHexDigit(int what) {
-        if (Character.isDigit(what)) {
-            return true;
-        }
-        int lower = Character.toLowerCase(what);
-        if (lower >= 'a' && lower <= 'f') {
-            return true;
-        }
-        return false;
+        return Lexer.isHexDigit(what);
     }
 
     /**
@@ -362,7 +140,8 @@ public class Assemble {
      * throw an error if not.
      *
      * @param parts
-     *            A List of the actual tokens received
+     *            A cursor on the statement containing the actual tokens
+     *            received
      * @param matchLength
      *            Should we make sure the length matches?
      * @param forWhat
@@ -371,15 +150,15 @@ public class Assemble {
      * @param types
      *            The types expected to be found
      */
-    static public void lineMatches(List<Token> parts, boolean matchLength, Token.Type... types) throws AsmException {
+    static public void lineMatches(TokenCursor parts, boolean matchLength, Token.Type... types) throws AsmException {
         if (matchLength && parts.size() != types.length + 1) {
-            throw new AsmException(parts.get(0).getSource() + ": Bad operand count for " + parts.get(0).getStringValue() + " expected " + types.length
+            throw new AsmException(parts.getSource(0) + ": Bad operand count for " + parts.getStringValue(0) + " expected " + types.length
                     + ", but found " + (parts.size() - 1) + ".");
         }
         for (int i = 0; i < parts.size() && i < types.length; ++i) {
-            if (!parts.get(i + 1).isType(types[i])) {
-                throw new AsmException(parts.get(0).getSource() + ": Operand " + i + " is " + parts.get(i + 1).getType() + ", but " + types[i]
-                        + " was expected for " + parts.get(0).getStringValue() + ".");
+            if (!parts.isType(i + 1, types[i])) {
+                throw new AsmException(parts.getSource(0) + ": Operand " + i + " is " + parts.getType(i + 1) + ", but " + types[i]
+                        + " was expected for " + parts.getStringValue(0) + ".");
             }
         }
     }
@@ -390,225 +169,231 @@ public class Assemble {
      * @return whether errors occurred during assembly
      */
     public void doParse() throws AsmException {
-        curToken = 0;
-        while (hasNextToken()) {
+        TokenCursor stmt = tokens.cursor();
+        while (stmt.next()) {
 
-            // get the next statement, restarting the loop if empty and
-            // verifying it starts with an identifier.
-            ArrayList<Token> stmt = getNextTokens();
+            // restart the loop if the statement is empty and verify it starts
+            // with an identifier.
             if (stmt.isEmpty()) {
                 continue;
             }
-            if (!stmt.get(0).isType(Token.Type.Identifier)) {
-                throw new AsmException(stmt.get(0).getSource() + ": Expected statement to begin with identifier.");
+            if (!stmt.isType(0, Token.Type.Identifier)) {
+                throw new AsmException(stmt.getSource(0) + ": Expected statement to begin with identifier.");
             }
 
-            // check for directives
-            if (stmt.get(0).equalTo("stackSize")) {
-                lineMatches(stmt, true, Token.Type.Integer);
-                int stackSize = ObjectFile.roundUp(stmt.get(1).getIntValue());
-                if (stackSize != stmt.get(1).getIntValue()) {
-                    System.err.println(stmt.get(0).getSource() + ": stack size " + stmt.get(1).getIntValue()
-                            + " is not a multiple up 256; round up to " + stackSize + ".");
-                }
-                asm.setStackSize(stackSize);
-                continue;
-            }
-            if (stmt.get(0).equalTo("toROM")) {
-                lineMatches(stmt, true);
-                asm.addToRom(true);
-                continue;
-            }
-            if (stmt.get(0).equalTo("endROM")) {
-                lineMatches(stmt, true);
-                asm.addToRom(false);
-                continue;
-            }
-            if (stmt.get(0).equalTo("include")) {
-                lineMatches(stmt, true, Token.Type.String);
-                String includedFile = filePath + stmt.get(1).getStringValue();
-                System.err.println("including \"" + includedFile + "\" from \"" + inputFile + "\".");
-                new Assemble(asm, includedFile);
-                continue;
-            }
-            if (stmt.get(0).equalTo("includeBinary")) {
-                lineMatches(stmt, true, Token.Type.Identifier, Token.Type.Identifier, Token.Type.String);
-                String includedFile = filePath + stmt.get(3).getStringValue();
-                System.err.println("including \"" + includedFile + "\" from \"" + inputFile + "\" into glulx file.");
-                if (!stmt.get(1).equalTo("_")) {
-                    asm.addLine(new AsmLabel(stmt.get(1).getStringValue()));
-                }
-                try {
-                    Path path = Paths.get(includedFile);
-                    byte[] fileBytes;
-                    fileBytes = Files.readAllBytes(path);
-                    asm.addLine(new AsmData(fileBytes));
-                    asm.addConstant(stmt.get(2).getStringValue(), fileBytes.length, 0); // TODO last arg is source line);
-                } catch (IOException e) {
-                    throw new AsmException("IO Error: " + e.getMessage());
-                }
-                continue;
-            }
-            if (stmt.get(0).equalTo("constant")) {
-                lineMatches(stmt, true, Token.Type.Identifier, Token.Type.Integer);
-                asm.addConstant(stmt.get(1).getStringValue(), stmt.get(2).getIntValue(), 0); // TODO last arg is line number
-                continue;
-            }
-
-            // check for a label
-            if (stmt.get(0).getStringValue().endsWith(":")) {
-                String text = stmt.get(0).getStringValue();
+            // check for a label; only some directives may follow a label on
+            // the same line
+            Directive directive = directives.get(stmt.getStringValue(0));
+            if (directive == null && stmt.getStringValue(0).endsWith(":")) {
+                String text = stmt.getStringValue(0);
                 asm.addLine(new AsmLabel(text.substring(0, text.length() - 1)));
-                stmt.remove(0);
+                stmt.removeFirst();
                 if (stmt.isEmpty()) {
                     continue;
                 }
-                if (!stmt.get(0).isType(Token.Type.Identifier)) {
-                    throw new AsmException(stmt.get(0).getSource() + ": Expected statement to begin with identifier.");
+                if (!stmt.isType(0, Token.Type.Identifier)) {
+                    throw new AsmException(stmt.getSource(0) + ": Expected statement to begin with identifier.");
+                }
+                directive = directives.get(stmt.getStringValue(0));
+                if (directive != null && !directive.afterLabel) {
+                    directive = null;
                 }
             }
 
-            // check for function definitions
-            if (stmt.get(0).equalTo("function")) {
-                lineMatches(stmt, true, Token.Type.Identifier, Token.Type.Integer);
-                AsmLabel label = new AsmLabel(stmt.get(1).getStringValue(), AsmLabel.Type.LocalFunction, stmt.get(2).getIntValue());
-                // label.setSource(inputFile, lineNo); TODO
-                asm.addLine(label);
-                continue;
-            }
-            if (stmt.get(0).equalTo("stkfunction")) {
-                lineMatches(stmt, true, Token.Type.Identifier, Token.Type.Integer);
-                AsmLabel label = new AsmLabel(stmt.get(1).getStringValue(), AsmLabel.Type.StackFunction, stmt.get(2).getIntValue());
-                // label.setSource(inputFile, lineNo); TODO
-                asm.addLine(label); // throw new AsmException("Unexpected token: " + here);
-                continue;
+            // it must be a directive or mnemonic (or an error)
+            if (directive == null) {
+                throw new AsmException(stmt.getSource(0) + ": Unknown mnemonic \"" + stmt.getStringValue(0) + "\"");
             }
+            directive.handler.parse(this, stmt);
+        }
+    }
 
-            // check for entries in the string table
-            if (stmt.get(0).equalTo("addString")) {
-                lineMatches(stmt, true, Token.Type.Identifier, Token.Type.String);
-                asm.addString(stmt.get(1).getStringValue(), stmt.get(2).getStringValue());
-                continue;
-            }
+    private void doStackSize(TokenCursor stmt) throws AsmException {
+        lineMatches(stmt, true, Token.Type.Integer);
+        int stackSize = ObjectFile.roundUp(stmt.getIntValue(1));
+        if (stackSize != stmt.getIntValue(1)) {
+            asm.message(stmt.getSource(0) + ": stack size " + stmt.getIntValue(1)
+                    + " is not a multiple up 256; round up to " + stackSize + ".");
+        }
+        asm.setStackSize(stackSize);
+    }
 
-            // check for data statements
-            if (stmt.get(0).equalTo("string")) {
-                lineMatches(stmt, true, Token.Type.Identifier, Token.Type.String);
-                if (!stmt.get(1).equalTo("_")) {
-                    asm.addLine(new AsmLabel(stmt.get(1).getStringValue(), AsmLabel.Type.String));
-                }
-                AsmData ad = new AsmData(stmt.get(0), stmt.get(2).getStringValue(), AsmData.StringType.Automatic);
-                ad.setSource(stmt.get(0));
-                asm.addLine(ad);
-                continue;
-            }
-            if (stmt.get(0).equalTo("basicString")) {
-                lineMatches(stmt, true, Token.Type.Identifier, Token.Type.String);
-                if (!stmt.get(1).equalTo("_")) {
-                    asm.addLine(new AsmLabel(stmt.get(1).getStringValue(), AsmLabel.Type.String));
-                }
-                AsmData ad = new AsmData(stmt.get(0), stmt.get(2).getStringValue(), AsmData.StringType.Basic);
-                ad.setSource(stmt.get(0));
-                asm.addLine(ad);
-                continue;
-            }
-            if (stmt.get(0).equalTo("unicodeString")) {
-                lineMatches(stmt, true, Token.Type.Identifier, Token.Type.String);
-                if (!stmt.get(1).equalTo("_")) {
-                    asm.addLine(new AsmLabel(stmt.get(1).getStringValue(), AsmLabel.Type.String));
-                }
-                AsmData ad = new AsmData(stmt.get(0), stmt.get(2).getStringValue(), AsmData.StringType.Unicode);
-                ad.setSource(stmt.get(0));
-                asm.addLine(ad);
-                continue;
-            }
-            if (stmt.get(0).equalTo("bytes")) {
-                lineMatches(stmt, false, Token.Type.Identifier);
-                if (!stmt.get(1).equalTo("_")) {
-                    asm.addLine(new AsmLabel(stmt.get(1).getStringValue(), AsmLabel.Type.Data));
-                }
-                byte[] data = new byte[stmt.size() - 2];
-                buildBytes(data, stmt, 2);
-                AsmData ad = new AsmData(data);
-                ad.setSource(stmt.get(0));
-                asm.addLine(ad);
-                continue;
-            }
-            if (stmt.get(0).equalTo("bytesFixed")) {
-                lineMatches(stmt, false, Token.Type.Identifier, Token.Type.Integer);
-                if (!stmt.get(1).equalTo("_")) {
-                    asm.addLine(new AsmLabel(stmt.get(1).getStringValue(), AsmLabel.Type.Data));
-                }
-                if (stmt.get(2).getIntValue() < stmt.size() - 3) {
-                    throw new AsmException(stmt.get(0).getSource() + "): bytesFixed has size of " + stmt.get(2).getIntValue() + ", but "
-                            + (stmt.size() - 3) + " values.");
-                }
-                byte[] data = new byte[stmt.get(2).getIntValue()];
-                buildBytes(data, stmt, 3);
-                AsmData ad = new AsmData(data);
-                ad.setSource(stmt.get(0));
-                asm.addLine(ad);
-                continue;
-            }
-            if (stmt.get(0).equalTo("words")) {
-                lineMatches(stmt, false, Token.Type.Identifier);
-                if (!stmt.get(1).equalTo("_")) {
-                    asm.addLine(new AsmLabel(stmt.get(1).getStringValue(), AsmLabel.Type.Data));
-                }
-                AsmVarData avd = new AsmVarData();
-                avd.setObjectFile(asm);
-                avd.setSource(stmt.get(0));
-                for (int i = 2; i < stmt.size(); ++i) {
-                    avd.addItem(new Operand(stmt.get(i), asm));
-                }
-                asm.addLine(avd);
-                continue;
-            }
-            if (stmt.get(0).equalTo("wordsFixed")) {
-                lineMatches(stmt, false, Token.Type.Identifier, Token.Type.Integer);
-                if (!stmt.get(1).equalTo("_")) {
-                    asm.addLine(new AsmLabel(stmt.get(1).getStringValue(), AsmLabel.Type.Data));
-                }
-                int size = stmt.get(2).getIntValue();
-                if (size <= 0) {
-                    throw new AsmException(stmt.get(0).getSource() + ": wordsFixed must have size of at least one");
-                }
-                AsmVarData avd = new AsmVarData(size);
-                avd.setObjectFile(asm);
-                avd.setSource(stmt.get(0));
-                for (int i = 3; i < stmt.size(); ++i) {
-                    avd.addItem(new Operand(stmt.get(i), asm));
-                }
-                asm.addLine(avd);
-                continue;
-            }
+    private void doToRom(TokenCursor stmt) throws AsmException {
+        lineMatches(stmt, true);
+        asm.addToRom(stmt.equalTo(0, "toROM"));
+    }
 
-            // check for a shortcut mnemonic (_glk or _call)
-            if (stmt.get(0).equalTo("_glk") || stmt.get(0).equalTo("_call")) {
-                doShortcutCall(stmt);
-                continue;
-            }
+    private void doInclude(TokenCursor stmt) throws AsmException {
+        lineMatches(stmt, true, Token.Type.String);
+        String includedFile = filePath + stmt.getStringValue(1);
+        asm.message("including \"" + includedFile + "\" from \"" + inputFile + "\".");
+        asm.dependsOn(includedFile, loader.getHash(includedFile), false);
+
+        assemble(asm, includedFile, loader);
+    }
+
+    /**
+     * Assemble a file into a game file, replaying its entry in the parse
+     * cache instead if the loader has a cache and the entry is still valid.
+     * If the file has to be parsed, the cache entry is replaced.
+     *
+     * @param asm
+     *            the game file to add to
+     * @param filename
+     *            the file to assemble
+     * @param loader
+     *            the source loader for this build
+     */
+    public static void assemble(ObjectFile asm, String filename, SourceLoader loader) throws AsmException {
+        ParseCache cache = loader.getCache();
+        if (cache == null) {
+            new Assemble(asm, filename, loader);
+            return;
+        }
+        ParseRecord cached = loader.getCachedRecord(filename);
+        if (cached != null && cached.isValidFor(asm, loader)) {
+            cache.hit();
+            cached.replay(asm);
+            return;
+        }
+        cache.miss();
+        ParseRecord record = new ParseRecord(filename, asm.isToRom());
+        asm.startRecording(record);
+        try {
+            new Assemble(asm, filename, loader);
+        } finally {
+            asm.stopRecording();
+        }
+        try {
+            cache.write(record, loader.getHash(filename));
+        } catch (IOException e) {
+            asm.message("could not write parse cache entry for \"" + filename + "\": " + e.getMessage());
+        }
+    }
 
-            // otherwise it must be a mnemonic (or an error)
-            if (Mnemonic.list.containsKey(stmt.get(0).getStringValue())) {
-                parseAsmStatement(stmt);
+    private void doIncludeBinary(TokenCursor stmt) throws AsmException {
+        lineMatches(stmt, true, Token.Type.Identifier, Token.Type.Identifier, Token.Type.String);
+        String includedFile = filePath + stmt.getStringValue(3);
+        asm.message("including \"" + includedFile + "\" from \"" + inputFile + "\" into glulx file.");
+        asm.dependsOn(includedFile, loader.getHash(includedFile), true);
+        if (!stmt.equalTo(1, "_")) {
+            asm.addLine(new AsmLabel(stmt.getStringValue(1)));
+        }
+        try {
+            int length;
+            if (loader.getResolver() == SourceResolver.FILES) {
+                // the file is only read when the game file is written
+                length = (int) Files.size(Paths.get(includedFile));
+                asm.addLine(new AsmBinaryFile(includedFile, 0, length));
             } else {
-                throw new AsmException(stmt.get(0).getSource() + ": Unknown mnemonic \"" + stmt.get(0).getStringValue() + "\"");
+                ByteBuffer content = loader.getResolver().read(includedFile).duplicate();
+                byte[] data = new byte[content.remaining()];
+                content.get(data);
+                length = data.length;
+                asm.addLine(new AsmData(data));
             }
+            asm.addConstant(stmt.getStringValue(2), length, 0); // TODO last arg is source line);
+        } catch (IOException e) {
+            throw new AsmException("IO Error: " + e.getMessage());
+        }
+    }
+
+    private void doConstant(TokenCursor stmt) throws AsmException {
+        lineMatches(stmt, true, Token.Type.Identifier, Token.Type.Integer);
+        asm.addConstant(stmt.getStringValue(1), stmt.getIntValue(2), 0); // TODO last arg is line number
+    }
+
+    private void doFunction(TokenCursor stmt, AsmLabel.Type type) throws AsmException {
+        lineMatches(stmt, true, Token.Type.Identifier, Token.Type.Integer);
+        AsmLabel label = new AsmLabel(stmt.getStringValue(1), type, stmt.getIntValue(2));
+        // label.setSource(inputFile, lineNo); TODO
+        asm.addLine(label);
+    }
+
+    private void doAddString(TokenCursor stmt) throws AsmException {
+        lineMatches(stmt, true, Token.Type.Identifier, Token.Type.String);
+        asm.addString(stmt.getStringValue(1), stmt.getStringValue(2));
+    }
+
+    private void doString(TokenCursor stmt, AsmData.StringType type) throws AsmException {
+        lineMatches(stmt, true, Token.Type.Identifier, Token.Type.String);
+        if (!stmt.equalTo(1, "_")) {
+            asm.addLine(new AsmLabel(stmt.getStringValue(1), AsmLabel.Type.String));
+        }
+        AsmData ad = new AsmData(stmt.getFile(0), stmt.getLine(0), stmt.getStringValue(2), type);
+        ad.setSource(stmt.getFile(0), stmt.getLine(0));
+        asm.addLine(ad);
+    }
+
+    private void doBytes(TokenCursor stmt) throws AsmException {
+        lineMatches(stmt, false, Token.Type.Identifier);
+        if (!stmt.equalTo(1, "_")) {
+            asm.addLine(new AsmLabel(stmt.getStringValue(1), AsmLabel.Type.Data));
         }
+        byte[] data = new byte[stmt.size() - 2];
+        buildBytes(data, stmt, 2);
+        AsmData ad = new AsmData(data);
+        ad.setSource(stmt.getFile(0), stmt.getLine(0));
+        asm.addLine(ad);
     }
-    
-    private void parseAsmStatement(List<Token> stmt) throws AsmException {
-        // get the mnemonic
-        Mnemonic m = Mnemonic.list.get(stmt.get(0).getStringValue());
+
+    private void doBytesFixed(TokenCursor stmt) throws AsmException {
+        lineMatches(stmt, false, Token.Type.Identifier, Token.Type.Integer);
+        if (!stmt.equalTo(1, "_")) {
+            asm.addLine(new AsmLabel(stmt.getStringValue(1), AsmLabel.Type.Data));
+        }
+        if (stmt.getIntValue(2) < stmt.size() - 3) {
+            throw new AsmException(stmt.getSource(0) + "): bytesFixed has size of " + stmt.getIntValue(2) + ", but "
+                    + (stmt.size() - 3) + " values.");
+        }
+        byte[] data = new byte[stmt.getIntValue(2)];
+        buildBytes(data, stmt, 3);
+        AsmData ad = new AsmData(data);
+        ad.setSource(stmt.getFile(0), stmt.getLine(0));
+        asm.addLine(ad);
+    }
+
+    private void doWords(TokenCursor stmt) throws AsmException {
+        lineMatches(stmt, false, Token.Type.Identifier);
+        if (!stmt.equalTo(1, "_")) {
+            asm.addLine(new AsmLabel(stmt.getStringValue(1), AsmLabel.Type.Data));
+        }
+        AsmVarData avd = new AsmVarData();
+        avd.setObjectFile(asm);
+        avd.setSource(stmt.getFile(0), stmt.getLine(0));
+        for (int i = 2; i < stmt.size(); ++i) {
+            avd.addItem(new Operand(stmt, i, asm));
+        }
+        asm.addLine(avd);
+    }
+
+    private void doWordsFixed(TokenCursor stmt) throws AsmException {
+        lineMatches(stmt, false, Token.Type.Identifier, Token.Type.Integer);
+        if (!stmt.equalTo(1, "_")) {
+            asm.addLine(new AsmLabel(stmt.getStringValue(1), AsmLabel.Type.Data));
+        }
+        int size = stmt.getIntValue(2);
+        if (size <= 0) {
+            throw new AsmException(stmt.getSource(0) + ": wordsFixed must have size of at least one");
+        }
+        AsmVarData avd = new AsmVarData(size);
+        avd.setObjectFile(asm);
+        avd.setSource(stmt.getFile(0), stmt.getLine(0));
+        for (int i = 3; i < stmt.size(); ++i) {
+            avd.addItem(new Operand(stmt, i, asm));
+        }
+        asm.addLine(avd);
+    }
+
+    private void parseAsmStatement(Mnemonic m, TokenCursor stmt) throws AsmException {
         if (m.operands != stmt.size() - 1) {
-            throw new AsmException(stmt.get(0).getSource() + ": Bad operand count");
+            throw new AsmException(stmt.getSource(0) + ": Bad operand count");
         }
 
         AsmInstruction ai = new AsmInstruction(m);
-        ai.setSource(stmt.get(0));
+        ai.setSource(stmt.getFile(0), stmt.getLine(0));
         for (int i = 1; i < stmt.size(); ++i) {
-            ai.addOperand(new Operand(stmt.get(i), asm));
+            ai.addOperand(new Operand(stmt, i, asm));
         }
         asm.addLine(ai);
     }
@@ -619,15 +404,15 @@ public class Assemble {
      * @param stmt
      *            the list of tokens for this call
      */
-    private void doShortcutCall(ArrayList<Token> stmt) throws AsmException {
-        boolean isCall = (stmt.get(0).equalTo("_call"));
-        if (stmt.get(1).isType(Token.Type.Identifier) && (!isCall && stmt.get(1).isType(Token.Type.Integer))) {
-            throw new AsmException(stmt.get(0).getSource() + ": Invalid function name for " + stmt.get(0).getStringValue());
+    private void doShortcutCall(TokenCursor stmt) throws AsmException {
+        boolean isCall = (stmt.equalTo(0, "_call"));
+        if (stmt.isType(1, Token.Type.Identifier) && (!isCall && stmt.isType(1, Token.Type.Integer))) {
+            throw new AsmException(stmt.getSource(0) + ": Invalid function name for " + stmt.getStringValue(0));
         }
 
         // check that we have enough arguments
         if (stmt.size() < 3) {
-            throw new AsmException(stmt.get(0).getSource() + ": insufficent operands for " + stmt.get(0).getStringValue() + " (min 2)");
+            throw new AsmException(stmt.getSource(0) + ": insufficent operands for " + stmt.getStringValue(0) + " (min 2)");
         }
 
         if (isCall && stmt.size() - 3 <= 3) {
@@ -646,16 +431,16 @@ public class Assemble {
                 ai = new AsmInstruction(Mnemonic.list.get("callfiii"));
                 break;
             default:
-                throw new AsmException(stmt.get(0).getSource() + ": error in assembler; tried to construct callf* opcode with bad operand count");
+                throw new AsmException(stmt.getSource(0) + ": error in assembler; tried to construct callf* opcode with bad operand count");
             }
             // operand for function address
-            ai.addOperand(new Operand(stmt.get(1), asm));
+            ai.addOperand(new Operand(stmt, 1, asm));
             // general operands
             for (int i = 2; i < stmt.size() - 1; ++i) {
-                ai.addOperand(new Operand(stmt.get(i), asm));
+                ai.addOperand(new Operand(stmt, i, asm));
             }
             // operand for return value
-            ai.addOperand(new Operand(stmt.get(stmt.size() - 1), asm));
+            ai.addOperand(new Operand(stmt, stmt.size() - 1, asm));
             asm.addLine(ai);
             return;
         }
@@ -663,7 +448,7 @@ public class Assemble {
         // add instructions to push args onto stack
         for (int i = stmt.size() - 2; i > 1; --i) {
             AsmInstruction ai = new AsmInstruction(Mnemonic.list.get("copy"));
-            ai.addOperand(new Operand(stmt.get(i), asm));
+            ai.addOperand(new Operand(stmt, i, asm));
             ai.addOperand(new Operand(-1, Operand.Mode.Variable));
             asm.addLine(ai);
         }
@@ -674,50 +459,23 @@ public class Assemble {
         } else {
             ai = new AsmInstruction(Mnemonic.list.get("glk"));
         }
-        ai.addOperand(new Operand(stmt.get(1), asm));
+        ai.addOperand(new Operand(stmt, 1, asm));
         ai.addOperand(new Operand(stmt.size() - 3));
-        ai.addOperand(new Operand(stmt.get(stmt.size() - 1), asm));
+        ai.addOperand(new Operand(stmt, stmt.size() - 1, asm));
         asm.addLine(ai);
     }
 
-    private void buildBytes(byte[] data, ArrayList<Token> stmt, int startPos) throws AsmException {
+    private void buildBytes(byte[] data, TokenCursor stmt, int startPos) throws AsmException {
         for (int i = startPos; i < stmt.size(); ++i) {
-            if (!stmt.get(i).isType(Token.Type.Integer)) {
-                throw new AsmException(stmt.get(i).getSource() + "expected int value(s) for bytes statement");
+            if (!stmt.isType(i, Token.Type.Integer)) {
+                throw new AsmException(stmt.getSource(i) + "expected int value(s) for bytes statement");
             }
-            int value = stmt.get(i).getIntValue();
+            int value = stmt.getIntValue(i);
             byte b = (byte) (value);
             if (((b) & 0xFF) != value) {
-                throw new AsmException(stmt.get(i).getSource() + "bytes requires 1 byte values");
+                throw new AsmException(stmt.getSource(i) + "bytes requires 1 byte values");
             }
             data[i - startPos] = b;
         }
     }
-
-    private ArrayList<Token> getNextTokens() {
-        ArrayList<Token> list = new ArrayList<>();
-        Token tok = getToken();
-        while (!tok.isType(Token.Type.End) && hasNextToken()) {
-            list.add(tok);
-            tok = nextToken();
-        }
-        nextToken();
-        return list;
-    }
-
-    private Token getToken() {
-        if (curToken < tokenList.size()) {
-            return tokenList.get(curToken);
-        }
-        return null;
-    }
-
-    private Token nextToken() {
-        ++curToken;
-        return getToken();
-    }
-
-    private boolean hasNextToken() {
-        return (curToken < tokenList.size());
-    }
 }
@@ -0,0 +1,146 @@
+package com.grenslair.glulx.ggasm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An Assembler builds game files entirely in memory, for programs that use
+ * GGASM as a library. The source of the main file is passed in as text, and
+ * any files it includes are read through a resolver supplied by the caller;
+ * the game file is returned as bytes, along with the messages and errors of
+ * the build. Nothing is read from or written to the filesystem, and nothing
+ * is printed.
+ *
+ * Each call to assemble builds its own game file, so an Assembler may be
+ * used by several threads at once, as may separate Assemblers. The files
+ * included by each build are kept in a parse cache shared by the calls made
+ * through an Assembler, and are only parsed again when their content
+ * changes.
+ */
+public class Assembler {
+	/**
+	 * The outcome of assembling a file.
+	 */
+	public static class Result {
+		private byte[] gameFile;
+		private List<Diagnostic> diagnostics;
+
+		private Result(byte[] gameFile, List<Diagnostic> diagnostics) {
+			this.gameFile = gameFile;
+			this.diagnostics = diagnostics;
+		}
+
+		/**
+		 * Return whether the game file was built.
+		 * @return true if it was built; false if there were errors
+		 */
+		public boolean isSuccess() {
+			return gameFile != null;
+		}
+		/**
+		 * Return the game file.
+		 * @return the bytes of the game file, or null if it was not built
+		 */
+		public byte[] getGameFile() {
+			return gameFile;
+		}
+		/**
+		 * Return the messages and errors of the build, in the order they
+		 * were reported.
+		 * @return the diagnostics
+		 */
+		public List<Diagnostic> getDiagnostics() {
+			return diagnostics;
+		}
+	}
+
+	/** a resolver for assemblers that aren't given one; nothing can be included */
+	private static final SourceResolver NO_INCLUDES = filename -> {
+		throw new IOException("cannot include \"" + filename + "\": no include resolver");
+	};
+
+	private SourceResolver resolver;
+	private String[] options;
+	private ParseCache cache;
+
+	/**
+	 * Create an assembler for files that include no other files.
+	 * @param options  command line options to build with, as for Build
+	 */
+	public Assembler(String... options) {
+		this(NO_INCLUDES, options);
+	}
+
+	/**
+	 * Create an assembler.
+	 * @param resolver  the resolver the content of included files is read
+	 *                  through, for both source and binary includes
+	 * @param options   command line options to build with, as for Build;
+	 *                  -cache may not be used
+	 * @throws IllegalArgumentException if an option is invalid
+	 */
+	public Assembler(SourceResolver resolver, String... options) {
+		this.resolver = resolver;
+		this.options = options.clone();
+		cache = new ParseCache();
+		List<Diagnostic> problems = new ArrayList<Diagnostic>();
+		applyOptions(newBuild(problems), problems);
+	}
+
+	/**
+	 * Set the parse cache used for included files. By default each
+	 * Assembler has its own cache, kept in memory.
+	 * @param cache  the cache to use, or null to parse every file each time
+	 */
+	public void setCache(ParseCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Assemble a file and build its game file.
+	 * @param filename  the name of the file, used in messages and to find the
+	 *                  files it includes
+	 * @param source    the content of the file
+	 * @return the game file and the diagnostics of building it
+	 */
+	public Result assemble(String filename, String source) {
+		List<Diagnostic> diagnostics = Collections.synchronizedList(new ArrayList<Diagnostic>());
+		Build build = newBuild(diagnostics);
+		applyOptions(build, diagnostics);
+		build.setCache(cache);
+		ByteBuffer content = ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8));
+		byte[] gameFile = null;
+		if (build.fromFile(filename, name -> name.equals(filename) ? content.duplicate() : resolver.read(name))) {
+			ByteBuffer code = build.buildInMemory();
+			if (code != null) {
+				gameFile = new byte[code.remaining()];
+				code.get(gameFile);
+			}
+		}
+		return new Result(gameFile, new ArrayList<Diagnostic>(diagnostics));
+	}
+
+	private static Build newBuild(List<Diagnostic> diagnostics) {
+		Build build = new Build();
+		build.setDiagnosticListener(diagnostics::add);
+		return build;
+	}
+
+	private void applyOptions(Build build, List<Diagnostic> problems) {
+		for (int pos = 0; pos < options.length; ) {
+			if (options[pos].equals("-cache")) {
+				throw new IllegalArgumentException("-cache cannot be used; use setCache instead");
+			}
+			int next = build.parseOption(options, pos);
+			if (next <= pos) {
+				throw new IllegalArgumentException(problems.isEmpty()
+						? "unknown option \"" + options[pos] + "\"" : problems.get(0).getMessage());
+			}
+			pos = next;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package com.grenslair.glulx.ggasm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A BatchBuild builds several independent game files at the same time.
+ * Each game file is built by its own Build, on a fixed number of threads;
+ * the options given to the batch apply to every one of them. Parsed include
+ * files are shared between the builds through a single parse cache, so a
+ * file included by every game file is only parsed once.
+ *
+ * The messages of each build are collected and printed together once it has
+ * finished, in the order the game files were given, followed by how long it
+ * took to assemble and build.
+ */
+public class BatchBuild {
+	private List<String> options;
+	private List<String> inputs;
+	private List<String> outputs;
+	private ParseCache cache;
+	private PrintStream log = System.err;
+
+	/**
+	 * Create a batch build.
+	 * @param options  the command line options for every build
+	 */
+	public BatchBuild(List<String> options) {
+		this.options = options;
+		inputs = new ArrayList<String>();
+		outputs = new ArrayList<String>();
+	}
+
+	/**
+	 * Add a game file to build.
+	 * @param input   the name of the source file
+	 * @param output  the name of the game file
+	 */
+	public void add(String input, String output) {
+		inputs.add(input);
+		outputs.add(output);
+	}
+
+	/**
+	 * Add the game files listed in a manifest. Each line of the manifest
+	 * holds the name of a source file and the name of the game file to build
+	 * from it, separated by spaces; blank lines and lines starting with # are
+	 * ignored. Names are relative to the directory of the manifest.
+	 * @param manifest  the name of the manifest
+	 */
+	public void addManifest(String manifest) throws IOException {
+		Path base = Paths.get(manifest).toAbsolutePath().getParent();
+		int lineNo = 0;
+		for (String line : Files.readAllLines(Paths.get(manifest), StandardCharsets.UTF_8)) {
+			++lineNo;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] parts = line.split("\\s+");
+			if (parts.length != 2) {
+				throw new IOException(manifest + ":" + lineNo + ": expected a source file and a game file");
+			}
+			add(base.resolve(parts[0]).toString(), base.resolve(parts[1]).toString());
+		}
+	}
+
+	/**
+	 * Set the parse cache shared by the builds. If none is set, an in-memory
+	 * cache is used.
+	 * @param cache  the cache to use
+	 */
+	public void setCache(ParseCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Set where messages, errors and timings are printed.
+	 * @param log  the stream to print to; System.err by default
+	 */
+	public void setLog(PrintStream log) {
+		this.log = log;
+	}
+
+	/**
+	 * Build every game file.
+	 * @param threads  the number of game files to build at once
+	 * @return the number of game files that could not be built
+	 */
+	public int run(int threads) {
+		if (cache == null) {
+			cache = new ParseCache();
+		}
+		long start = System.nanoTime();
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		List<Future<Result>> pending = new ArrayList<Future<Result>>();
+		for (int i = 0; i < inputs.size(); ++i) {
+			String input = inputs.get(i), output = outputs.get(i);
+			pending.add(workers.submit(() -> build(input, output)));
+		}
+		workers.shutdown();
+
+		int failed = 0;
+		long assemblyNanos = 0, buildNanos = 0;
+		for (int i = 0; i < pending.size(); ++i) {
+			Result result;
+			try {
+				result = pending.get(i).get();
+			} catch (ExecutionException e) {
+				result = new Result();
+				result.messages = "ERROR: " + e.getCause() + "\n";
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				workers.shutdownNow();
+				return pending.size() - i;
+			}
+			log.print(result.messages);
+			log.println(String.format("%s: %s, %.1f ms assembling, %.1f ms building", inputs.get(i),
+					result.ok ? "built " + outputs.get(i) : "FAILED", result.assemblyNanos / 1e6,
+					result.buildNanos / 1e6));
+			if (!result.ok) {
+				++failed;
+			}
+			assemblyNanos += result.assemblyNanos;
+			buildNanos += result.buildNanos;
+		}
+		log.println(String.format("batch: %d built, %d failed in %.1f ms (%.1f ms assembling, %.1f ms building)",
+				pending.size() - failed, failed, (System.nanoTime() - start) / 1e6, assemblyNanos / 1e6,
+				buildNanos / 1e6));
+		log.println(cache.report());
+		return failed;
+	}
+
+	/**
+	 * Build one game file with its own Build, collecting its messages.
+	 */
+	private Result build(String input, String output) throws UnsupportedEncodingException {
+		Result result = new Result();
+		ByteArrayOutputStream messages = new ByteArrayOutputStream();
+		PrintStream buildLog = new PrintStream(messages, true, "UTF-8");
+		Build build = new Build();
+		build.setLog(buildLog);
+		String[] args = options.toArray(new String[options.size()]);
+		for (int pos = 0; pos < args.length; ) {
+			int next = build.parseOption(args, pos);
+			if (next <= pos) {
+				result.messages = messages.toString("UTF-8");
+				return result;
+			}
+			pos = next;
+		}
+		build.setCache(cache);
+
+		long start = System.nanoTime();
+		boolean ok = build.fromFile(input);
+		long assembled = System.nanoTime();
+		result.assemblyNanos = assembled - start;
+		if (ok) {
+			ok = build.build(output);
+			result.buildNanos = System.nanoTime() - assembled;
+		}
+		result.ok = ok;
+		result.messages = messages.toString("UTF-8");
+		return result;
+	}
+
+	private static class Result {
+		boolean ok;
+		long assemblyNanos;
+		long buildNanos;
+		String messages = "";
+	}
+}
@@ -1,79 +1,620 @@
 package com.grenslair.glulx.ggasm;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+import javax.management.JMException;
 
 public class Build {
 	private ObjectFile asm;
+	private ParseCache cache;
+	private boolean reportCache;
+	private PeepholeOptimizer optimizer;
+
+	private boolean relax = true;
+	private boolean compressStrings = true;
+	private int abbreviations = -1;
+	private ObjectFile.OutputMode outputMode;
+	private boolean dump;
+	private PrintStream log = System.err;
+	private Consumer<Diagnostic> diagnostics;
 
 	public Build() {
-		asm = new ObjectFile();
+		asm = newObjectFile();
+		new HashSet<String>();
+	}
+
+	public ObjectFile getObjectFile() {
+		return asm;
+	}
+
+	/**
+	 * Create a new game file with this build's settings.
+	 * @return the game file
+	 */
+	ObjectFile newObjectFile() {
+		ObjectFile file = new ObjectFile();
         byte[] signature = {
             'G', 'G', 'A', 'S', 'M',
             Assemble.majorVersion, Assemble.minorVersion, Assemble.patchVersion
         };
-        asm.addSignature(signature);
-		new HashSet<String>();
+        file.addSignature(signature);
+		file.setLog(log);
+		file.setDiagnosticListener(diagnostics);
+		file.setRelaxation(relax);
+		file.setStringCompression(compressStrings);
+		if (abbreviations >= 0) {
+			file.setAbbreviationLimit(abbreviations);
+		}
+		if (outputMode != null) {
+			file.setOutputMode(outputMode);
+		}
+		file.setOptimizer(optimizer);
+		return file;
 	}
 
-	public ObjectFile getObjectFile() {
-		return asm;
+	public void setRelaxation(boolean relax) {
+		this.relax = relax;
+		asm.setRelaxation(relax);
+	}
+	public void setStringCompression(boolean compress) {
+		compressStrings = compress;
+		asm.setStringCompression(compress);
+	}
+	public void setAbbreviationLimit(int count) {
+		abbreviations = count;
+		asm.setAbbreviationLimit(count);
+	}
+	public void setOutputMode(ObjectFile.OutputMode mode) {
+		outputMode = mode;
+		asm.setOutputMode(mode);
+	}
+	/**
+	 * Set where messages and errors are printed.
+	 * @param log  the stream to print to; System.err by default
+	 */
+	public void setLog(PrintStream log) {
+		this.log = log;
+		asm.setLog(log);
+	}
+	/**
+	 * Pass messages and errors to a listener instead of printing them.
+	 * @param listener  the listener, or null to print them to the log
+	 */
+	public void setDiagnosticListener(Consumer<Diagnostic> listener) {
+		diagnostics = listener;
+		asm.setDiagnosticListener(listener);
+	}
+
+	/**
+	 * Use a parse cache for the files included by this build.
+	 * @param cache  the cache to use
+	 */
+	public void setCache(ParseCache cache) {
+		this.cache = cache;
+		reportCache = true;
+	}
+
+	/**
+	 * Use a parse cache that is shared with other builds. Its counts cover
+	 * all of them, so they are left out of this build's report.
+	 * @param cache  the cache to use
+	 */
+	void setSharedCache(ParseCache cache) {
+		this.cache = cache;
+		reportCache = false;
+	}
+
+	ParseCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Write listings of the code, symbols and strings of the game file
+	 * beside it after building it.
+	 * @param dump  true to write the listings
+	 */
+	public void setDump(boolean dump) {
+		this.dump = dump;
+	}
+
+	public boolean build(String outputFile) {
+		asm.setOptimizer(optimizer);
+		boolean ok = asm.doBuild() && asm.writeByteCodeToFile(outputFile);
+		if (dump) {
+			writeDumps(outputFile);
+		}
+		return ok;
+	}
+
+	/**
+	 * Build the game file into a temporary file beside the output file, so
+	 * that it can be put in place with replaceOutput, or thrown away.
+	 * @param outputFile  the name of the game file
+	 * @return the temporary file, or null if the game file could not be built
+	 */
+	Path buildBeside(String outputFile) throws IOException {
+		Path output = Paths.get(outputFile).toAbsolutePath();
+		Path temp = output.resolveSibling(output.getFileName() + "."
+				+ Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+		asm.setOptimizer(optimizer);
+		if (asm.doBuild() && asm.writeByteCodeToFile(temp.toString())) {
+			return temp;
+		}
+		Files.deleteIfExists(temp);
+		return null;
+	}
+
+	/**
+	 * Replace the output file with a game file built by buildBeside, then
+	 * write its listings if they were asked for.
+	 * @param temp        the temporary file
+	 * @param outputFile  the name of the game file
+	 */
+	void replaceOutput(Path temp, String outputFile) throws IOException {
+		Files.move(temp, Paths.get(outputFile), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		if (dump) {
+			writeDumps(outputFile);
+		}
+	}
+
+	/**
+	 * Write the code, symbol and string listings for a game file to files
+	 * named after it, ending in .code.txt, .symbols.txt and .strings.txt.
+	 * @param outputFile  the name of the game file
+	 */
+	private void writeDumps(String outputFile) {
+		try( PrintWriter out = new PrintWriter(outputFile + ".code.txt") ){
+			out.println(asm.dumpCode());
+		} catch (IOException e) {
+			log.println(e);
+		}
+
+		try( PrintWriter out = new PrintWriter(outputFile + ".symbols.txt") ){
+			out.println(asm.dumpSymbols());
+			out.println("\n");
+			out.println(asm.dumpConstants());
+		} catch (IOException e) {
+			log.println(e);
+		}
+
+		try( PrintWriter out = new PrintWriter(outputFile + ".strings.txt") ){
+			out.println(asm.dumpStrings());
+		} catch (IOException e) {
+			log.println(e);
+		}
+	}
+
+	/**
+	 * Build the game file in memory rather than writing it to a file.
+	 * @return the game file, or null if it could not be built
+	 */
+	public ByteBuffer buildInMemory() {
+		asm.setOptimizer(optimizer);
+		asm.setOutputMode(ObjectFile.OutputMode.BUFFER);
+		if (!asm.doBuild()) {
+			return null;
+		}
+		return asm.getByteCode();
+	}
+
+	/**
+	 * Load modules to link: files ending in .ggo are read as modules, and
+	 * any others are assembled as source files. A module whose source has
+	 * changed since it was written is assembled again from the source. The
+	 * files are loaded in parallel.
+	 * @param files  the names of the files
+	 * @return the modules, in the same order as the files, or null if any
+	 *         could not be loaded
+	 */
+	public List<ObjectModule> loadModules(List<String> files) {
+		// the hashes a module keeps of its files are only worked out when
+		// there is a cache
+		SourceLoader loader = new SourceLoader(ForkJoinPool.commonPool(), cache != null ? cache : new ParseCache());
+		List<Future<ObjectModule>> pending = new ArrayList<Future<ObjectModule>>();
+		for (String file : files) {
+			pending.add(ForkJoinPool.commonPool().submit(() -> file.endsWith(".ggo")
+					? readModule(file, loader) : ObjectModule.assemble(file, loader)));
+		}
+		List<ObjectModule> modules = new ArrayList<ObjectModule>();
+		boolean ok = true;
+		for (int i = 0; i < files.size(); ++i) {
+			try {
+				modules.add(pending.get(i).get());
+			} catch (ExecutionException e) {
+				error(files.get(i) + ": " + e.getCause().getMessage());
+				ok = false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		return ok ? modules : null;
+	}
+
+	/**
+	 * Read a module file, or assemble its source again if the source has
+	 * changed since the module was written.
+	 */
+	private ObjectModule readModule(String file, SourceLoader loader) throws IOException, AsmException {
+		ObjectModule module = ObjectModule.read(file);
+		String changed = module.findChangedFile(SourceResolver.FILES);
+		if (changed == null) {
+			return module;
+		}
+		asm.report(Diagnostic.Severity.INFO, "", file + ": \"" + changed + "\" has changed; assembling \""
+				+ module.getPath() + "\" again");
+		return ObjectModule.assemble(module.getPath(), loader);
+	}
+
+	/**
+	 * Assemble source files into modules, writing each to a .ggo file
+	 * beside its source.
+	 * @param files  the names of the source files
+	 * @return true if every file was assembled and written
+	 */
+	public boolean compile(List<String> files) {
+		List<ObjectModule> modules = loadModules(files);
+		if (modules == null) {
+			return false;
+		}
+		for (ObjectModule module : modules) {
+			try {
+				module.write(ObjectModule.moduleFileFor(module.getPath()));
+			} catch (IOException e) {
+				error(module.getPath() + ": " + e);
+				return false;
+			}
+		}
+		return true;
 	}
 
-	public void build(String outputFile) {
-		if (asm.doBuild()) {
-			asm.writeByteCodeToFile(outputFile);
+	/**
+	 * Link modules into this build's game file.
+	 * @param files  the modules, or source files to assemble as modules
+	 * @return true if every module was loaded and linked
+	 */
+	public boolean fromModules(List<String> files) {
+		List<ObjectModule> modules = loadModules(files);
+		if (modules == null) {
+			return false;
+		}
+		Linker linker = new Linker();
+		for (ObjectModule module : modules) {
+			linker.add(module);
+		}
+		try {
+			linker.link(asm);
+		} catch (AsmException e) {
+			error(e.getMessage());
+			return false;
 		}
+		return true;
 	}
 
 	public boolean fromFile(String filename) {
+		return fromFile(filename, SourceResolver.FILES);
+	}
+
+	/**
+	 * Assemble a file, taking the content of it and the files it includes
+	 * from a resolver.
+	 * @param filename  the name of the file
+	 * @param resolver  the resolver to read source files with
+	 * @return true if the file was assembled without errors
+	 */
+	public boolean fromFile(String filename, SourceResolver resolver) {
 		try {
-			new Assemble(asm, filename);
+			new Assemble(asm, filename, new SourceLoader(ForkJoinPool.commonPool(), cache, resolver));
 		} catch (AsmException e) {
-			System.err.println("ERROR: " + e.getMessage());
+			error(e.getMessage());
 			return false;
 		}
 		return true;
 	}
 
+	/**
+	 * Report an error through this build's log or diagnostic listener.
+	 * @param text  the error
+	 */
+	void error(String text) {
+		asm.report(Diagnostic.Severity.ERROR, "ERROR: ", text);
+	}
 
+	/**
+	 * Apply one of the command line options that change how the game file
+	 * is built.
+	 * @param args    the command line
+	 * @param argPos  the position of the option
+	 * @return the position after the option and its argument; argPos if it
+	 *         isn't one of these options; or -1 if the option is invalid
+	 */
+	public int parseOption(String[] args, int argPos) {
+		if (args[argPos].equals("-cache") && argPos + 1 < args.length) {
+			try {
+				setCache(new ParseCache(args[argPos + 1]));
+			} catch (IOException e) {
+				asm.report(Diagnostic.Severity.ERROR, "", e.toString());
+			}
+			return argPos + 2;
+		} else if (args[argPos].equals("-peephole")) {
+			optimizer = new PeepholeOptimizer();
+			return argPos + 1;
+		} else if (args[argPos].startsWith("-peephole=")) {
+			try {
+				optimizer = new PeepholeOptimizer(PeepholeOptimizer.parseRules(args[argPos].substring(10)));
+			} catch (AsmException e) {
+				error(e.getMessage());
+				return -1;
+			}
+			return argPos + 1;
+		} else if (args[argPos].equals("-abbreviations") && argPos + 1 < args.length) {
+			try {
+				setAbbreviationLimit(Integer.parseInt(args[argPos + 1]));
+			} catch (NumberFormatException e) {
+				error("bad abbreviation count \"" + args[argPos + 1] + "\"");
+				return -1;
+			}
+			return argPos + 2;
+		} else if (args[argPos].equals("-nocompress")) {
+			setStringCompression(false);
+			return argPos + 1;
+		} else if (args[argPos].equals("-stream")) {
+			setOutputMode(ObjectFile.OutputMode.STREAMING);
+			return argPos + 1;
+		} else if (args[argPos].equals("-inmemory")) {
+			setOutputMode(ObjectFile.OutputMode.BUFFER);
+			return argPos + 1;
+		} else if (args[argPos].equals("-norelax")) {
+			setRelaxation(false);
+			return argPos + 1;
+		} else if (args[argPos].equals("-dump")) {
+			setDump(true);
+			return argPos + 1;
+		}
+		return argPos;
+	}
+
+	/**
+	 * Return a summary of the reports of the parse cache and peephole
+	 * optimizer, if they were used, and the string table.
+	 * @return the reports, one per line
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		if (cache != null && reportCache) {
+			sb.append(cache.report()).append('\n');
+		}
+		if (optimizer != null) {
+			sb.append(optimizer.report()).append('\n');
+		}
+		if (asm.reportStrings() != null) {
+			sb.append(asm.reportStrings()).append('\n');
+		}
+		return sb.toString();
+	}
+
+
+
+	/**
+	 * Check the header and checksum of existing game files, reporting the
+	 * result for each.
+	 * @param files  the names of the files to check
+	 * @return true if every file was valid
+	 */
+	public static boolean verify(List<String> files) {
+		GameFileVerifier verifier = new GameFileVerifier(ForkJoinPool.commonPool());
+		boolean allValid = true;
+		for (String file : files) {
+			try {
+				List<String> problems = verifier.verify(file);
+				if (problems.isEmpty()) {
+					System.out.println(file + ": ok");
+				}
+				for (String problem : problems) {
+					System.out.println(file + ": " + problem);
+				}
+				allValid &= problems.isEmpty();
+			} catch (IOException e) {
+				System.out.println(file + ": " + e);
+				allValid = false;
+			}
+		}
+		return allValid;
+	}
+
+	/**
+	 * Run a build server until the process is stopped.
+	 * @param args  the command line, starting with -server
+	 * @return false if the server could not be started
+	 */
+	private static boolean serve(String[] args) {
+		int port = 0;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int queue = 16;
+		try {
+			for (int argPos = 1; argPos < args.length; argPos += 2) {
+				int value = Integer.parseInt(args[argPos + 1]);
+				if (args[argPos].equals("-port")) {
+					port = value;
+				} else if (args[argPos].equals("-threads")) {
+					threads = value;
+				} else if (args[argPos].equals("-queue")) {
+					queue = value;
+				} else {
+					throw new IllegalArgumentException(args[argPos]);
+				}
+			}
+		} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			System.err.println("USAGE: ggasm -server [-port <port>] [-threads <count>] [-queue <count>]");
+			return false;
+		}
+		BuildServer server;
+		try {
+			server = new BuildServer(port, threads, queue);
+		} catch (IOException e) {
+			System.err.println("ERROR: " + e);
+			return false;
+		}
+		// the server runs until the process is stopped, so it is closed when
+		// the process exits
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				server.close();
+			} catch (IOException e) {
+				// nothing more to do while exiting
+			}
+		}));
+		try {
+			System.err.println("build server listening on port " + server.getPort());
+			server.run();
+		} catch (IOException e) {
+			System.err.println("ERROR: " + e);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Build several game files at once.
+	 * @param settings  the build the options were applied to
+	 * @param options   the command line options for every build
+	 * @param files     a manifest, or pairs of source and game file names
+	 * @param threads   the number of game files to build at once
+	 * @return true if every game file was built
+	 */
+	private static boolean batch(Build settings, List<String> options, List<String> files, int threads) {
+		BatchBuild batch = new BatchBuild(options);
+		batch.setCache(settings.getCache());
+		if (files.size() == 1) {
+			try {
+				batch.addManifest(files.get(0));
+			} catch (IOException e) {
+				System.err.println("ERROR: " + e);
+				return false;
+			}
+		} else {
+			for (int i = 0; i < files.size(); i += 2) {
+				batch.add(files.get(i), files.get(i + 1));
+			}
+		}
+		return batch.run(threads) == 0;
+	}
 
 	public static void main(String args[]) {
+		if (args.length > 1 && args[0].equals("-verify")) {
+			System.exit(verify(Arrays.asList(args).subList(1, args.length)) ? 0 : 1);
+		}
+		if (args.length > 0 && args[0].equals("-server")) {
+			System.exit(serve(args) ? 0 : 1);
+		}
 		Build a = new Build();
 
-		if (args.length != 2) {
-			System.err.println("USAGE: ggasm <infile> <outfile>");
-			return;
+		int argPos = 0;
+		boolean compile = false;
+		boolean link = false;
+		boolean watch = false;
+		boolean local = false;
+		boolean batch = false;
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<String> options = new ArrayList<String>();
+		while (argPos < args.length && args[argPos].startsWith("-")) {
+			int next = a.parseOption(args, argPos);
+			if (next < 0) {
+				return;
+			} else if (next > argPos) {
+				options.addAll(Arrays.asList(args).subList(argPos, next));
+				argPos = next;
+			} else if (args[argPos].equals("-compile")) {
+				compile = true;
+				++argPos;
+			} else if (args[argPos].equals("-watch")) {
+				watch = true;
+				++argPos;
+			} else if (args[argPos].equals("-link")) {
+				link = true;
+				++argPos;
+			} else if (args[argPos].equals("-local")) {
+				local = true;
+				++argPos;
+			} else if (args[argPos].equals("-batch")) {
+				batch = true;
+				++argPos;
+			} else if (args[argPos].equals("-threads") && argPos + 1 < args.length) {
+				try {
+					threads = Integer.parseInt(args[argPos + 1]);
+				} catch (NumberFormatException e) {
+					System.err.println("ERROR: bad thread count \"" + args[argPos + 1] + "\"");
+					return;
+				}
+				argPos += 2;
+			} else {
+				break;
+			}
 		}
-		String infile  = args[0];
-		String outfile = args[1];
 
-		if (a.fromFile(infile)) {
-			a.build(outfile);
-		} else {
-			System.err.println("Errors occured during assembly.");
-			System.exit(1);
+		if (compile && argPos < args.length) {
+			System.exit(a.compile(Arrays.asList(args).subList(argPos, args.length)) ? 0 : 1);
+		}
+		if (batch && !watch && !link && (args.length - argPos == 1 || (args.length - argPos) % 2 == 0)) {
+			System.exit(batch(a, options, Arrays.asList(args).subList(argPos, args.length), threads) ? 0 : 1);
+		}
+		if (compile || batch || (watch && link) || (link ? args.length - argPos < 2 : args.length - argPos != 2)) {
+			System.err.println("USAGE: ggasm [-cache <dir>] [-norelax] [-nocompress] [-stream|-inmemory] [-abbreviations <count>] [-peephole[=<rules>]] [-dump] [-watch] [-local] <infile> <outfile>");
+			System.err.println("       ggasm [options] -link <module or infile>... <outfile>");
+			System.err.println("       ggasm [options] -batch [-threads <count>] <manifest> | <infile> <outfile>...");
+			System.err.println("       ggasm [-cache <dir>] -compile <infile>...");
+			System.err.println("       ggasm -verify <gamefile>...");
+			System.err.println("       ggasm -server [-port <port>] [-threads <count>] [-queue <count>]");
+			return;
 		}
+		String outfile = args[args.length - 1];
 
-		try( PrintWriter out = new PrintWriter("codedump.txt") ){
-			out.println(a.getObjectFile().dumpCode());
-		} catch (IOException e) {
-			System.err.println(e);
+		if (watch) {
+			try (BuildDaemon daemon = new BuildDaemon(a, args[argPos], outfile)) {
+				daemon.registerMBean();
+				daemon.run();
+			} catch (IOException | JMException e) {
+				System.err.println("ERROR: " + e);
+				System.exit(1);
+			}
+			return;
 		}
 
-		try( PrintWriter out = new PrintWriter("symbols.txt") ){
-			out.println(a.getObjectFile().dumpSymbols());
-			out.println("\n");
-			out.println(a.getObjectFile().dumpConstants());
-		} catch (IOException e) {
-			System.err.println(e);
+		if (!watch && !link && !local) {
+			// hand the build to a build server, if one is running
+			Integer status = BuildClient.tryBuild(options, args[argPos], outfile);
+			if (status != null) {
+				System.exit(status);
+			}
 		}
 
-		try( PrintWriter out = new PrintWriter("strings.txt") ){
-			out.println(a.getObjectFile().dumpStrings());
-		} catch (IOException e) {
-			System.err.println(e);
+		boolean built = false;
+		if (link ? a.fromModules(Arrays.asList(args).subList(argPos, args.length - 1)) : a.fromFile(args[argPos])) {
+			built = a.build(outfile);
+		} else {
+			System.err.println("Errors occured during assembly.");
+			System.exit(1);
+		}
+		System.err.print(a.report());
+		if (!built) {
+			System.exit(1);
 		}
 	}
 }
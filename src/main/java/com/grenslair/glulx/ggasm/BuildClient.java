@@ -0,0 +1,176 @@
+package com.grenslair.glulx.ggasm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The BuildClient hands builds to a running BuildServer. If no server is
+ * running, or it is too busy to take the build, the caller builds the file
+ * itself. The same goes for a server file that might not have been written
+ * by this user's server, for a server running another version of the
+ * assembler, and for a server that stops responding before the game file is
+ * built. Once the client has told the server to put the game file in place,
+ * it no longer builds the file itself, so the two never write it at once.
+ */
+public class BuildClient {
+	/** how long to wait when connecting to a server that may not be there */
+	private static final int CONNECT_TIMEOUT = 250;
+	/** how long to wait for the server to greet a new connection */
+	private static final int GREETING_TIMEOUT = 1000;
+	/** how long to wait for a build before giving up on the server */
+	private static final int BUILD_TIMEOUT = 5 * 60 * 1000;
+	/** the longest messages accepted from the server */
+	private static final int MAX_MESSAGES = 16 << 20;
+
+	/**
+	 * Build a game file on the build server, if one is running. Messages and
+	 * errors from the build are printed to System.err.
+	 * @param options  the command line options for the build
+	 * @param input    the name of the source file
+	 * @param output   the name of the game file
+	 * @return the exit status for the build, or null if no server built it
+	 */
+	public static Integer tryBuild(List<String> options, String input, String output) {
+		Path serverFile = BuildServer.serverFile();
+		if (!Files.exists(serverFile, LinkOption.NOFOLLOW_LINKS)) {
+			return null;
+		}
+		try (Socket socket = new Socket()) {
+			if (!isPrivate(serverFile)) {
+				System.err.println("ignoring build server file " + serverFile + ": it may have been written by another user");
+				return null;
+			}
+			String[] server = new String(Files.readAllBytes(serverFile), StandardCharsets.US_ASCII).trim().split(" ");
+			if (server.length != 2) {
+				return null;
+			}
+			int port = Integer.parseInt(server[0]);
+			socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT);
+			socket.setSoTimeout(GREETING_TIMEOUT);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			if (in.readInt() != BuildServer.MAGIC || in.readInt() != BuildServer.VERSION) {
+				return null;
+			}
+			int major = in.readInt(), minor = in.readInt(), patch = in.readInt();
+			if (major != Assemble.majorVersion || minor != Assemble.minorVersion
+					|| patch != Assemble.patchVersion) {
+				System.err.println("ignoring build server: it is running version " + major + "." + minor + "."
+						+ patch);
+				return null;
+			}
+			socket.setSoTimeout(BUILD_TIMEOUT);
+
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeInt(BuildServer.MAGIC);
+			out.writeInt(BuildServer.VERSION);
+			out.writeUTF(server[1]);
+			// the server has its own working directory
+			List<String> absolute = new ArrayList<String>(options);
+			for (int i = 0; i + 1 < absolute.size(); ++i) {
+				if (absolute.get(i).equals("-cache")) {
+					absolute.set(i + 1, absolutePath(absolute.get(i + 1)));
+				}
+			}
+			out.writeInt(absolute.size());
+			for (String option : absolute) {
+				out.writeUTF(option);
+			}
+			out.writeByte(BuildServer.REQUEST_FILES);
+			out.writeUTF(absolutePath(input));
+			out.writeUTF(absolutePath(output));
+			out.flush();
+
+			int status = in.readInt();
+			long assemblyMicros = in.readLong();
+			long buildMicros = in.readLong();
+			int length = in.readInt();
+			if (length < 0 || length > MAX_MESSAGES) {
+				return null;
+			}
+			byte[] messages = new byte[length];
+			in.readFully(messages);
+			if (status == BuildServer.STATUS_REFUSED || in.readInt() != -1) {
+				return null;
+			}
+			System.err.print(new String(messages, StandardCharsets.UTF_8));
+			if (status == BuildServer.STATUS_OK) {
+				status = commit(in, out, output);
+			}
+			System.err.println(String.format("built by server: %.1f ms assembling, %.1f ms building",
+					assemblyMicros / 1000.0, buildMicros / 1000.0));
+			return status == BuildServer.STATUS_OK ? 0 : 1;
+		} catch (IOException | NumberFormatException e) {
+			// no server, or one that has gone away or stopped responding
+			return null;
+		}
+	}
+
+	/**
+	 * Tell the server to put the game file it built in place. From here on
+	 * the server may be writing the output file, so a server that stops
+	 * responding is a failed build rather than one to do again here.
+	 * @return the status of the build
+	 */
+	private static int commit(DataInputStream in, DataOutputStream out, String output) {
+		try {
+			out.writeByte(BuildServer.COMMIT);
+			out.flush();
+			int status = in.readInt();
+			String message = in.readUTF();
+			if (!message.isEmpty()) {
+				System.err.println(message);
+			}
+			return status;
+		} catch (IOException e) {
+			System.err.println("ERROR: the build server stopped responding while writing " + output);
+			return BuildServer.STATUS_FAILED;
+		}
+	}
+
+	/**
+	 * Check that a server file belongs to this user, as does its directory,
+	 * and that no one else can read or change either of them.
+	 */
+	private static boolean isPrivate(Path file) throws IOException {
+		UserPrincipal user = file.getFileSystem().getUserPrincipalLookupService()
+				.lookupPrincipalByName(System.getProperty("user.name"));
+		Path directory = file.getParent();
+		if (Files.isSymbolicLink(file) || Files.isSymbolicLink(directory)
+				|| !user.equals(Files.getOwner(file, LinkOption.NOFOLLOW_LINKS))
+				|| !user.equals(Files.getOwner(directory, LinkOption.NOFOLLOW_LINKS))) {
+			return false;
+		}
+		if (BuildServer.isPosix()) {
+			Set<PosixFilePermission> filePermissions = Files.getPosixFilePermissions(file, LinkOption.NOFOLLOW_LINKS);
+			Set<PosixFilePermission> directoryPermissions = Files.getPosixFilePermissions(directory,
+					LinkOption.NOFOLLOW_LINKS);
+			for (PosixFilePermission permission : PosixFilePermission.values()) {
+				if (!permission.name().startsWith("OWNER_")
+						&& (filePermissions.contains(permission) || directoryPermissions.contains(permission))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static String absolutePath(String file) {
+		return Paths.get(file).toAbsolutePath().toString();
+	}
+}
@@ -0,0 +1,215 @@
+package com.grenslair.glulx.ggasm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The BuildDaemon keeps running after building a game file, watching its
+ * source files and building it again whenever one of them changes. Builds
+ * are incremental, and since the assembler stays loaded its code is already
+ * compiled by the JIT, so rebuilding after a small change is quick.
+ *
+ * The main source file and everything it includes are watched; the list of
+ * files is updated after every build, so newly added includes are picked up.
+ * The daemon's counters and build times are available through JMX.
+ */
+public class BuildDaemon implements BuildDaemonMXBean, Closeable {
+	/** how long to wait for more changes after one is seen, since saving a
+	 *  file can cause several events */
+	private static final long SETTLE_MILLIS = 50;
+
+	private IncrementalBuild build;
+	private String sourceFile;
+	private WatchService watcher;
+	private Map<Path, WatchKey> directories;
+	private volatile Set<Path> watched;
+	private Set<String> dependencies;
+
+	private volatile int buildCount;
+	private volatile int failedBuildCount;
+	private volatile long lastBuildMillis;
+	private volatile long maxBuildMillis;
+	private volatile long totalBuildMillis;
+
+	/**
+	 * Create a daemon.
+	 * @param settings    the build whose settings are used for each build
+	 * @param sourceFile  the main source file
+	 * @param outputFile  the game file to write
+	 */
+	public BuildDaemon(Build settings, String sourceFile, String outputFile) throws IOException {
+		this.sourceFile = sourceFile;
+		build = new IncrementalBuild(settings, sourceFile, outputFile);
+		watcher = FileSystems.getDefault().newWatchService();
+		directories = new HashMap<Path, WatchKey>();
+		watched = new HashSet<Path>();
+		dependencies = new HashSet<String>();
+	}
+
+	/**
+	 * Make the daemon's counters available through the platform MBean
+	 * server.
+	 * @return the name the daemon was registered under
+	 */
+	public ObjectName registerMBean() throws JMException {
+		ObjectName name = new ObjectName("com.grenslair.glulx.ggasm:type=BuildDaemon");
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		return name;
+	}
+
+	/**
+	 * Build the game file, then keep building it each time a source file
+	 * changes. This only returns if the thread is interrupted.
+	 */
+	public void run() throws IOException {
+		rebuild();
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				boolean changed = changed(key);
+				// gather up the rest of a burst of changes
+				while ((key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+					changed |= changed(key);
+				}
+				if (changed) {
+					rebuild();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Check whether the events of a watch key include a change to one of the
+	 * watched files.
+	 */
+	private boolean changed(WatchKey key) {
+		boolean changed = false;
+		Path directory = (Path)key.watchable();
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				changed = true;
+			} else if (watched.contains(directory.resolve((Path)event.context()))) {
+				changed = true;
+			}
+		}
+		key.reset();
+		return changed;
+	}
+
+	/**
+	 * Build the game file and update the set of watched files.
+	 * @return true if the build succeeded
+	 */
+	public boolean rebuild() throws IOException {
+		long start = System.nanoTime();
+		boolean ok = build.build();
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		lastBuildMillis = millis;
+		maxBuildMillis = Math.max(maxBuildMillis, millis);
+		totalBuildMillis += millis;
+		++buildCount;
+		if (ok) {
+			System.err.println(build.report() + " in " + millis + " ms");
+			dependencies = build.getObjectFile().getDependencies();
+		} else {
+			++failedBuildCount;
+			System.err.println("build failed after " + millis + " ms");
+		}
+		// after a failed build, keep watching the files the last good one used
+		watch(dependencies);
+		return ok;
+	}
+
+	/**
+	 * Watch the main source file and a set of included files, and stop
+	 * watching directories that no longer hold any of them.
+	 */
+	private void watch(Set<String> files) throws IOException {
+		Set<Path> paths = new HashSet<Path>();
+		paths.add(absolute(sourceFile));
+		for (String file : files) {
+			paths.add(absolute(file));
+		}
+		Set<Path> needed = new HashSet<Path>();
+		for (Path path : paths) {
+			Path directory = path.getParent();
+			needed.add(directory);
+			if (!directories.containsKey(directory)) {
+				directories.put(directory, directory.register(watcher,
+						StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY));
+			}
+		}
+		directories.keySet().removeIf(directory -> {
+			if (needed.contains(directory)) {
+				return false;
+			}
+			directories.get(directory).cancel();
+			return true;
+		});
+		watched = paths;
+	}
+
+	private static Path absolute(String file) {
+		return Paths.get(file).toAbsolutePath().normalize();
+	}
+
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+	}
+
+	@Override
+	public int getBuildCount() {
+		return buildCount;
+	}
+	@Override
+	public int getFailedBuildCount() {
+		return failedBuildCount;
+	}
+	@Override
+	public long getLastBuildMillis() {
+		return lastBuildMillis;
+	}
+	@Override
+	public long getMaxBuildMillis() {
+		return maxBuildMillis;
+	}
+	@Override
+	public double getAverageBuildMillis() {
+		return buildCount == 0 ? 0 : (double)totalBuildMillis / buildCount;
+	}
+	@Override
+	public int getLastParsedFiles() {
+		return build.getParsedCount();
+	}
+	@Override
+	public int getLastReusedFiles() {
+		return build.getReusedCount();
+	}
+	@Override
+	public int getLastBytesWritten() {
+		return build.getRewrittenBytes();
+	}
+	@Override
+	public int getWatchedFileCount() {
+		return watched.size();
+	}
+}
@@ -0,0 +1,26 @@
+package com.grenslair.glulx.ggasm;
+
+/**
+ * The management interface of a BuildDaemon, giving the counters and timing
+ * of its builds.
+ */
+public interface BuildDaemonMXBean {
+	/** the number of builds done, including the first */
+	int getBuildCount();
+	/** the number of builds that failed */
+	int getFailedBuildCount();
+	/** how long the last build took, in milliseconds */
+	long getLastBuildMillis();
+	/** how long the slowest build took, in milliseconds */
+	long getMaxBuildMillis();
+	/** the average time taken by a build, in milliseconds */
+	double getAverageBuildMillis();
+	/** the number of files the last build had to parse */
+	int getLastParsedFiles();
+	/** the number of files the last build replayed from memory */
+	int getLastReusedFiles();
+	/** the number of bytes of the game file the last build wrote */
+	int getLastBytesWritten();
+	/** the number of files being watched for changes */
+	int getWatchedFileCount();
+}
@@ -0,0 +1,437 @@
+package com.grenslair.glulx.ggasm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The BuildServer assembles game files for other processes, so each build
+ * doesn't have to pay for starting a new JVM. It listens on a loopback
+ * socket, and writes the port it is listening on to a file that the
+ * BuildClient looks for, along with a random token that every request has
+ * to carry. The file is kept in a directory in the user's home directory
+ * that only the user can read, so other users on the machine can neither
+ * make requests nor pose as the server.
+ *
+ * Each connection carries one request: either the names of an input and an
+ * output file, or the source of a file to assemble, in which case the game
+ * file is sent back. Requests are handled at the same time on a fixed number
+ * of threads, each with its own game file; requests that arrive while the
+ * threads and queue are full are turned away, and the client builds the file
+ * itself. Parsed include files are kept in memory and shared between
+ * requests.
+ *
+ * When a connection is accepted, the server first sends the magic number,
+ * the protocol version and the major, minor and patch versions of the
+ * assembler, as ints; a client talking to a server of another version builds
+ * the file itself. A request is then made of:
+ * <ul>
+ * <li>the magic number and protocol version, as ints</li>
+ * <li>the token from the server file</li>
+ * <li>the number of command line options, then each option</li>
+ * <li>a byte giving the kind of request</li>
+ * <li>for REQUEST_FILES, the input and output file names</li>
+ * <li>for REQUEST_SOURCE, the name of the source file (used in messages and
+ * to find the files it includes), then the length of the source and its
+ * bytes</li>
+ * </ul>
+ * and the response of:
+ * <ul>
+ * <li>the status: STATUS_OK, STATUS_FAILED or STATUS_REFUSED</li>
+ * <li>the time spent assembling and then building, in microseconds, as
+ * longs</li>
+ * <li>the messages and errors of the build, as a length and UTF-8 bytes</li>
+ * <li>the length of the game file, or -1 if it isn't being sent, then its
+ * bytes</li>
+ * </ul>
+ * Strings are written with DataOutputStream.writeUTF.
+ *
+ * The magic number, version and token have to arrive within
+ * HANDSHAKE_TIMEOUT of the connection being accepted; until they have, the
+ * connection is held by one of a few handshake threads rather than a build
+ * thread. A REQUEST_FILES build is written to a temporary file beside the
+ * output file. After a STATUS_OK response the client sends COMMIT, and only
+ * then is the output file replaced, after which the server sends a final
+ * status and message. A client that gave up waiting and built the file
+ * itself never sends COMMIT, so the two never write the output file at the
+ * same time.
+ */
+public class BuildServer implements Closeable {
+	static final int MAGIC = 0x47475253; // GGRS
+	static final int VERSION = 3;
+	static final byte REQUEST_FILES = 0;
+	static final byte REQUEST_SOURCE = 1;
+	static final byte COMMIT = 1;
+	static final int STATUS_OK = 0;
+	static final int STATUS_FAILED = 1;
+	static final int STATUS_REFUSED = 2;
+	/** the most command line options a request may have */
+	static final int MAX_OPTIONS = 256;
+	/** the longest source a request may send */
+	static final int MAX_SOURCE = 64 << 20;
+	/** the number of random bytes in the token, which is sent as hex */
+	static final int TOKEN_BYTES = 32;
+	/** the length of the magic number, version and token */
+	private static final int HANDSHAKE_LENGTH = 4 + 4 + 2 + 2 * TOKEN_BYTES;
+	/** how long a new connection has to send its magic number, version and token */
+	private static final int HANDSHAKE_TIMEOUT = 1000;
+	/** the number of connections whose handshakes are read at once */
+	private static final int HANDSHAKE_THREADS = 4;
+	/** how long to wait for each read of the rest of a request, and for COMMIT */
+	private static final int REQUEST_TIMEOUT = 10 * 1000;
+
+	private static final Set<PosixFilePermission> USER_ONLY = PosixFilePermissions.fromString("rwx------");
+	private static final Set<PosixFilePermission> USER_READ_WRITE = PosixFilePermissions.fromString("rw-------");
+
+	private ServerSocket socket;
+	private ThreadPoolExecutor handshakes;
+	private ThreadPoolExecutor workers;
+	private ParseCache cache;
+	private String token;
+	private Path serverFile;
+
+	/**
+	 * Start a server.
+	 * @param port     the port to listen on, or 0 for any free port
+	 * @param threads  the number of requests handled at once
+	 * @param queue    the number of requests that can wait for a thread
+	 */
+	public BuildServer(int port, int threads, int queue) throws IOException {
+		socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		handshakes = new ThreadPoolExecutor(HANDSHAKE_THREADS, HANDSHAKE_THREADS, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(queue, 1)), daemon("ggasm-handshake"));
+		workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queue), daemon("ggasm-build"));
+		cache = new ParseCache();
+		byte[] random = new byte[TOKEN_BYTES];
+		new SecureRandom().nextBytes(random);
+		StringBuilder sb = new StringBuilder();
+		for (byte b : random) {
+			sb.append(String.format("%02x", b & 0xFF));
+		}
+		token = sb.toString();
+	}
+
+	/**
+	 * Return the file a running server's port and token are written to.
+	 * @return the name of the file
+	 */
+	static Path serverFile() {
+		return Paths.get(System.getProperty("user.home"), ".ggasm", "server");
+	}
+
+	private static ThreadFactory daemon(String name) {
+		return runnable -> {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	static boolean isPosix() {
+		return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+	}
+
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Accept requests until the server is closed.
+	 */
+	public void run() throws IOException {
+		writeServerFile();
+		while (!socket.isClosed()) {
+			Socket connection;
+			try {
+				connection = socket.accept();
+			} catch (IOException e) {
+				if (socket.isClosed()) {
+					break;
+				}
+				throw e;
+			}
+			try {
+				handshakes.execute(() -> admit(connection));
+			} catch (RejectedExecutionException e) {
+				closeQuietly(connection);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		handshakes.shutdown();
+		workers.shutdown();
+		socket.close();
+		if (serverFile != null) {
+			Files.deleteIfExists(serverFile);
+		}
+	}
+
+	/**
+	 * Write the port and token to the server file, which is only readable
+	 * by this user.
+	 */
+	private void writeServerFile() throws IOException {
+		serverFile = serverFile();
+		Path directory = serverFile.getParent();
+		Path temp;
+		if (isPosix()) {
+			Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(USER_ONLY));
+			Files.setPosixFilePermissions(directory, USER_ONLY);
+			FileAttribute<Set<PosixFilePermission>> attribute = PosixFilePermissions.asFileAttribute(USER_READ_WRITE);
+			temp = Files.createTempFile(directory, "server", ".tmp", attribute);
+		} else {
+			Files.createDirectories(directory);
+			temp = Files.createTempFile(directory, "server", ".tmp");
+		}
+		try {
+			Files.write(temp, (getPort() + " " + token + "\n").getBytes(StandardCharsets.US_ASCII));
+			Files.move(temp, serverFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Greet a new connection and check its handshake, then pass it to a
+	 * build thread.
+	 */
+	private void admit(Socket connection) {
+		DataInputStream handshake;
+		try {
+			// lets the client tell it has reached a working server of its version
+			DataOutputStream greeting = new DataOutputStream(connection.getOutputStream());
+			greeting.writeInt(MAGIC);
+			greeting.writeInt(VERSION);
+			greeting.writeInt(Assemble.majorVersion);
+			greeting.writeInt(Assemble.minorVersion);
+			greeting.writeInt(Assemble.patchVersion);
+			greeting.flush();
+			handshake = new DataInputStream(new ByteArrayInputStream(readHandshake(connection)));
+			if (handshake.readInt() != MAGIC || handshake.readInt() != VERSION) {
+				refuse(connection, "unknown request");
+				return;
+			}
+			if (!MessageDigest.isEqual(handshake.readUTF().getBytes(StandardCharsets.US_ASCII),
+					token.getBytes(StandardCharsets.US_ASCII))) {
+				refuse(connection, "bad token");
+				return;
+			}
+			connection.setSoTimeout(REQUEST_TIMEOUT);
+		} catch (IOException e) {
+			// the client was too slow, sent something else, or has gone away
+			closeQuietly(connection);
+			return;
+		}
+		try {
+			workers.execute(() -> handle(connection));
+		} catch (RejectedExecutionException e) {
+			refuse(connection, "the build server is busy");
+		}
+	}
+
+	/**
+	 * Read the magic number, version and token, which have to arrive within
+	 * HANDSHAKE_TIMEOUT however slowly their bytes are sent.
+	 */
+	private static byte[] readHandshake(Socket connection) throws IOException {
+		byte[] handshake = new byte[HANDSHAKE_LENGTH];
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(HANDSHAKE_TIMEOUT);
+		InputStream in = connection.getInputStream();
+		for (int done = 0; done < handshake.length; ) {
+			long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (left <= 0) {
+				throw new SocketTimeoutException("no handshake");
+			}
+			connection.setSoTimeout((int)left);
+			int count = in.read(handshake, done, handshake.length - done);
+			if (count < 0) {
+				throw new EOFException();
+			}
+			done += count;
+		}
+		return handshake;
+	}
+
+	private void handle(Socket connection) {
+		try (Socket c = connection;
+				DataInputStream in = new DataInputStream(new BufferedInputStream(c.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(c.getOutputStream()))) {
+			int count = in.readInt();
+			if (count < 0 || count > MAX_OPTIONS) {
+				respond(out, STATUS_REFUSED, 0, 0, "too many options", null);
+				return;
+			}
+			List<String> options = new ArrayList<String>();
+			for (int i = 0; i < count; ++i) {
+				options.add(in.readUTF());
+			}
+			byte kind = in.readByte();
+			String input = in.readUTF();
+			String output = null;
+			byte[] source = null;
+			if (kind == REQUEST_FILES) {
+				output = in.readUTF();
+			} else if (kind != REQUEST_SOURCE) {
+				respond(out, STATUS_REFUSED, 0, 0, "unknown request", null);
+				return;
+			} else {
+				int length = in.readInt();
+				if (length < 0 || length > MAX_SOURCE) {
+					respond(out, STATUS_REFUSED, 0, 0, "bad source length", null);
+					return;
+				}
+				source = new byte[length];
+				in.readFully(source);
+			}
+			build(in, out, options, input, output, source);
+		} catch (IOException e) {
+			// the client has gone away; there is no one to tell
+		}
+	}
+
+	/**
+	 * Handle a single request and send the response.
+	 */
+	private void build(DataInputStream in, DataOutputStream out, List<String> options, String input, String output,
+			byte[] source) throws IOException {
+		ByteArrayOutputStream messages = new ByteArrayOutputStream();
+		PrintStream log = new PrintStream(messages, true, "UTF-8");
+		Build build = new Build();
+		build.setLog(log);
+		build.setSharedCache(cache);
+		String[] args = options.toArray(new String[options.size()]);
+		for (int pos = 0; pos < args.length; ) {
+			int next = build.parseOption(args, pos);
+			if (next <= pos) {
+				if (next == pos) {
+					log.println("ERROR: unknown option \"" + args[pos] + "\"");
+				}
+				respond(out, STATUS_FAILED, 0, 0, messages.toString("UTF-8"), null);
+				return;
+			}
+			pos = next;
+		}
+
+		long start = System.nanoTime();
+		boolean ok;
+		if (source == null) {
+			ok = build.fromFile(input);
+		} else {
+			ByteBuffer content = ByteBuffer.wrap(source);
+			ok = build.fromFile(input, filename -> filename.equals(input)
+					? content.duplicate() : SourceResolver.FILES.read(filename));
+		}
+		long assembled = System.nanoTime();
+		ByteBuffer code = null;
+		Path temp = null;
+		try {
+			if (ok) {
+				if (source == null) {
+					temp = build.buildBeside(output);
+					ok = temp != null;
+				} else {
+					code = build.buildInMemory();
+					ok = code != null;
+				}
+			}
+			long built = System.nanoTime();
+			log.print(build.report());
+			respond(out, ok ? STATUS_OK : STATUS_FAILED, (assembled - start) / 1000, (built - assembled) / 1000,
+					messages.toString("UTF-8"), code);
+			if (temp != null) {
+				// a client that gave up on this build is building the file
+				// itself, and doesn't send COMMIT
+				if (in.readByte() != COMMIT) {
+					return;
+				}
+				try {
+					build.replaceOutput(temp, output);
+					out.writeInt(STATUS_OK);
+					out.writeUTF("");
+				} catch (IOException e) {
+					out.writeInt(STATUS_FAILED);
+					out.writeUTF("ERROR writing " + output + ": " + e);
+				}
+				out.flush();
+			}
+		} finally {
+			if (temp != null) {
+				Files.deleteIfExists(temp);
+			}
+		}
+	}
+
+	private static void respond(DataOutputStream out, int status, long assemblyMicros, long buildMicros,
+			String messages, ByteBuffer code) throws IOException {
+		out.writeInt(status);
+		out.writeLong(assemblyMicros);
+		out.writeLong(buildMicros);
+		byte[] text = messages.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(text.length);
+		out.write(text);
+		if (code == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(code.remaining());
+			byte[] chunk = new byte[Math.min(code.remaining(), 1 << 16)];
+			while (code.hasRemaining()) {
+				int length = Math.min(chunk.length, code.remaining());
+				code.get(chunk, 0, length);
+				out.write(chunk, 0, length);
+			}
+		}
+		out.flush();
+	}
+
+	private static void closeQuietly(Socket connection) {
+		try {
+			connection.close();
+		} catch (IOException e) {
+			// it is closed either way
+		}
+	}
+
+	private static void refuse(Socket connection, String reason) {
+		try (Socket c = connection;
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(c.getOutputStream()))) {
+			respond(out, STATUS_REFUSED, 0, 0, reason, null);
+		} catch (IOException e) {
+			// the client has gone away
+		}
+	}
+}
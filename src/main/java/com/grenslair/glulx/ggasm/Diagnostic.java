@@ -0,0 +1,71 @@
+package com.grenslair.glulx.ggasm;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A message or error reported while assembling or building a game file,
+ * along with where in the source it was found, if that is known.
+ */
+public class Diagnostic {
+	public enum Severity {
+		INFO,
+		ERROR
+	}
+
+	/** the form of a message that starts with its source, as "file(line): " */
+	private static final Pattern SOURCE = Pattern.compile("(.+?)\\((\\d+)\\):\\s*(.*)", Pattern.DOTALL);
+
+	private Severity severity;
+	private String file;
+	private int line;
+	private String message;
+
+	/**
+	 * Create a diagnostic.
+	 * @param severity  how serious it is
+	 * @param file      the source file it is about, or null if none
+	 * @param line      the line of the source file, or 0 if not known
+	 * @param message   the text of the message
+	 */
+	public Diagnostic(Severity severity, String file, int line, String message) {
+		this.severity = severity;
+		this.file = file;
+		this.line = line;
+		this.message = message;
+	}
+
+	/**
+	 * Create a diagnostic from the text of a message, taking the source file
+	 * and line from the start of the text if it gives them.
+	 * @param severity  how serious it is
+	 * @param text      the text of the message
+	 * @return the diagnostic
+	 */
+	public static Diagnostic parse(Severity severity, String text) {
+		Matcher m = SOURCE.matcher(text);
+		if (m.matches()) {
+			return new Diagnostic(severity, m.group(1), Integer.parseInt(m.group(2)), m.group(3));
+		}
+		return new Diagnostic(severity, null, 0, text);
+	}
+
+	public Severity getSeverity() {
+		return severity;
+	}
+	public String getFile() {
+		return file;
+	}
+	public int getLine() {
+		return line;
+	}
+	public String getMessage() {
+		return message;
+	}
+
+	@Override
+	public String toString() {
+		String text = file == null ? message : file + "(" + line + "): " + message;
+		return severity == Severity.ERROR ? "ERROR: " + text : text;
+	}
+}
@@ -0,0 +1,45 @@
+package com.grenslair.glulx.ggasm;
+
+/**
+ * A Directive describes how to parse one kind of statement, identified by the
+ * first token of the statement. Both assembler directives and mnemonics are
+ * handled this way so that each source line needs a single lookup to find
+ * out what it is.
+ */
+public class Directive {
+    /**
+     * The code that parses a statement.
+     */
+    public interface Handler {
+        /**
+         * Parse a statement, adding its result to the game file being
+         * assembled.
+         *
+         * @param assemble
+         *            the assembler processing the statement
+         * @param stmt
+         *            the statement; the first token is the directive name
+         */
+        void parse(Assemble assemble, TokenCursor stmt) throws AsmException;
+    }
+
+    public final String name;
+    public final boolean afterLabel;
+    public final Handler handler;
+
+    /**
+     * Create a new directive.
+     *
+     * @param name
+     *            the name of the directive
+     * @param afterLabel
+     *            true if the directive may follow a label on the same line
+     * @param handler
+     *            the code to parse the directive
+     */
+    public Directive(String name, boolean afterLabel, Handler handler) {
+        this.name = name;
+        this.afterLabel = afterLabel;
+        this.handler = handler;
+    }
+}
@@ -0,0 +1,175 @@
+package com.grenslair.glulx.ggasm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The GameFileVerifier checks that an existing Glulx game file has a sensible
+ * header and the correct checksum. The file is memory mapped rather than read,
+ * and the checksum is added up in parallel, so large files and large numbers
+ * of files can be checked quickly.
+ */
+public class GameFileVerifier {
+	/** the most words added up by one task */
+	private static final int WORDS_PER_TASK = 1 << 16;
+	private static final int MAGIC = 0x476C756C; // Glul
+	private static final int HEADER_SIZE = 36;
+
+	private ForkJoinPool pool;
+
+	/**
+	 * Create a verifier.
+	 * @param pool  the pool to add up checksums on, or null to do it on the
+	 *              calling thread
+	 */
+	public GameFileVerifier(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Check a game file.
+	 * @param filename  the name of the file
+	 * @return a description of each problem found; empty if there were none
+	 */
+	public List<String> verify(String filename) throws IOException {
+		List<String> problems = new ArrayList<String>();
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			long length = channel.size();
+			if (length < HEADER_SIZE) {
+				problems.add("file is too short to hold a header (" + length + " bytes)");
+				return problems;
+			}
+			if (length % 4 != 0 || length > Integer.MAX_VALUE) {
+				problems.add("file length " + length + " is not a whole number of words");
+				return problems;
+			}
+			MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			checkHeader(file, (int)length, problems);
+			if (problems.isEmpty()) {
+				int stored = file.getInt(32);
+				int actual = checksum(file.asIntBuffer()) - stored;
+				if (actual != stored) {
+					problems.add(String.format("checksum is %08x, but should be %08x", stored, actual));
+				}
+			}
+		}
+		return problems;
+	}
+
+	private static void checkHeader(ByteBuffer file, int length, List<String> problems) {
+		if (file.getInt(0) != MAGIC) {
+			problems.add("not a Glulx game file");
+			return;
+		}
+		int version = file.getInt(4);
+		if (version < 0x00020000 || version > 0x000301FF) {
+			problems.add(String.format("unsupported Glulx version %08x", version));
+		}
+		int ramStart = file.getInt(8);
+		int extStart = file.getInt(12);
+		int endMem = file.getInt(16);
+		int stackSize = file.getInt(20);
+		if (ramStart % 256 != 0 || extStart % 256 != 0 || endMem % 256 != 0 || stackSize % 256 != 0) {
+			problems.add("RAMSTART, EXTSTART, ENDMEM and the stack size must be multiples of 256");
+		}
+		if (ramStart < HEADER_SIZE || ramStart > extStart || extStart > endMem) {
+			problems.add(String.format("bad memory layout: RAMSTART %08x, EXTSTART %08x, ENDMEM %08x",
+					ramStart, extStart, endMem));
+		}
+		if (extStart != length) {
+			problems.add("EXTSTART is " + extStart + ", but the file is " + length + " bytes long");
+		}
+		int start = file.getInt(24);
+		if (start < HEADER_SIZE || start >= extStart) {
+			problems.add(String.format("start function %08x is outside the game file", start));
+		}
+		int decodingTable = file.getInt(28);
+		if (decodingTable != 0 && (decodingTable < HEADER_SIZE || decodingTable >= extStart)) {
+			problems.add(String.format("decoding table %08x is outside the game file", decodingTable));
+		}
+	}
+
+	/**
+	 * Add up every word in a buffer.
+	 * @param words  the words to add up
+	 * @return the sum
+	 */
+	public int checksum(IntBuffer words) {
+		SumTask task = new SumTask(words, 0, words.limit());
+		return pool == null ? task.compute() : pool.invoke(task);
+	}
+
+	private static class SumTask extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = 1L;
+		private IntBuffer words;
+		private int from;
+		private int to;
+
+		SumTask(IntBuffer words, int from, int to) {
+			this.words = words;
+			this.from = from;
+			this.to = to;
+		}
+		@Override
+		protected Integer compute() {
+			if (to - from > WORDS_PER_TASK) {
+				int middle = (from + to) >>> 1;
+				SumTask left = new SumTask(words, from, middle);
+				left.fork();
+				int right = new SumTask(words, middle, to).compute();
+				return left.join() + right;
+			}
+			int sum = 0;
+			for (int i = from; i < to; ++i) {
+				sum += words.get(i);
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * Add up the big-endian words covering a range of bytes, counting only
+	 * the bytes in the range. The range doesn't need to start or end on a
+	 * word boundary; adding up the sums of ranges that together cover a
+	 * buffer gives the checksum of the whole buffer.
+	 * @param code  the buffer; index 0 must be the start of a word
+	 * @param from  the first byte of the range
+	 * @param to    the end of the range
+	 * @return the sum
+	 */
+	public static int checksum(ByteBuffer code, int from, int to) {
+		return checksum(code, from, to, 0);
+	}
+	/**
+	 * Add up the big-endian words covering a range of bytes, where index 0
+	 * of the buffer is at some position in the game file.
+	 * @param code  the buffer
+	 * @param from  the first byte of the range
+	 * @param to    the end of the range
+	 * @param base  the game file position of index 0 of the buffer
+	 * @return the sum
+	 */
+	public static int checksum(ByteBuffer code, int from, int to, int base) {
+		int sum = 0;
+		int i = from;
+		for (; i < to && ((base + i) & 3) != 0; ++i) {
+			sum += (code.get(i) & 0xFF) << (24 - 8 * ((base + i) & 3));
+		}
+		for (; i + 4 <= to; i += 4) {
+			sum += code.getInt(i);
+		}
+		for (; i < to; ++i) {
+			sum += (code.get(i) & 0xFF) << (24 - 8 * ((base + i) & 3));
+		}
+		return sum;
+	}
+}
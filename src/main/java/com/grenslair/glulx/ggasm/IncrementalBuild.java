@@ -0,0 +1,186 @@
+package com.grenslair.glulx.ggasm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * An IncrementalBuild builds the same game file over and over as its source
+ * changes, doing as little of the work again as it can.
+ *
+ * The parsed form of every source file is kept in memory between builds, in
+ * a parse cache. A file whose content (and everything it depends on) has not
+ * changed is neither lexed nor parsed again; its lines, constants and strings
+ * are replayed from the cache instead. The game file is then laid out and
+ * built in memory, and compared with the output file left by the previous
+ * build: only the header and the part from the first byte that changed
+ * onward are written again. The memory the game file is built in is kept
+ * from one build to the next.
+ */
+public class IncrementalBuild {
+	private static final int HEADER_SIZE = 36;
+	/** the size of the pieces the old output file is compared in */
+	private static final int COMPARE_SIZE = 1 << 16;
+
+	private Build settings;
+	private String sourceFile;
+	private String outputFile;
+	private ParseCache cache;
+	private ByteBuffer compareBuffer;
+	private ObjectFile last;
+	private int parsed;
+	private int reused;
+	private int rewritten;
+
+	/**
+	 * Create an incremental build.
+	 * @param settings    the build whose settings are used for each game file
+	 * @param sourceFile  the main source file
+	 * @param outputFile  the game file to write
+	 */
+	public IncrementalBuild(Build settings, String sourceFile, String outputFile) {
+		this.settings = settings;
+		this.sourceFile = sourceFile;
+		this.outputFile = outputFile;
+		cache = new ParseCache();
+	}
+
+	/**
+	 * Build the game file again.
+	 * @return true if the file was built successfully, false otherwise
+	 */
+	public boolean build() {
+		ObjectFile asm = settings.newObjectFile();
+		asm.setOutputMode(ObjectFile.OutputMode.BUFFER);
+		if (last != null) {
+			asm.reuseByteCode(last);
+		}
+		int hits = cache.getHits(), misses = cache.getMisses();
+		try {
+			Assemble.assemble(asm, sourceFile, new SourceLoader(ForkJoinPool.commonPool(), cache));
+		} catch (AsmException e) {
+			settings.error(e.getMessage());
+			return false;
+		} finally {
+			parsed = cache.getMisses() - misses;
+			reused = cache.getHits() - hits;
+		}
+		if (!asm.doBuild() || asm.getByteCode() == null) {
+			return false;
+		}
+		try {
+			rewritten = update(asm.getByteCode());
+		} catch (IOException e) {
+			settings.error("writing " + outputFile + ": " + e);
+			return false;
+		}
+		last = asm;
+		return true;
+	}
+
+	/**
+	 * Return the game file built by the last successful build. Its byte code
+	 * is only available until the next build, which reuses the memory.
+	 * @return the game file, or null if there has not been one
+	 */
+	public ObjectFile getObjectFile() {
+		return last;
+	}
+
+	/**
+	 * Return the number of files the last build parsed again.
+	 */
+	public int getParsedCount() {
+		return parsed;
+	}
+
+	/**
+	 * Return the number of files the last build replayed from memory rather
+	 * than parsing.
+	 */
+	public int getReusedCount() {
+		return reused;
+	}
+
+	/**
+	 * Return the number of bytes of the output file the last build wrote.
+	 */
+	public int getRewrittenBytes() {
+		return rewritten;
+	}
+
+	/**
+	 * Return a summary of what the last build did again.
+	 * @return the summary
+	 */
+	public String report() {
+		return "incremental build: " + parsed + " files parsed, " + reused + " reused, " + rewritten
+				+ " bytes written";
+	}
+
+	/**
+	 * Bring the output file up to date with a newly built game file, writing
+	 * only the header and everything from the first byte that differs. A new
+	 * or very short output file is written whole.
+	 * @param code  the new game file
+	 * @return the number of bytes written
+	 */
+	private int update(ByteBuffer code) throws IOException {
+		int length = code.limit();
+		try (FileChannel channel = FileChannel.open(Paths.get(outputFile), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			int first = firstDifference(channel, code);
+			if (first < HEADER_SIZE) {
+				write(channel, code, 0, length);
+			} else {
+				write(channel, code, 0, HEADER_SIZE);
+				write(channel, code, first, length);
+			}
+			if (channel.size() > length) {
+				channel.truncate(length);
+			}
+			return first < HEADER_SIZE ? length : HEADER_SIZE + length - first;
+		}
+	}
+
+	/**
+	 * Find the first byte after the header where the output file differs
+	 * from a game file.
+	 */
+	private int firstDifference(FileChannel channel, ByteBuffer code) throws IOException {
+		if (compareBuffer == null) {
+			compareBuffer = ByteBuffer.allocateDirect(COMPARE_SIZE);
+		}
+		int end = (int)Math.min(channel.size(), code.limit());
+		int at = HEADER_SIZE;
+		while (at < end) {
+			compareBuffer.clear();
+			compareBuffer.limit(Math.min(COMPARE_SIZE, end - at));
+			while (compareBuffer.hasRemaining()) {
+				if (channel.read(compareBuffer, at + compareBuffer.position()) < 0) {
+					return at;
+				}
+			}
+			compareBuffer.flip();
+			for (int i = 0; i < compareBuffer.limit(); ++i) {
+				if (compareBuffer.get(i) != code.get(at + i)) {
+					return at + i;
+				}
+			}
+			at += compareBuffer.limit();
+		}
+		return end;
+	}
+
+	private static void write(FileChannel channel, ByteBuffer code, int from, int to) throws IOException {
+		ByteBuffer out = code.duplicate();
+		out.limit(to);
+		out.position(from);
+		while (out.hasRemaining()) {
+			channel.write(out, out.position());
+		}
+	}
+}
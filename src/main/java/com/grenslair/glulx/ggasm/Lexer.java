@@ -0,0 +1,579 @@
+package com.grenslair.glulx.ggasm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The Lexer turns the UTF-8 encoded content of a source file into a stream of
+ * tokens stored in a TokenBuffer. It works directly on the bytes of the file
+ * (normally a memory-mapped buffer) rather than on a decoded copy; characters
+ * in the ASCII range are classified through a lookup table and only non-ASCII
+ * characters are decoded.
+ */
+public class Lexer {
+    private static final int WHITESPACE = 0x01;
+    private static final int DIGIT = 0x02;
+    private static final int HEX_DIGIT = 0x04;
+    private static final int IDENT_START = 0x08;
+    private static final int IDENT_PART = 0x10;
+
+    /**
+     * Character classes for every ASCII character. These are built from the
+     * same Character methods the lexer has always used so that the table and
+     * the slow path for non-ASCII characters always agree.
+     */
+    private static final byte[] charClass = new byte[128];
+    static {
+        for (int c = 0; c < 128; ++c) {
+            charClass[c] = (byte) classify(c);
+        }
+    }
+
+    private final String inputFile;
+    private final ByteBuffer source;
+    private final int length;
+
+    private int pos;
+    private int line;
+
+    /**
+     * Create a new lexer for the given source.
+     *
+     * @param inputFile
+     *            the name of the file the source was read from; this is
+     *            used for tokens and error messages
+     * @param source
+     *            the UTF-8 encoded file content, from position zero to its
+     *            limit
+     */
+    public Lexer(String inputFile, ByteBuffer source) {
+        this.inputFile = inputFile;
+        this.source = source;
+        this.length = source.limit();
+    }
+
+    /**
+     * Map the content of a file into memory for lexing.
+     *
+     * @param path
+     *            the file to map
+     * @return a read only buffer containing the file content
+     */
+    public static ByteBuffer mapFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Lex the entire source, adding the tokens produced to the given buffer.
+     * Every line (and the end of the file) is terminated by an End token.
+     *
+     * @param tokens
+     *            the buffer to add tokens to
+     */
+    public void lex(TokenBuffer tokens) throws AsmException {
+        if (length == 0) {
+            return;
+        }
+        tokens.setFile(inputFile);
+
+        pos = 0;
+        line = 1;
+        int start, end;
+        int c;
+        while ((c = at(pos)) != 0) {
+
+            // parse end of statement
+            if (c == '\n') {
+                ++pos;
+                ++line;
+                tokens.add(Token.Type.End, line, 0);
+                continue;
+            }
+
+            if (is(WHITESPACE)) {
+                while ((c = at(pos)) != '\n' && is(WHITESPACE)) {
+                    advance();
+                }
+                continue;
+            }
+
+            // end-of-line comment
+            if (c == ';' || (c == '/' && at(pos + 1) == '/')) {
+                tokens.add(Token.Type.End, line, 0);
+                while ((c = at(pos)) != 0 && c != '\n') {
+                    ++pos;
+                }
+                continue;
+            }
+            // block comments
+            if (c == '/' && at(pos + 1) == '*') {
+                pos += 2;
+                while ((c = at(pos)) != 0 && (c != '*' || at(pos + 1) != '/')) {
+                    if (c == '\n') {
+                        ++line;
+                    }
+                    ++pos;
+                }
+                if (c == 0) {
+                    throw new AsmException(inputFile + "(" + line + "): Unterminated block comment.");
+                }
+                pos += 2;
+                continue;
+            }
+
+            // parse character constants
+            if (c == '\'') {
+                ++pos;
+                start = pos;
+                end = scanQuoted('\'');
+                if (end < 0) {
+                    throw new AsmException(inputFile + "(" + line + "): Unterminated character constant.");
+                }
+                String text = doEscapes(decode(start, end));
+
+                if (text.length() == 0) {
+                    throw new AsmException(inputFile + "(" + line + "): empty character constant.");
+                }
+                if (text.length() > 1) {
+                    throw new AsmException(inputFile + "(" + line + "): character constant has multiple characters.");
+                }
+                tokens.add(Token.Type.Integer, line, text.codePointAt(0));
+                continue;
+            }
+
+            // parse strings
+            if (c == '"') {
+                ++pos;
+                start = pos;
+                end = scanQuoted('"');
+                if (end < 0) {
+                    throw new AsmException(inputFile + "(" + line + "): Unterminated string.");
+                }
+                String text = doEscapes(decode(start, end));
+
+                tokens.addText(Token.Type.String, line, text);
+
+                // parse decimal numbers
+            } else if (c == '-' || is(DIGIT)) {
+                start = pos;
+                boolean parseFloat = false;
+                advance();
+                while ((c = at(pos)) == '.' || is(DIGIT)) {
+                    if (c == '.') {
+                        parseFloat = true;
+                    }
+                    advance();
+                }
+                if (parseFloat) {
+                    tokens.addFloat(line, Float.parseFloat(decode(start, pos)));
+                } else {
+                    tokens.add(Token.Type.Integer, line, parseDecimal(start, pos));
+                }
+
+                // parse hex numbers
+            } else if (c == '$') {
+                ++pos;
+                start = pos;
+                while (at(pos) != 0 && is(HEX_DIGIT)) {
+                    advance();
+                }
+                tokens.add(Token.Type.Integer, line, parseHex(start, pos));
+
+                // parse identifiers
+            } else if (is(IDENT_START)) {
+                start = pos;
+                boolean ascii = c < 0x80;
+                boolean sigil = c == '*' || c == '#';
+                advance();
+                while ((c = at(pos)) != 0 && is(IDENT_PART)) {
+                    ascii &= c < 0x80;
+                    advance();
+                }
+                boolean label = at(pos) == ':';
+                if (label) {
+                    ++pos;
+                }
+                long number = -1;
+                if (ascii) {
+                    tokens.addAscii(Token.Type.Identifier, line, source, start, pos);
+                    if (sigil && !label) {
+                        number = parseOperandNumber(start + 1, pos);
+                    }
+                } else {
+                    String text = decode(start, pos);
+                    tokens.addText(Token.Type.Identifier, line, text);
+                    if (sigil && !label) {
+                        number = parseOperandNumber(text.substring(1));
+                    }
+                }
+                if (number >= 0) {
+                    tokens.setNumber((int) number);
+                }
+
+            } else {
+                // unknown
+                int cp = codePointAt(pos);
+                throw new AsmException(
+                        inputFile + "(" + line + "): Lexer: unexpected " + new String(Character.toChars(cp)) + " (" + cp + ")");
+            }
+        }
+        tokens.add(Token.Type.End, line, 0);
+    }
+
+    /**
+     * Scan forward to the closing quote of a string or character constant,
+     * leaving the lexer just past the closing quote. A quote preceded by a
+     * backslash does not close the literal. Since neither character can occur
+     * inside a multibyte UTF-8 sequence, this works on the raw bytes.
+     *
+     * @param quote
+     *            the quote character that closes the literal
+     * @return the position of the closing quote, or -1 if the end of the
+     *         file was reached first
+     */
+    private int scanQuoted(int quote) {
+        int c;
+        while ((c = at(pos)) != 0 && (c != quote || at(pos - 1) == '\\')) {
+            if (c == '\n') {
+                ++line;
+            }
+            ++pos;
+        }
+        if (c == 0) {
+            return -1;
+        }
+        return pos++;
+    }
+
+    /**
+     * Replace escape characters within the provided text with their real
+     * versions. This will also remove any actual newlines and stray whitespace
+     * surronding them (such that would result from a multiline string).
+     * TODO update for unicode handling
+     *
+     * @param text
+     *            the string to replace escape codes within
+     * @return the string after escape evaluation is complete
+     */
+    public String doEscapes(String text) throws AsmException {
+        boolean didWhitespace = false;
+        boolean lastWasNewline = false;
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < text.length(); ++i) {
+            // check to see if we start a new line; if so, compress all the
+            // whitespace to a single space
+            if (Character.isWhitespace(text.charAt(i))) {
+                if (!didWhitespace) {
+                    int j;
+                    boolean compress = false;
+                    for (j = i; j < text.length() && Character.isWhitespace(text.charAt(j)); ++j) {
+                        if (text.charAt(j) == '\n') {
+                            compress = true;
+                        }
+                    }
+                    if (compress) {
+                        if (!lastWasNewline) {
+                            sb.append(" ");
+                        }
+                        i = j - 1;
+                        continue;
+                    } else {
+                        didWhitespace = true;
+                    }
+                }
+            } else {
+                didWhitespace = false;
+            }
+            lastWasNewline = false;
+            // handle the actual string escapes
+            if (text.charAt(i) == '\\') {
+                ++i;
+                switch (text.charAt(i)) {
+                case '0': // nothing
+                    break;
+                case '\\': // backslash
+                case '"': // quote
+                case '\'': // single quote
+                    sb.append(text.charAt(i));
+                    break;
+                case 'n': // newline
+                    sb.append('\n');
+                    lastWasNewline = true;
+                    break;
+                case 'r': // return
+                    sb.append('\r');
+                    break;
+                case 't': // tab
+                    sb.append('\t');
+                    break;
+                case 'x': // character by hex code
+                    ++i;
+                    if (i >= text.length() || !isHexDigit(text.charAt(i))) {
+                        throw new AsmException(inputFile + "(" + line + "): Unexpected end of escape in \\xXX");
+                    }
+                    int start = i;
+                    while (i < text.length() && isHexDigit(text.charAt(i))) {
+                        ++i;
+                    }
+                    int v = Integer.parseInt(text.substring(start, i), 16);
+                    sb.appendCodePoint(v);
+                    --i;
+                    break;
+                default: // unknown
+                    throw new AsmException(inputFile + "(" + line + "): Unknown character escape \\" + text.charAt(i));
+                }
+            } else {
+                sb.append(text.charAt(i));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Return the byte at the specified position, or 0 if the position is past
+     * the end of the source.
+     */
+    private int at(int p) {
+        if (p < length) {
+            return source.get(p) & 0xFF;
+        }
+        return 0;
+    }
+
+    /**
+     * Check if the character at the current position belongs to the given
+     * character class. ASCII characters are looked up in the class table;
+     * anything else is decoded first.
+     */
+    private boolean is(int cls) {
+        int c = at(pos);
+        if (c < 0x80) {
+            return (charClass[c] & cls) != 0;
+        }
+        return (classify(codePointAt(pos)) & cls) != 0;
+    }
+
+    /**
+     * Move past the character at the current position.
+     */
+    private void advance() {
+        int c = at(pos);
+        if (c == '\n') {
+            ++line;
+        }
+        pos += sequenceLength(c);
+    }
+
+    /**
+     * Decode the character starting at the specified position. Malformed
+     * sequences decode to U+FFFD.
+     */
+    private int codePointAt(int p) {
+        int c = at(p);
+        int count = sequenceLength(c);
+        if (count == 1) {
+            return c < 0x80 ? c : 0xFFFD;
+        }
+        int cp = c & (0xFF >> (count + 1));
+        for (int i = 1; i < count; ++i) {
+            int next = at(p + i);
+            if ((next & 0xC0) != 0x80) {
+                return 0xFFFD;
+            }
+            cp = (cp << 6) | (next & 0x3F);
+        }
+        return cp;
+    }
+
+    /**
+     * Return the length of the UTF-8 sequence that begins with the given
+     * byte. Stray continuation bytes are treated as a sequence of one.
+     */
+    private static int sequenceLength(int lead) {
+        if (lead < 0xC0) {
+            return 1;
+        } else if (lead < 0xE0) {
+            return 2;
+        } else if (lead < 0xF0) {
+            return 3;
+        }
+        return 4;
+    }
+
+    /**
+     * Return the text between two positions of the source. Pure ASCII text is
+     * copied directly; anything else goes through the UTF-8 decoder.
+     */
+    private String decode(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        boolean ascii = true;
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = source.get(start + i);
+            if (bytes[i] < 0) {
+                ascii = false;
+            }
+        }
+        if (ascii) {
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parse a decimal integer. Short runs of ASCII digits are converted in
+     * place; anything else is left to Integer so that range checking and
+     * error handling stay the same.
+     */
+    private int parseDecimal(int start, int end) {
+        boolean negative = at(start) == '-';
+        int first = negative ? start + 1 : start;
+        if (end > first && end - first <= 9) {
+            int value = 0;
+            for (int i = first; i < end; ++i) {
+                int c = at(i);
+                if (c < '0' || c > '9') {
+                    return parseDecimalSlow(start, end, negative);
+                }
+                value = value * 10 + (c - '0');
+            }
+            return negative ? -value : value;
+        }
+        return parseDecimalSlow(start, end, negative);
+    }
+
+    private int parseDecimalSlow(int start, int end, boolean negative) {
+        if (negative) {
+            return Integer.parseInt(decode(start, end), 10);
+        }
+        return Integer.parseUnsignedInt(decode(start, end), 10);
+    }
+
+    /**
+     * Check whether the text following the addressing mode of an operand
+     * identifier (such as the 5 in #5) is a number rather than a label.
+     *
+     * @return the number, or -1 if the text is not a number
+     */
+    private long parseOperandNumber(int start, int end) {
+        if (end == start) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; ++i) {
+            int c = at(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+            if (value > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Check whether the text of a non-ASCII operand identifier is a number.
+     * As with Integer.parseInt, any Unicode decimal digit counts.
+     *
+     * @return the number, or -1 if the text is not a number
+     */
+    private static long parseOperandNumber(String text) {
+        if (text.isEmpty()) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < text.length(); ++i) {
+            int digit = Character.digit(text.charAt(i), 10);
+            if (digit < 0) {
+                return -1;
+            }
+            value = value * 10 + digit;
+            if (value > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Parse a hexadecimal integer. As with parseDecimal, short ASCII runs are
+     * converted in place.
+     */
+    private int parseHex(int start, int end) {
+        if (end > start && end - start <= 7) {
+            int value = 0;
+            for (int i = start; i < end; ++i) {
+                int digit = Character.digit(at(i), 16);
+                if (at(i) >= 0x80 || digit < 0) {
+                    return Integer.parseUnsignedInt(decode(start, end), 16);
+                }
+                value = (value << 4) | digit;
+            }
+            return value;
+        }
+        return Integer.parseUnsignedInt(decode(start, end), 16);
+    }
+
+    /**
+     * Determine the character classes of a character.
+     */
+    private static int classify(int c) {
+        int cls = 0;
+        if (Character.isWhitespace(c)) {
+            cls |= WHITESPACE;
+        }
+        if (Character.isDigit(c)) {
+            cls |= DIGIT | HEX_DIGIT | IDENT_PART;
+        }
+        if (Character.isAlphabetic(c)) {
+            cls |= IDENT_START | IDENT_PART;
+        }
+        if (c == '*' || c == '#' || c == '_') {
+            cls |= IDENT_START;
+        }
+        if (c == '_') {
+            cls |= IDENT_PART;
+        }
+        int lower = Character.toLowerCase(c);
+        if (lower >= 'a' && lower <= 'f') {
+            cls |= HEX_DIGIT;
+        }
+        return cls;
+    }
+
+    /**
+     * Check to see if a character is valid for an identifier.
+     *
+     * @param what
+     *            the character to check
+     * @param initialChar
+     *            true if this is the first character of the
+     *            (potential) identifier
+     * @return true if the character is valid, false otherwise
+     */
+    static public boolean isIdentifier(int what, boolean initialChar) {
+        int cls = (what >= 0 && what < 0x80) ? charClass[what] : classify(what);
+        return (cls & (initialChar ? IDENT_START : IDENT_PART)) != 0;
+    }
+
+    /**
+     * Check to see if a character is a valid hexadecimal digit.
+     *
+     * @param what
+     *            the character to check
+     * @return true if the character is a valid hexadecimal digit, false
+     *         otherwise
+     */
+    static public boolean isHexDigit(int what) {
+        int cls = (what >= 0 && what < 0x80) ? charClass[what] : classify(what);
+        return (cls & HEX_DIGIT) != 0;
+    }
+}
@@ -0,0 +1,78 @@
+package com.grenslair.glulx.ggasm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Linker combines separately assembled modules into a single game file.
+ * The modules are added to the game file in order, as if their source files
+ * had been included one after another; strings used by more than one module
+ * end up in the string table only once. The game file is then built as
+ * usual, which lays out the code and resolves the references between
+ * modules.
+ */
+public class Linker {
+    private List<ObjectModule> modules;
+
+    public Linker() {
+        modules = new ArrayList<>();
+    }
+
+    /**
+     * Add a module to be linked.
+     *
+     * @param module
+     *            the module to add
+     */
+    public void add(ObjectModule module) {
+        modules.add(module);
+    }
+
+    /**
+     * Check that every symbol used by a module is defined by exactly one
+     * module.
+     *
+     * @return a description of each problem found; empty if there were none
+     */
+    public List<String> check() {
+        List<String> problems = new ArrayList<>();
+        Map<String, ObjectModule> definedBy = new HashMap<>();
+        for (ObjectModule module : modules) {
+            for (String symbol : module.getExports()) {
+                ObjectModule other = definedBy.putIfAbsent(symbol, module);
+                if (other != null) {
+                    problems.add("\"" + symbol + "\" is defined in both " + other.getPath() + " and "
+                            + module.getPath());
+                }
+            }
+        }
+        for (ObjectModule module : modules) {
+            for (String symbol : module.getImports()) {
+                if (!definedBy.containsKey(symbol)) {
+                    problems.add(module.getPath() + ": undefined symbol \"" + symbol + "\"");
+                }
+            }
+        }
+        return problems;
+    }
+
+    /**
+     * Add every module to a game file, ready for it to be built.
+     *
+     * @param asm
+     *            the game file to add to
+     */
+    public void link(ObjectFile asm) throws AsmException {
+        List<String> problems = check();
+        if (!problems.isEmpty()) {
+            throw new AsmException(String.join("\n", problems));
+        }
+        for (ObjectModule module : modules) {
+            // every module was assembled starting outside of ROM
+            asm.addToRom(false);
+            module.replay(asm);
+        }
+    }
+}
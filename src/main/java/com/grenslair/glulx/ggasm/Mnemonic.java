@@ -11,6 +11,8 @@ public class Mnemonic {
     public boolean finalRelative;
 
     static final public Map<String,Mnemonic> list;
+    /** every mnemonic, indexed by opcode */
+    static final private Mnemonic[] opcodeTable;
     static {
         HashMap<String,Mnemonic> aList = new HashMap<String,Mnemonic>();
         aList.put("nop",           new Mnemonic("nop",           0x00, 0));
@@ -142,16 +144,41 @@ public class Mnemonic {
         aList.put("accelparam",    new Mnemonic("accelparam",    0x181, 2));
 
         list = Collections.unmodifiableMap(aList);
+
+        int highest = 0;
+        for (Mnemonic m : aList.values()) {
+            highest = Math.max(highest, m.opcode);
+        }
+        opcodeTable = new Mnemonic[highest + 1];
+        for (Mnemonic m : aList.values()) {
+            opcodeTable[m.opcode] = m;
+        }
     }
 
+    /**
+     * Find the mnemonic for an opcode.
+     * @param opcode the opcode to look up
+     * @return the mnemonic, or null if no instruction has that opcode
+     */
     public static Mnemonic byOpcode(int opcode) {
-        for (String s : Mnemonic.list.keySet()) {
-            Mnemonic m = Mnemonic.list.get(s);
-            if (m.opcode == opcode) {
-                return m;
-            }
+        if (opcode < 0 || opcode >= opcodeTable.length) {
+            return null;
+        }
+        return opcodeTable[opcode];
+    }
+
+    /**
+     * Return the number of bytes used to store an opcode in the game file.
+     * @param opcode the opcode
+     * @return 1, 2 or 4
+     */
+    public static int sizeOfOpcode(int opcode) {
+        if (opcode <= 0x7F) {
+            return 1;
+        } else if (opcode <= 0x3FFF) {
+            return 2;
         }
-        return null;
+        return 4;
     }
 
     Mnemonic(String text, int opcode, int operands) {
@@ -1,34 +1,70 @@
 package com.grenslair.glulx.ggasm;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Formatter;
-import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Consumer;
 
 /**
  * This class represents an entire glulx gamefile.
  */
 public class ObjectFile {
 
-	private List<AsmLine> romArea;
-	private List<AsmLine> instructions;
-	private HashMap<String,AsmLabel> symbols;
+	/**
+	 * How the game file is written out.
+	 */
+	public enum OutputMode {
+		/** build the whole game file in memory, then write it */
+		BUFFER,
+		/** build the game file straight into a memory mapping of the output file */
+		MAPPED,
+		/** write the game file in order through a small buffer, filling in
+		 *  the header last */
+		STREAMING
+	}
+
+	private PackedCode romArea;
+	private PackedCode instructions;
+	private SymbolTable names;
+	/** the area and line each label is defined on, indexed by symbol id */
+	private PackedCode[] labelAreas;
+	private int[] labelLines;
 	private ByteBuffer bytecode;
+	/** the memory the byte code is built in, which may be larger than it */
+	private ByteBuffer storage;
+	private ByteBuffer spare;
 	private int codeSize;
 	private int romEnd;
 	private boolean toROM;
-	private HashMap<String,Constant> constants;
+	private Constant[] constants;
 	private int stackSize;
 	private StringTable strings;
+	private List<ParseRecord> recorders;
+	private boolean relax;
+	private PeepholeOptimizer optimizer;
+	private boolean compressStrings;
+	private int abbreviations;
+	private AsmDecodingTable decodingTable;
+	private ForkJoinPool pool;
+	private OutputMode outputMode = OutputMode.MAPPED;
+	private Set<String> dependencies;
+	private PrintStream log;
+	private Consumer<Diagnostic> diagnostics;
 
 	private class Constant {
 		public int line;
@@ -60,13 +96,24 @@ public class ObjectFile {
 	 * Create a new object file.
 	 */
 	public ObjectFile() {
-		instructions = new ArrayList<AsmLine>();
-		romArea = new ArrayList<AsmLine>();
-		symbols = new HashMap<String,AsmLabel>();
-		constants = new HashMap<String,Constant>();
+		instructions = new PackedCode(this);
+		romArea = new PackedCode(this);
+		names = new SymbolTable();
+		labelAreas = new PackedCode[256];
+		labelLines = new int[256];
+		constants = new Constant[256];
 		strings = new StringTable();
 		stackSize = 2048;
-
+		recorders = new ArrayList<ParseRecord>();
+		dependencies = new LinkedHashSet<String>();
+		log = System.err;
+		relax = true;
+		compressStrings = true;
+		abbreviations = 256;
+		pool = ForkJoinPool.commonPool();
+
+		// space for the header
+		romArea.add(new AsmData(36));
 		addLine(new AsmLabel("_startOfRAM", AsmLabel.Type.BuiltIn));
 	}
 	/**
@@ -81,6 +128,47 @@ public class ObjectFile {
 			instructions.add(i);
 		}
 		i.setObjectFile(this);
+		for (ParseRecord r : recorders) {
+			r.addLine(i);
+		}
+	}
+
+	/**
+	 * Start recording everything done to this game file into a parse record.
+	 * Records may be nested; each records everything done while it is active.
+	 * @param record  the record to add to
+	 */
+	public void startRecording(ParseRecord record) {
+		recorders.add(record);
+	}
+	/**
+	 * Stop recording into the most recently started parse record.
+	 */
+	public void stopRecording() {
+		recorders.remove(recorders.size() - 1);
+	}
+	/**
+	 * Report a message about the assembly process. Messages are recorded so
+	 * they are repeated when a parse record is replayed.
+	 * @param text  the message to report
+	 */
+	public void message(String text) {
+		report(Diagnostic.Severity.INFO, "", text);
+		for (ParseRecord r : recorders) {
+			r.message(text);
+		}
+	}
+	/**
+	 * Note that the content of the game file depends on another file.
+	 * @param file    the name of the file
+	 * @param hash    the hash of the file's content
+	 * @param binary  true if the file is included as binary data
+	 */
+	public void dependsOn(String file, byte[] hash, boolean binary) {
+		dependencies.add(file);
+		for (ParseRecord r : recorders) {
+			r.dependsOn(file, hash, binary);
+		}
 	}
 
 	/**
@@ -89,6 +177,16 @@ public class ObjectFile {
 	 */
 	public void addToRom(boolean toROM) {
 		this.toROM = toROM;
+		for (ParseRecord r : recorders) {
+			r.addToRom(toROM);
+		}
+	}
+	/**
+	 * Return whether new lines are currently added to the ROM area.
+	 * @return true if lines are added to ROM
+	 */
+	public boolean isToRom() {
+		return toROM;
 	}
 	/**
 	 * Set the stack size for this game file.
@@ -96,6 +194,9 @@ public class ObjectFile {
 	 */
 	public void setStackSize(int newSize) {
 		stackSize = newSize;
+		for (ParseRecord r : recorders) {
+			r.setStackSize(newSize);
+		}
 	}
 	/**
 	 * Return the current size of the game file in code. This is only valid after
@@ -106,55 +207,179 @@ public class ObjectFile {
 		return codeSize;
 	}
 	/**
-	 * Find the code position of all asm lines in the game file
+	 * Set whether symbolic operands are relaxed during layout. When relaxation
+	 * is off, every symbolic operand takes four bytes.
+	 * @param relax  true to relax operands
+	 */
+	public void setRelaxation(boolean relax) {
+		this.relax = relax;
+	}
+	/**
+	 * Set whether the strings in the string table are compressed. When they
+	 * are not, they are stored as plain E0 or E2 strings and the game file
+	 * has no decoding table.
+	 * @param compress  true to compress strings
+	 */
+	public void setStringCompression(boolean compress) {
+		compressStrings = compress;
+	}
+	/**
+	 * Set the largest number of abbreviations to add to the string decoding
+	 * table. Abbreviations are chosen from the substrings that occur most
+	 * often in the string table.
+	 * @param count  the most abbreviations to add, or 0 for none
+	 */
+	public void setAbbreviationLimit(int count) {
+		abbreviations = count;
+	}
+	/**
+	 * Set the pool used to lay out and build the game file in parallel.
+	 * @param pool  the pool to use, or null to do everything on the calling
+	 *              thread
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+	/**
+	 * Set how the game file is written out. Only the BUFFER mode keeps the
+	 * whole game file in memory.
+	 * @param mode  the output mode to use
+	 */
+	public void setOutputMode(OutputMode mode) {
+		outputMode = mode;
+	}
+	/**
+	 * Set where messages and errors about this game file are printed.
+	 * @param log  the stream to print to; System.err by default
+	 */
+	public void setLog(PrintStream log) {
+		this.log = log;
+	}
+	/**
+	 * Pass messages and errors about this game file to a listener instead
+	 * of printing them.
+	 * @param listener  the listener, or null to print them to the log
+	 */
+	public void setDiagnosticListener(Consumer<Diagnostic> listener) {
+		diagnostics = listener;
+	}
+	/**
+	 * Report a message or error to the diagnostic listener, or print it to
+	 * the log if there isn't one.
+	 * @param severity  how serious it is
+	 * @param prefix    text printed before it in the log
+	 * @param text      the message
+	 */
+	void report(Diagnostic.Severity severity, String prefix, String text) {
+		if (diagnostics != null) {
+			diagnostics.accept(Diagnostic.parse(severity, text));
+		} else {
+			log.println(prefix + text);
+		}
+	}
+	/**
+	 * Set the peephole optimizer to run over the game file before it is laid
+	 * out.
+	 * @param optimizer  the optimizer to use, or null to not optimize
+	 */
+	public void setOptimizer(PeepholeOptimizer optimizer) {
+		this.optimizer = optimizer;
+	}
+	/**
+	 * Run the peephole optimizer, if there is one, over the game file.
+	 */
+	public void optimize() {
+		if (optimizer == null) {
+			return;
+		}
+		List<List<AsmLine>> areas = optimizer.optimize(Arrays.asList(
+				new ArrayList<AsmLine>(romArea.asList()), new ArrayList<AsmLine>(instructions.asList())));
+		romArea = pack(areas.get(0));
+		instructions = pack(areas.get(1));
+	}
+	private PackedCode pack(List<AsmLine> lines) {
+		PackedCode area = new PackedCode(this);
+		for (AsmLine line : lines) {
+			area.add(line);
+		}
+		return area;
+	}
+	/**
+	 * Find the code position of all asm lines in the game file.
+	 *
+	 * Symbolic operands used as constants, addresses or branch offsets start
+	 * out as small as possible. Layout is repeated, growing any operand whose
+	 * value does not fit, until no operand needs to change.
 	 */
 	public void positionCode() {
-		romArea.add(0, new AsmData(36));
-		strings.toCode(romArea);
-
-		int position = 0;
-
-		for (AsmLine i : romArea) {
-			i.setPosition(position);
-
-			if (i instanceof AsmLabel) {
-				AsmLabel l = (AsmLabel)i;
+		decodingTable = strings.toCode(romArea.asList(), compressStrings, abbreviations);
 
-				if (symbols.containsKey(l.getName())) {
-					System.err.println("Label \"" + l.getName() + "\" already defined. (Duplicate at " + l.getSourceFile()+":"+l.getSourceLine() + ")");
-				} else {
-					symbols.put(l.getName(), l);
-				}
-			}
+		defineLabels();
 
-			position += i.getSize();
+		if (relax) {
+			romArea.shrinkOperands(pool);
+			instructions.shrinkOperands(pool);
+		}
+		int position = layout();
+		while (relax && (romArea.growOperands(pool) | instructions.growOperands(pool))) {
+			position = layout();
 		}
 
-		romEnd = roundUp(position);
 		int romPadding = romEnd - position;
+		AsmData padding;
 		if (romPadding >= 11) {
-            romArea.add(new AsmData(romPadding, new byte[]{'R', 'O', 'M', ' ', 'P', 'A', 'D', 'D', 'I', 'N', 'G'}));
+            padding = new AsmData(romPadding, new byte[]{'R', 'O', 'M', ' ', 'P', 'A', 'D', 'D', 'I', 'N', 'G'});
 		} else {
-            romArea.add(new AsmData(romPadding));
+            padding = new AsmData(romPadding);
 		}
-		position = romEnd;
-
-		for (AsmLine i : instructions) {
-			i.setPosition(position);
+		padding.setPosition(position);
+		romArea.add(padding);
+	}
 
-			if (i instanceof AsmLabel) {
-				AsmLabel l = (AsmLabel)i;
+	/**
+	 * Assign a position to every line based on the current sizes.
+	 * @return the end of the ROM content, before padding
+	 */
+	private int layout() {
+		int romContent = romArea.layout(0, pool);
+		romEnd = roundUp(romContent);
+		codeSize = instructions.layout(romEnd, pool);
+		return romContent;
+	}
 
-				if (symbols.containsKey(l.getName())) {
-					System.err.println("Label \"" + l.getName() + "\" already defined. (Duplicate at " + l.getSourceFile()+":"+l.getSourceLine() + ")");
-				} else {
-					symbols.put(l.getName(), l);
-				}
+	/**
+	 * Find the line each label is defined on. When a label is defined more
+	 * than once the first definition, in ROM and then RAM order, is used.
+	 * Every area is scanned in parallel; lines are numbered across both areas
+	 * and each label keeps the lowest line number found for it.
+	 */
+	private void defineLabels() {
+		AtomicIntegerArray first = new AtomicIntegerArray(names.size());
+		for (int id = 0; id < names.size(); ++id) {
+			first.set(id, Integer.MAX_VALUE);
+		}
+		int ramBase = romArea.size();
+		romArea.claimLabels(pool, 0, first);
+		instructions.claimLabels(pool, ramBase, first);
+		for (String message : romArea.findDuplicateLabels(pool, 0, first)) {
+			report(Diagnostic.Severity.ERROR, "", message);
+		}
+		for (String message : instructions.findDuplicateLabels(pool, ramBase, first)) {
+			report(Diagnostic.Severity.ERROR, "", message);
+		}
+		for (int id = 0; id < names.size(); ++id) {
+			int line = first.get(id);
+			if (line == Integer.MAX_VALUE) {
+				continue;
+			}
+			if (line < ramBase) {
+				labelAreas[id] = romArea;
+				labelLines[id] = line;
+			} else {
+				labelAreas[id] = instructions;
+				labelLines[id] = line - ramBase;
 			}
-
-			position += i.getSize();
 		}
-		codeSize = position;
 	}
 
 	/**
@@ -167,50 +392,111 @@ public class ObjectFile {
 	}
 
 	public String addString(String text) {
-		return strings.addString(text);
+		String label = strings.addString(text);
+		for (ParseRecord r : recorders) {
+			r.addString(label, text);
+		}
+		return label;
 	}
 	public void addString(String label, String text) throws AsmException {
 		strings.addString(label, text);
+		for (ParseRecord r : recorders) {
+			r.addNamedString(label, text);
+		}
 	}
 
 	public void addConstant(String name, int value, int line) {
-		constants.put(name, new Constant(line, value));
+		constants[getSymbolId(name)] = new Constant(line, value);
+		for (ParseRecord r : recorders) {
+			r.addConstant(name, value, line);
+		}
 	}
-	public boolean isSymbolKnown(String symbolName) {
-		if (constants.containsKey(symbolName)) {
-			return true;
-		} else if (symbols.containsKey(symbolName)) {
-			return true;
+
+	/**
+	 * Get the id of a symbol name, giving it a new id if it has not been used
+	 * before. Symbols can be looked up by id without hashing their name.
+	 * @param symbolName  the name of the symbol
+	 * @return the id of the symbol
+	 */
+	public int getSymbolId(String symbolName) {
+		int id = names.intern(symbolName);
+		if (id >= labelAreas.length) {
+			labelAreas = Arrays.copyOf(labelAreas, labelAreas.length * 2);
+			labelLines = Arrays.copyOf(labelLines, labelLines.length * 2);
+			constants = Arrays.copyOf(constants, constants.length * 2);
 		}
-		return false;
+		return id;
+	}
+	/**
+	 * Get the name of a symbol from its id.
+	 * @param id  the id of the symbol
+	 * @return the name of the symbol
+	 */
+	public String getSymbolName(int id) {
+		return names.getName(id);
+	}
+	public boolean isSymbolKnown(String symbolName) {
+		int id = names.find(symbolName);
+		return id >= 0 && isSymbolKnown(id);
+	}
+	public boolean isSymbolKnown(int id) {
+		return constants[id] != null || labelAreas[id] != null;
 	}
 	public int getSymbolValue(String symbolName) {
-		if (constants.containsKey(symbolName)) {
-			return constants.get(symbolName).value;
-		} else if (symbols.containsKey(symbolName)) {
-			return symbols.get(symbolName).getPosition();
+		int id = names.find(symbolName);
+		if (id < 0) {
+			return 0;
+		}
+		return getSymbolValue(id);
+	}
+	public int getSymbolValue(int id) {
+		if (constants[id] != null) {
+			return constants[id].value;
+		} else if (labelAreas[id] != null) {
+			return labelAreas[id].getPosition(labelLines[id]);
 		}
 		return 0;
 	}
 	public int getConstantValue(String constantName) {
-		if (constants.containsKey(constantName)) {
-			return constants.get(constantName).value;
+		int id = names.find(constantName);
+		if (id < 0) {
+			noteConstant(constantName, null);
+			return 0;
+		}
+		return getConstantValue(id);
+	}
+	public int getConstantValue(int id) {
+		noteConstant(names.getName(id), constants[id]);
+		if (constants[id] != null) {
+			return constants[id].value;
 		}
 		return 0;
 	}
 	public boolean isConstantDefined(String constantName) {
-		if (constants.containsKey(constantName)) {
-			return true;
+		int id = names.find(constantName);
+		if (id < 0) {
+			noteConstant(constantName, null);
+			return false;
 		}
-		return false;
+		return isConstantDefined(id);
 	}
-	public void replaceSymbols() throws AsmException {
-        for (AsmLine line : romArea) {
-            line.replaceSymbols();
-        }
-        for (AsmLine line : instructions) {
-            line.replaceSymbols();
-        }
+	public boolean isConstantDefined(int id) {
+		noteConstant(names.getName(id), constants[id]);
+		return constants[id] != null;
+	}
+	private void noteConstant(String constantName, Constant c) {
+		for (ParseRecord r : recorders) {
+			r.lookupConstant(constantName, c != null, c == null ? 0 : c.value);
+		}
+	}
+	/**
+	 * Check that every symbol used by an instruction is defined. Only the
+	 * relocation list recorded as lines were added is visited; the values
+	 * are written when the byte code is built.
+	 */
+	public void resolveSymbols() throws AsmException {
+		romArea.resolveSymbols();
+		instructions.resolveSymbols();
 	}
 
 	/**
@@ -219,102 +505,210 @@ public class ObjectFile {
 	 */
 	public boolean doBuild() {
 		try {
+			optimize();
 			positionCode();
-			replaceSymbols();
-			buildByteCode();
+			resolveSymbols();
+			if (outputMode == OutputMode.BUFFER) {
+				buildByteCode();
+			}
 		} catch (AsmException e) {
-			System.err.println("ERROR " + e.getMessage());
+			report(Diagnostic.Severity.ERROR, "ERROR ", e.getMessage());
+			return false;
+		} catch (UncheckedIOException e) {
+			// reading an included binary file
+			report(Diagnostic.Severity.ERROR, "ERROR ", e.getCause().getMessage());
 			return false;
 		}
 		return true;
 	}
 
+	/**
+	 * Return every file included into this game file, directly or through
+	 * another include.
+	 * @return the names of the files
+	 */
+	public Set<String> getDependencies() {
+		return dependencies;
+	}
+
+	/**
+	 * Build the byte code in the memory used by another game file, if there
+	 * is enough of it, rather than allocating more. The other game file's
+	 * byte code is no longer available afterward.
+	 * @param other  the game file whose memory is taken over
+	 */
+	public void reuseByteCode(ObjectFile other) {
+		spare = other.storage;
+		other.storage = null;
+		other.bytecode = null;
+	}
+
+	/**
+	 * Check that there is a main function to start the game file with, and
+	 * round its size up to a multiple of 256 bytes.
+	 * @return the symbol id of main, or -1 if there isn't one
+	 */
+	private int prepareOutput() {
+		int main = names.find("main");
+		if (main < 0 || labelAreas[main] == null) {
+			report(Diagnostic.Severity.ERROR, "", "Could not find \"main\" symbol.");
+			return -1;
+		}
+		codeSize = roundUp(codeSize);
+		return main;
+	}
+
+	/**
+	 * Build the byte code for this game file in memory. When writing to a
+	 * file in one of the other output modes, the byte code is instead built
+	 * by writeByteCodeToFile.
+	 */
 	public void buildByteCode() {
-		if (!symbols.containsKey("main")) {
-			System.err.println("Could not find \"main\" symbol.");
+		int main = prepareOutput();
+		if (main < 0) {
 			return;
 		}
-
-		// setup bytecode space
-		while (codeSize % 256 != 0) {
-			++codeSize;
+		if (spare != null && spare.capacity() >= codeSize) {
+			storage = spare;
+			Arrays.fill(storage.array(), 0, codeSize, (byte)0);
+		} else {
+			storage = ByteBuffer.allocate(codeSize);
 		}
-		bytecode = ByteBuffer.allocate(codeSize);
+		spare = null;
+		storage.clear();
+		storage.limit(codeSize);
+		bytecode = storage.slice();
 		bytecode.order(ByteOrder.BIG_ENDIAN);
+		bytecode.putInt(32, buildByteCode(bytecode, main));
+	}
 
+	/**
+	 * Build the byte code for this game file into a buffer holding the
+	 * whole file, which must start out as all zeros.
+	 * @param code  the buffer
+	 * @param main  the symbol id of the main function
+	 * @return the checksum
+	 */
+	private int buildByteCode(ByteBuffer code, int main) {
 		// write ROM data
-		for (AsmLine line : romArea) {
-			line.buildByteCode(bytecode);
+		int checksum = romArea.buildByteCode(code, pool);
+
+		// the space for the header was written as zeros, so the header
+		// words are simply added to the checksum
+		writeHeader(code, main);
+		for (int i = 0; i < 36; i += 4) {
+			checksum += code.getInt(i);
 		}
 
+		// write game file content; the rest of the buffer is already zero,
+		// padding the game file to a multiple of 256 bytes
+		checksum += instructions.buildByteCode(code, pool);
+		code.position(codeSize);
+		checksum += romArea.applyFixups(code);
+		checksum += instructions.applyFixups(code);
+		return checksum;
+	}
+
+	private void writeHeader(ByteBuffer code, int main) {
 		////////////////////////////////////////////////////////////////////////
 		// GLULX header ////////////////////////////////////////////////////////
 		////////////////////////////////////////////////////////////////////////
 		//  0 Glulx Magic Number (47 6C 75 6C or "Glul")
-		bytecode.putInt( 0, 0x476C756C);
+		code.putInt( 0, 0x476C756C);
 		// 04 Glulx version number: The upper 16 bits stores the major version
 		//    number; the next 8 bits stores the minor version number; the low 8
 		//    bits stores an even more minor version number, if any.
 		//    GGASM builds version 3.1.2
-		bytecode.putInt( 4, 0x00030102);
+		code.putInt( 4, 0x00030102);
 		// 08 RAMSTART: The first address which the program can write to.
-		bytecode.putInt( 8, romEnd);
+		code.putInt( 8, romEnd);
 		// 12 EXTSTART: The end of the game-file's stored initial memory (and
 		//    therefore the length of the game file.)
-		bytecode.putInt(12, codeSize);
+		code.putInt(12, codeSize);
 		// 16 ENDMEM: The end of the program's memory map.
-		bytecode.putInt(16, codeSize);
+		code.putInt(16, codeSize);
 		// 20 Stack size: The size of the stack needed by the program.
-		bytecode.putInt(20, stackSize);
+		code.putInt(20, stackSize);
 		// 24 Address of function to execute: Execution commences by calling
 		//    this function. (this is the position of the main function)
-		bytecode.putInt(24, symbols.get("main").getPosition());
+		code.putInt(24, getSymbolValue(main));
 		// 28 Address of string-decoding table: This table is used to decode
 		//    compressed strings. See section 1.6.1.3, "Compressed strings".
 		//    This may be zero, indicating that no compressed strings are to be
 		//    decoded.
-		bytecode.putInt(28, 0x00000000);
+		code.putInt(28, decodingTable == null ? 0 : decodingTable.getPosition());
 		// 32 Checksum: A simple sum of the entire initial contents of memory,
 		//    considered as an array of big-endian 32-bit integers. The checksum
 		//    should be computed with this field set to zero.
-		bytecode.putInt(32, 0x00000000);
+		code.putInt(32, 0x00000000);
 		////////////////////////////////////////////////////////////////////////
 		// End Header //////////////////////////////////////////////////////////
 		////////////////////////////////////////////////////////////////////////
+	}
 
-		// write game file content
-		for (AsmLine line : instructions) {
-			line.buildByteCode(bytecode);
-		}
-
-		// pad game file
-		while (bytecode.position() % 256 != 0) {
-			bytecode.put((byte)0);
+	/**
+	 * Return the byte code built by buildByteCode.
+	 * @return a read-only view of the whole game file, or null if it has not
+	 *         been built in memory
+	 */
+	public ByteBuffer getByteCode() {
+		if (bytecode == null) {
+			return null;
 		}
+		ByteBuffer code = bytecode.asReadOnlyBuffer();
+		code.clear();
+		return code;
+	}
 
-		// calculate and write checksum
-		int checksum = 0;
-		for (int i = 0; i < codeSize; i += 4) {
-			checksum += bytecode.getInt(i);
+	/**
+	 * Write this game file. In the BUFFER output mode this writes the byte
+	 * code built by doBuild; in the others the byte code is built straight
+	 * into the file.
+	 * @param filename  the name of the file to write
+	 * @return true if the file was written
+	 */
+	public boolean writeByteCodeToFile(String filename) {
+		if (outputMode == OutputMode.BUFFER && bytecode == null) {
+			return false;
 		}
-		bytecode.putInt(32, checksum);
-	}
-	public void writeByteCodeToFile(String filename) {
-		if (bytecode == null) {
-			return;
+		int main = outputMode == OutputMode.BUFFER ? 0 : prepareOutput();
+		if (main < 0) {
+			return false;
 		}
 
-		try {
-			File out = new File(filename);
-			FileChannel channel = new FileOutputStream(out).getChannel();
-			bytecode.flip();
-			channel.write(bytecode);
-			channel.close();
-		} catch (FileNotFoundException e) {
-			System.out.println(e);
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			switch (outputMode) {
+			case BUFFER:
+				ByteBuffer out = bytecode.duplicate();
+				out.position(0);
+				out.limit(codeSize);
+				while (out.hasRemaining()) {
+					channel.write(out);
+				}
+				break;
+			case MAPPED:
+				MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_WRITE, 0, codeSize);
+				file.putInt(32, buildByteCode(file, main));
+				file.force();
+				break;
+			case STREAMING:
+				StreamingWriter writer = new StreamingWriter(channel, StreamingWriter.WINDOW_SIZE);
+				romArea.buildByteCode(writer);
+				instructions.buildByteCode(writer);
+				ByteBuffer header = ByteBuffer.allocate(36);
+				writeHeader(header, main);
+				writer.finish(codeSize, header);
+				break;
+			}
 		} catch (IOException e) {
-			System.out.println(e);
+			report(Diagnostic.Severity.ERROR, "ERROR ", "writing " + filename + ": " + e);
+			return false;
+		} catch (UncheckedIOException e) {
+			report(Diagnostic.Severity.ERROR, "ERROR ", "writing " + filename + ": " + e.getCause());
+			return false;
 		}
+		return true;
 	}
 
 	/**
@@ -324,11 +718,11 @@ public class ObjectFile {
 	 */
 	public String dumpCode() {
 		StringBuilder sb = new StringBuilder();
-        for (AsmLine line : romArea) {
+        for (AsmLine line : romArea.asList()) {
             sb.append(line.getPosition() + "/" + line.getSize() + ": " + line+"\n");
         }
         sb.append("-- END OF ROM ------------------------------------------------------------------\n");
-        for (AsmLine line : instructions) {
+        for (AsmLine line : instructions.asList()) {
             sb.append(line.getPosition() + "/" + line.getSize() + ": " + line+"\n");
         }
 		return sb.toString();
@@ -341,10 +735,8 @@ public class ObjectFile {
 		StringBuilder sb = new StringBuilder();
 		Formatter f = new Formatter(sb, Locale.US);
 
-		String[] keys = symbols.keySet().toArray(new String[symbols.keySet().size()]);
-		Arrays.sort(keys);
-		for (String key : keys) {
-			f.format("%08x  %-16s  %s\n", symbols.get(key).getPosition(), symbols.get(key).getType(), key);
+		for (int id : sortedIds(labelAreas)) {
+			f.format("%08x  %-16s  %s\n", getSymbolValue(id), labelAreas[id].getLabelType(labelLines[id]), names.getName(id));
 		}
 		f.close();
 		return sb.toString();
@@ -357,14 +749,27 @@ public class ObjectFile {
 		StringBuilder sb = new StringBuilder();
 		Formatter f = new Formatter(sb, Locale.US);
 
-		String[] keys = constants.keySet().toArray(new String[constants.keySet().size()]);
-		Arrays.sort(keys);
-		for (String key : keys) {
-			f.format("%-32s  %s\n", key, constants.get(key).value);
+		for (int id : sortedIds(constants)) {
+			f.format("%-32s  %s\n", names.getName(id), constants[id].value);
 		}
 		f.close();
 		return sb.toString();
 	}
+	/**
+	 * Return the ids of the symbols that have an entry in a table, sorted by
+	 * name.
+	 */
+	private Integer[] sortedIds(Object[] table) {
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		for (int id = 0; id < names.size(); ++id) {
+			if (table[id] != null) {
+				ids.add(id);
+			}
+		}
+		Integer[] result = ids.toArray(new Integer[ids.size()]);
+		Arrays.sort(result, (a, b) -> names.getName(a).compareTo(names.getName(b)));
+		return result;
+	}
 	/**
 	 * Dump the current string table for this game file to a string.
 	 * @return the string containig the string table.
@@ -372,5 +777,13 @@ public class ObjectFile {
 	public String dumpStrings() {
 		return strings.dump();
 	}
+	/**
+	 * Return a summary of how many uncompressed strings ended other strings
+	 * but couldn't be stored inside them.
+	 * @return the summary, or null if there is nothing to report
+	 */
+	public String reportStrings() {
+		return strings.report();
+	}
 
 }
@@ -0,0 +1,281 @@
+package com.grenslair.glulx.ggasm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An ObjectModule is a source file (and everything it includes) assembled on
+ * its own, ready to be linked with other modules into a game file. Modules
+ * can be assembled in parallel and stored in .ggo files, so a build only
+ * needs to assemble the modules whose source has changed.
+ *
+ * A module holds the ParseRecord of assembling its file: the lines, constants
+ * and strings it added, with every reference to a label still symbolic. It
+ * also lists the symbols it exports, which other modules may use, and the
+ * symbols it uses that some other module has to define. Constants defined
+ * by another module are treated as symbols too, so they always take four
+ * bytes unless relaxation shrinks them.
+ *
+ * A module also keeps the hash of its source file and of every file that
+ * was included, so a module that is older than its source can be found and
+ * assembled again.
+ */
+public class ObjectModule {
+    private static final int MAGIC = 0x47474F4D; // GGOM
+    private static final int FORMAT_VERSION = 1;
+
+    private String path;
+    private byte[] sourceHash;
+    private List<String> exports;
+    private List<String> imports;
+    private byte[] record;
+
+    private ObjectModule(String path, byte[] sourceHash, List<String> exports, List<String> imports,
+            byte[] record) {
+        this.path = path;
+        this.sourceHash = sourceHash;
+        this.exports = exports;
+        this.imports = imports;
+        this.record = record;
+    }
+
+    /**
+     * Assemble a source file into a module. Messages are not reported here,
+     * but recorded, and reported when the module is linked.
+     *
+     * @param filename
+     *            the file to assemble
+     * @param loader
+     *            the source loader to take the file and its includes from;
+     *            it must have a parse cache for the hashes of the files to
+     *            be kept
+     * @return the module
+     */
+    public static ObjectModule assemble(String filename, SourceLoader loader) throws AsmException {
+        ObjectFile asm = new ObjectFile();
+        asm.setDiagnosticListener(diagnostic -> {
+        });
+        ParseRecord parsed = new ParseRecord(filename, asm.isToRom());
+        asm.startRecording(parsed);
+        try {
+            new Assemble(asm, filename, loader);
+        } finally {
+            asm.stopRecording();
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            parsed.write(bytes);
+        } catch (IOException e) {
+            throw new AsmException(filename + ": cannot be stored as a module: " + e.getMessage());
+        }
+        return new ObjectModule(filename, loader.getHash(filename), new ArrayList<>(parsed.getDefinedSymbols()),
+                new ArrayList<>(parsed.getUndefinedSymbols()), bytes.toByteArray());
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Return the hash of the content of the module's source file when it
+     * was assembled.
+     *
+     * @return the hash, as computed by ParseCache.hash
+     */
+    public byte[] getSourceHash() {
+        return sourceHash;
+    }
+
+    /**
+     * Find a file the module was assembled from whose content has changed
+     * since: its source file, or one of the files it included. Files that
+     * can no longer be read, and files whose hash wasn't kept, can't be
+     * checked and are skipped.
+     *
+     * @param resolver
+     *            the resolver to read the files with
+     * @return the name of the first file found to have changed, or null if
+     *         none has
+     */
+    public String findChangedFile(SourceResolver resolver) throws IOException {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put(path, sourceHash);
+        ParseRecord parsed = ParseRecord.read(new ByteArrayInputStream(record), true);
+        if (parsed == null) {
+            throw new IOException(path + ": bad module");
+        }
+        files.putAll(parsed.getFiles());
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            if (file.getValue() == null) {
+                continue;
+            }
+            ByteBuffer content;
+            try {
+                content = resolver.read(file.getKey());
+            } catch (IOException e) {
+                continue;
+            }
+            if (!Arrays.equals(file.getValue(), ParseCache.hash(content))) {
+                return file.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the symbols this module defines: its labels, constants and
+     * named strings.
+     *
+     * @return the names of the symbols
+     */
+    public List<String> getExports() {
+        return exports;
+    }
+
+    /**
+     * Return the symbols this module uses but does not define.
+     *
+     * @return the names of the symbols
+     */
+    public List<String> getImports() {
+        return imports;
+    }
+
+    /**
+     * Add the content of this module to a game file. Unlike a ParseRecord, a
+     * module can be added to any number of game files.
+     *
+     * @param asm
+     *            the game file to add to
+     */
+    public void replay(ObjectFile asm) throws AsmException {
+        try {
+            ParseRecord.read(new ByteArrayInputStream(record), false).replay(asm);
+        } catch (IOException e) {
+            throw new AsmException(path + ": bad module: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write this module to a file. The module is written to a temporary file
+     * first, so a build running at the same time never sees a partly
+     * written module.
+     *
+     * @param filename
+     *            the name of the file to write
+     */
+    public void write(String filename) throws IOException {
+        Path target = Paths.get(filename).toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), "module", ".tmp");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                write(out);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Write this module to a stream.
+     *
+     * @param stream
+     *            the stream to write to
+     */
+    public void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(Assemble.majorVersion);
+        out.writeInt(Assemble.minorVersion);
+        out.writeInt(Assemble.patchVersion);
+        ParseRecord.writeString(out, path);
+        ParseRecord.writeBytes(out, sourceHash);
+        writeNames(out, exports);
+        writeNames(out, imports);
+        ParseRecord.writeBytes(out, record);
+        out.flush();
+    }
+
+    /**
+     * Read a module from a file.
+     *
+     * @param filename
+     *            the name of the file to read
+     * @return the module
+     */
+    public static ObjectModule read(String filename) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(Paths.get(filename)))) {
+            return read(in);
+        }
+    }
+
+    /**
+     * Read a module from a stream.
+     *
+     * @param stream
+     *            the stream to read from
+     * @return the module
+     */
+    public static ObjectModule read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || in.readInt() != Assemble.majorVersion
+                || in.readInt() != Assemble.minorVersion || in.readInt() != Assemble.patchVersion) {
+            throw new IOException("not a module for this version of ggasm");
+        }
+        String path = ParseRecord.readString(in);
+        byte[] sourceHash = ParseRecord.readBytes(in);
+        List<String> exports = readNames(in);
+        List<String> imports = readNames(in);
+        return new ObjectModule(path, sourceHash, exports, imports, ParseRecord.readBytes(in));
+    }
+
+    /**
+     * Return the name of the module file for a source file: the name of the
+     * source file with its extension replaced by .ggo.
+     *
+     * @param sourceFile
+     *            the name of the source file
+     * @return the name of the module file
+     */
+    public static String moduleFileFor(String sourceFile) {
+        int dot = sourceFile.lastIndexOf('.');
+        if (dot <= sourceFile.lastIndexOf('/') || dot <= sourceFile.lastIndexOf('\\')) {
+            dot = sourceFile.length();
+        }
+        return sourceFile.substring(0, dot) + ".ggo";
+    }
+
+    private static void writeNames(DataOutputStream out, List<String> names) throws IOException {
+        out.writeInt(names.size());
+        for (String name : names) {
+            ParseRecord.writeString(out, name);
+        }
+    }
+    private static List<String> readNames(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            names.add(ParseRecord.readString(in));
+        }
+        return names;
+    }
+}
@@ -18,7 +18,10 @@ public class Operand {
     private int size;
     private int value;
     public String symbolName;
+    private int symbolId = -1;
     private Mode mode;
+    /** the instruction this operand belongs to, told when its size changes */
+    AsmInstruction owner;
 
     /**
     * Create a new operand whose value is a specified integer and whose mode
@@ -62,67 +65,83 @@ public class Operand {
         size = 4;
     }
 
+    /**
+    * Recreate an operand exactly as it was stored, including its size.
+    * @param value the raw value of the operand
+    * @param mode the mode of the operand
+    * @param symbol the name of the symbol for the operand's value, or null
+    * @param size the storage size of the operand
+    */
+    Operand(int value, Mode mode, String symbol, int size) {
+        this.value = value;
+        this.mode = mode;
+        this.symbolName = symbol;
+        this.size = size;
+    }
+
     /**
     * Create a new operand based on the content of a specified token. This
     * will automatically setup the operand according to the content and
     * addressing mode specified in the token.
+    * @param stmt the statement containing the token
+    * @param index the index of the token within the statement
+    * @param objFile the ObjectFile the operand is being created for
     */
-    public Operand(Token token, ObjectFile objFile) throws AsmException {
-        switch(token.getType()) {
+    public Operand(TokenCursor stmt, int index, ObjectFile objFile) throws AsmException {
+        switch(stmt.getType(index)) {
             case Integer:
-                this.value = token.getIntValue();
+                this.value = stmt.getIntValue(index);
                 this.mode = Mode.Constant;
                 break;
             case String:
-                this.symbolName = objFile.addString(token.getStringValue());
+                this.symbolName = objFile.addString(stmt.getStringValue(index));
                 this.mode = Mode.Constant;
                 break;
             case Float:
-                this.value = Float.floatToRawIntBits(token.getFloatValue());
+                this.value = Float.floatToRawIntBits(stmt.getFloatValue(index));
                 this.mode = Mode.Constant;
                 break;
             case Identifier:
                 // handle stack reference
-                if (token.getStringValue().equals("sp")) {
+                if (stmt.getStringValue(index).equals("sp")) {
                     this.value = -1;
                     this.mode = Mode.Variable;
                     return;
                 }
                 // otherwise determine the addressing mode and (if neccesary)
                 // remove it from the token text
-                switch(token.getStringValue().charAt(0)) {
+                switch(stmt.getStringValue(index).charAt(0)) {
                     case '*':
                         this.mode = Operand.Mode.Indirect;
-                        this.symbolName = token.getStringValue().substring(1);
+                        this.symbolName = stmt.getStringValue(index).substring(1);
                         break;
                     case '#':
                         this.mode = Operand.Mode.Variable;
-                        this.symbolName = token.getStringValue().substring(1);
+                        this.symbolName = stmt.getStringValue(index).substring(1);
                         break;
                     default:
                         this.mode = Operand.Mode.Constant;
-                        this.symbolName = token.getStringValue();
+                        this.symbolName = stmt.getStringValue(index);
+                }
+                // the lexer has already determined whether the remaining text
+                // is a number rather than a label; a number can never be the
+                // name of a constant
+                if (stmt.isNumber(index)) {
+                    this.value = stmt.getNumber(index);
+                    this.symbolName = null;
+                    break;
                 }
                 // check to see if the remaining text is an already defined
                 // constant symbol
-                if (objFile.isConstantDefined(this.symbolName)) {
-                    this.value = objFile.getConstantValue(this.symbolName);
+                this.symbolId = objFile.getSymbolId(this.symbolName);
+                if (objFile.isConstantDefined(this.symbolId)) {
+                    this.value = objFile.getConstantValue(this.symbolId);
                     this.symbolName = null;
-                } else {
-                    // check to see if the token is actually a number rather than
-                    // a label
-                    try {
-                        this.value = Integer.parseInt(this.symbolName);
-                        this.symbolName = null;
-                    } catch (NumberFormatException e) {
-                        // it's a label after all!
-                        // we don't actually need to do anything; it's already
-                        // setup for this case
-                    }
+                    this.symbolId = -1;
                 }
                 break;
             default:
-                throw new AsmException(token.getSource() + ": Cannot create Operand from token type " + token.getType());
+                throw new AsmException(stmt.getSource(index) + ": Cannot create Operand from token type " + stmt.getType(index));
         }
         resize();
     }
@@ -133,33 +152,77 @@ public class Operand {
     * whose actual value is still unknown are presumed to occupy four bytes.
     */
     public void resize() {
+        changed();
         // if this value repersents a symbol, just set the size to four bytes
         if (isSymbol()) {
             size = 4;
             return;
         }
         // otherwise, find the size of this operand
+        size = sizeFor(value, mode);
+    }
+
+    /**
+    * Determine how many bytes are needed to store a value in a given
+    * addressing mode.
+    * @param value the value to store
+    * @param mode the addressing mode of the value
+    * @return the number of bytes needed
+    */
+    public static int sizeFor(int value, Mode mode) {
         if (mode == Mode.Constant) {
             if (value == 0) {
-                size = 0;
+                return 0;
             } else if (value >= -128 && value <= 0x7F) {
-                size = 1;
+                return 1;
             } else if (value >= -32768 && value <= 0x7FFF) {
-                size = 2;
-            } else {
-                size = 4;
-            }
-        } else {
-            if (value == -1 && mode == Mode.Variable) {
-                size = 0;
-            } else if (value <= 0xFF) {
-                size = 1;
-            } else if (value <= 0xFFFF) {
-                size = 2;
-            } else {
-                size = 4;
+                return 2;
             }
+            return 4;
+        }
+        if (value == -1 && mode == Mode.Variable) {
+            return 0;
+        } else if (value <= 0xFF) {
+            return 1;
+        } else if (value <= 0xFFFF) {
+            return 2;
+        }
+        return 4;
+    }
+
+    /**
+    * Return whether the size of this operand can be reduced from four bytes
+    * during layout. This is true of symbols used as constants or as memory
+    * addresses; symbols used as variable numbers always keep four bytes.
+    * @return whether this operand can be relaxed
+    */
+    public boolean isRelaxable() {
+        return isSymbol() && (mode == Mode.Constant || mode == Mode.Indirect);
+    }
+    /**
+    * Set the storage size of this operand. This is used during layout to
+    * shrink symbolic operands.
+    * @param size the new size in bytes
+    */
+    public void setSize(int size) {
+        if (size != this.size) {
+            this.size = size;
+            changed();
+        }
+    }
+    /**
+    * Increase the storage size of this operand, if it is smaller than the
+    * specified size.
+    * @param required the number of bytes the operand needs
+    * @return true if the size of the operand changed
+    */
+    public boolean growTo(int required) {
+        if (required > size) {
+            size = required;
+            changed();
+            return true;
         }
+        return false;
     }
 
     /**
@@ -182,12 +245,33 @@ public class Operand {
     */
     public void setMode(Mode mode) {
         this.mode = mode;
+        changed();
+    }
+
+    /**
+    * Let the instruction this operand belongs to know that its encoding may
+    * have changed.
+    */
+    private void changed() {
+        if (owner != null) {
+            owner.invalidateSize();
+        }
     }
     /**
     * Get the addressing mode/size half-byte for this operand.
     * @return A byte with the four byte addressing mode.
     */
     public int getAddressMode() {
+        return addressMode(size, mode);
+    }
+    /**
+    * Get the addressing mode/size half-byte for an operand of a given size
+    * and mode.
+    * @param size the storage size of the operand
+    * @param mode the mode of the operand
+    * @return A byte with the four byte addressing mode.
+    */
+    static int addressMode(int size, Mode mode) {
         int result = 0;
         if (size == 4) result += 3;
         else           result += size;
@@ -205,8 +289,7 @@ public class Operand {
                 result += 12;
                 break;
             default:
-                System.err.println("Unknown addressing mode.");
-                return 0;
+                throw new IllegalStateException("Unknown addressing mode.");
         }
         return result;
     }
@@ -222,6 +305,14 @@ public class Operand {
         return value;
     }
     /**
+    * Get the value of this operand as stored, without scaling variable
+    * numbers.
+    * @return the raw value of this operand.
+    */
+    public int getRawValue() {
+        return value;
+    }
+    /**
     * Set the value of this operand. This will also unmark the operand as
     * being a symbol.
     * @param newValue the new value of this operand
@@ -229,6 +320,7 @@ public class Operand {
     public void setValue(int newValue) {
         value = newValue;
         symbolName = null;
+        symbolId = -1;
     }
 
     /**
@@ -252,17 +344,38 @@ public class Operand {
         return "";
     }
 
+    /**
+    * Make this operand refer to a different symbol.
+    * @param symbol the name of the symbol
+    */
+    public void setSymbol(String symbol) {
+        symbolName = symbol;
+        symbolId = -1;
+    }
+    /**
+    * Get the id of the symbol repersenting this operand's value within a
+    * game file. The id is looked up the first time it is needed.
+    * @param objFile the game file the operand belongs to
+    * @return the id of the symbol
+    */
+    public int getSymbolId(ObjectFile objFile) {
+        if (symbolId < 0) {
+            symbolId = objFile.getSymbolId(symbolName);
+        }
+        return symbolId;
+    }
+
     /**
     * If this Operand is the name of a symbol, replace it. Otherwise, do nothing.
     * @param objFile The ObjectFile to draw symbol names and values from
     */
     public void replaceSymbol(ObjectFile objFile) throws AsmException {
         if (isSymbol()) {
-            if (!objFile.isSymbolKnown(getSymbol())) {
+            int id = getSymbolId(objFile);
+            if (!objFile.isSymbolKnown(id)) {
                 throw new AsmException("Undefined symbol \""+getSymbol()+"\"");
             }
-            int value = objFile.getSymbolValue(getSymbol());
-            setValue(value);
+            setValue(objFile.getSymbolValue(id));
         }
     }
 
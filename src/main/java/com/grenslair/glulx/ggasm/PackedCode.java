@@ -0,0 +1,742 @@
+package com.grenslair.glulx.ggasm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
+
+/**
+ * One area of a game file (ROM or RAM) stored as a set of primitive arrays
+ * rather than as a list of AsmLine objects. Each line has an entry in the
+ * line arrays; the operands of instructions and word data are stored one
+ * after another in the operand arrays, and the bytes of data lines in a
+ * single byte pool. Symbols are kept as ids from the game file's symbol
+ * table.
+ *
+ * Lines are packed as they are added and the objects they came from are not
+ * kept. Layout, symbol replacement and building the byte code all work on the
+ * arrays directly; getLine() rebuilds an AsmLine for anything that needs one,
+ * such as the code dump. Most passes split the lines into fixed-size blocks
+ * that can be handled in parallel.
+ */
+class PackedCode {
+	static final byte LABEL = 0;
+	static final byte INSTRUCTION = 1;
+	static final byte DATA = 2;
+	static final byte VARDATA = 3;
+	/** any other kind of line, kept as an object */
+	static final byte OTHER = 4;
+
+	/** the number of lines handled by one task when working in parallel */
+	private static final int LINES_PER_BLOCK = 2048;
+
+	private static final Operand.Mode[] modes = Operand.Mode.values();
+	private static final AsmLabel.Type[] labelTypes = AsmLabel.Type.values();
+
+	private ObjectFile owner;
+	private SymbolTable sourceFiles;
+
+	// one entry per line
+	private int lineCount;
+	private byte[] kind;
+	private int[] position;
+	private int[] size;
+	/**
+	 * instructions: the opcode; labels: the symbol id; data: the offset in
+	 * the byte pool; others: the index in the list of other lines
+	 */
+	private int[] arg;
+	/**
+	 * labels: the local count and type; data: the length; word data: the
+	 * fixed item count or -1
+	 */
+	private int[] extra;
+	/** the first operand of each line; the line after it has the end */
+	private int[] firstOperand;
+	private int[] sourceFile;
+	private int[] sourceLine;
+
+	// one entry per operand
+	private int operandCount;
+	private byte[] operandMode;
+	private byte[] operandSize;
+	private int[] operandValue;
+	private int[] operandSymbol;
+
+	// one entry per symbolic operand, in line order: the relocation list
+	private int fixupCount;
+	private int[] fixupLine;
+	/** the index of the operand within its line */
+	private int[] fixupIndex;
+	private int[] fixupSymbol;
+	/** set once every symbol used by an instruction is known to be defined */
+	private boolean resolved;
+
+	private byte[] pool;
+	private int poolSize;
+	private List<AsmLine> others;
+
+	/**
+	 * Create an empty area.
+	 * @param owner  the game file the area is part of
+	 */
+	PackedCode(ObjectFile owner) {
+		this.owner = owner;
+		sourceFiles = new SymbolTable();
+		kind = new byte[256];
+		position = new int[256];
+		size = new int[256];
+		arg = new int[256];
+		extra = new int[256];
+		firstOperand = new int[257];
+		sourceFile = new int[256];
+		sourceLine = new int[256];
+		operandMode = new byte[256];
+		operandSize = new byte[256];
+		operandValue = new int[256];
+		operandSymbol = new int[256];
+		fixupLine = new int[256];
+		fixupIndex = new int[256];
+		fixupSymbol = new int[256];
+		pool = new byte[1024];
+		others = new ArrayList<AsmLine>();
+	}
+
+	/**
+	 * Return the number of lines in this area.
+	 * @return the number of lines
+	 */
+	int size() {
+		return lineCount;
+	}
+
+	/**
+	 * Pack a line and add it to the end of this area.
+	 * @param line  the line to add
+	 */
+	void add(AsmLine line) {
+		if (lineCount == kind.length) {
+			int length = lineCount * 2;
+			kind = Arrays.copyOf(kind, length);
+			position = Arrays.copyOf(position, length);
+			size = Arrays.copyOf(size, length);
+			arg = Arrays.copyOf(arg, length);
+			extra = Arrays.copyOf(extra, length);
+			firstOperand = Arrays.copyOf(firstOperand, length + 1);
+			sourceFile = Arrays.copyOf(sourceFile, length);
+			sourceLine = Arrays.copyOf(sourceLine, length);
+		}
+		int i = lineCount;
+		sourceFile[i] = line.getSourceFile() == null ? -1 : sourceFiles.intern(line.getSourceFile());
+		sourceLine[i] = line.getSourceLine();
+		position[i] = line.getPosition();
+		size[i] = line.getSize();
+		arg[i] = 0;
+		extra[i] = 0;
+		if (line instanceof AsmInstruction) {
+			AsmInstruction inst = (AsmInstruction)line;
+			kind[i] = INSTRUCTION;
+			arg[i] = inst.opcode;
+			addOperands(i, inst.operands);
+		} else if (line instanceof AsmLabel) {
+			AsmLabel label = (AsmLabel)line;
+			kind[i] = LABEL;
+			arg[i] = owner.getSymbolId(label.getName());
+			extra[i] = label.getLocalCount() << 3 | label.getType().ordinal();
+		} else if (line instanceof AsmData) {
+			byte[] data = ((AsmData)line).getData();
+			kind[i] = DATA;
+			arg[i] = poolSize;
+			extra[i] = data.length;
+			if (poolSize + data.length > pool.length) {
+				pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolSize + data.length));
+			}
+			System.arraycopy(data, 0, pool, poolSize, data.length);
+			poolSize += data.length;
+		} else if (line instanceof AsmVarData) {
+			AsmVarData data = (AsmVarData)line;
+			kind[i] = VARDATA;
+			extra[i] = data.getItemCount();
+			addOperands(i, data.getItems());
+		} else {
+			kind[i] = OTHER;
+			arg[i] = others.size();
+			others.add(line);
+		}
+		++lineCount;
+		firstOperand[lineCount] = operandCount;
+	}
+
+	private void addOperands(int line, List<Operand> operands) {
+		if (operandCount + operands.size() > operandMode.length) {
+			int length = Math.max(operandMode.length * 2, operandCount + operands.size());
+			operandMode = Arrays.copyOf(operandMode, length);
+			operandSize = Arrays.copyOf(operandSize, length);
+			operandValue = Arrays.copyOf(operandValue, length);
+			operandSymbol = Arrays.copyOf(operandSymbol, length);
+		}
+		for (int j = 0; j < operands.size(); ++j) {
+			Operand o = operands.get(j);
+			operandMode[operandCount] = (byte)o.getMode().ordinal();
+			operandSize[operandCount] = (byte)o.getSize();
+			operandValue[operandCount] = o.getRawValue();
+			operandSymbol[operandCount] = o.isSymbol() ? o.getSymbolId(owner) : -1;
+			if (o.isSymbol()) {
+				addFixup(line, j, operandSymbol[operandCount]);
+			}
+			++operandCount;
+		}
+	}
+
+	private void addFixup(int line, int index, int symbol) {
+		if (fixupCount == fixupLine.length) {
+			int length = fixupCount * 2;
+			fixupLine = Arrays.copyOf(fixupLine, length);
+			fixupIndex = Arrays.copyOf(fixupIndex, length);
+			fixupSymbol = Arrays.copyOf(fixupSymbol, length);
+		}
+		fixupLine[fixupCount] = line;
+		fixupIndex[fixupCount] = index;
+		fixupSymbol[fixupCount] = symbol;
+		++fixupCount;
+	}
+
+	/**
+	 * Rebuild the AsmLine a packed line stands for. The line is a copy;
+	 * changing it does not change this area.
+	 * @param i  the index of the line
+	 * @return the line
+	 */
+	AsmLine getLine(int i) {
+		AsmLine line;
+		switch (kind[i]) {
+		case INSTRUCTION:
+			AsmInstruction inst = new AsmInstruction(Mnemonic.byOpcode(arg[i]));
+			for (int op = firstOperand[i]; op < firstOperand[i + 1]; ++op) {
+				inst.addOperand(getOperand(i, op));
+			}
+			line = inst;
+			break;
+		case LABEL:
+			line = new AsmLabel(owner.getSymbolName(arg[i]), getLabelType(i), extra[i] >>> 3);
+			break;
+		case DATA:
+			line = new AsmData(Arrays.copyOfRange(pool, arg[i], arg[i] + extra[i]));
+			break;
+		case VARDATA:
+			AsmVarData data = extra[i] > 0 ? new AsmVarData(extra[i]) : new AsmVarData();
+			for (int op = firstOperand[i]; op < firstOperand[i + 1]; ++op) {
+				data.getItems().add(getOperand(i, op));
+			}
+			line = data;
+			break;
+		default:
+			return others.get(arg[i]);
+		}
+		line.setObjectFile(owner);
+		line.setPosition(position[i]);
+		line.setSource(getSourceFile(i), sourceLine[i]);
+		return line;
+	}
+
+	private Operand getOperand(int i, int op) {
+		String symbol = operandSymbol[op] < 0 ? null : owner.getSymbolName(operandSymbol[op]);
+		if (resolved && symbol != null && kind[i] == INSTRUCTION) {
+			// show instruction operands with their values once they're known
+			return new Operand(owner.getSymbolValue(operandSymbol[op]), modes[operandMode[op]], null, operandSize[op]);
+		}
+		return new Operand(operandValue[op], modes[operandMode[op]], symbol, operandSize[op]);
+	}
+
+	/**
+	 * Return a list view of the lines in this area. Lines read from the list
+	 * are rebuilt each time; lines added to it are packed onto the end of the
+	 * area.
+	 * @return the list
+	 */
+	List<AsmLine> asList() {
+		return new AbstractList<AsmLine>() {
+			@Override
+			public AsmLine get(int index) {
+				return getLine(index);
+			}
+			@Override
+			public int size() {
+				return lineCount;
+			}
+			@Override
+			public void add(int index, AsmLine line) {
+				if (index != lineCount) {
+					throw new UnsupportedOperationException("lines can only be added at the end");
+				}
+				PackedCode.this.add(line);
+			}
+		};
+	}
+
+	byte getKind(int i) {
+		return kind[i];
+	}
+	int getPosition(int i) {
+		return position[i];
+	}
+	int getSize(int i) {
+		return size[i];
+	}
+	/**
+	 * Return the symbol id of the label on a line.
+	 * @param i  the index of a label line
+	 * @return the symbol id
+	 */
+	int getLabelSymbol(int i) {
+		return arg[i];
+	}
+	AsmLabel.Type getLabelType(int i) {
+		return labelTypes[extra[i] & 7];
+	}
+	String getSourceFile(int i) {
+		return sourceFile[i] < 0 ? null : sourceFiles.getName(sourceFile[i]);
+	}
+	int getSourceLine(int i) {
+		return sourceLine[i];
+	}
+	String getSource(int i) {
+		return getSourceFile(i) + "(" + sourceLine[i] + ")";
+	}
+
+	/**
+	 * Split the lines of this area into blocks of consecutive lines and run
+	 * an action on each block. The blocks are handled in parallel on a pool,
+	 * or one after another, in order, if there is no pool.
+	 * @param pool    the pool to run on, or null to run on this thread
+	 * @param action  the action, given the index of a block
+	 */
+	void forEachBlock(ForkJoinPool pool, IntConsumer action) {
+		int blocks = getBlockCount();
+		if (pool == null || blocks <= 1) {
+			for (int b = 0; b < blocks; ++b) {
+				action.accept(b);
+			}
+		} else {
+			pool.invoke(new BlockTask(action, 0, blocks));
+		}
+	}
+
+	private static class BlockTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private IntConsumer action;
+		private int from;
+		private int to;
+
+		BlockTask(IntConsumer action, int from, int to) {
+			this.action = action;
+			this.from = from;
+			this.to = to;
+		}
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new BlockTask(action, from, middle), new BlockTask(action, middle, to));
+			} else {
+				action.accept(from);
+			}
+		}
+	}
+
+	int getBlockCount() {
+		return (lineCount + LINES_PER_BLOCK - 1) / LINES_PER_BLOCK;
+	}
+	int getBlockStart(int block) {
+		return block * LINES_PER_BLOCK;
+	}
+	int getBlockEnd(int block) {
+		return Math.min(lineCount, (block + 1) * LINES_PER_BLOCK);
+	}
+
+	/**
+	 * Assign a position to every line based on the current sizes. This is a
+	 * parallel prefix sum: each block adds up the sizes of its lines, the
+	 * block totals give the position of each block, and then each block
+	 * places its own lines.
+	 * @param start  the position of the first line
+	 * @param pool   the pool to run on, or null to run on this thread
+	 * @return the position after the last line
+	 */
+	int layout(int start, ForkJoinPool pool) {
+		int[] blockStart = new int[getBlockCount() + 1];
+		forEachBlock(pool, b -> {
+			int total = 0;
+			for (int i = getBlockStart(b); i < getBlockEnd(b); ++i) {
+				if (kind[i] == OTHER) {
+					size[i] = others.get(arg[i]).getSize();
+				}
+				total += size[i];
+			}
+			blockStart[b + 1] = total;
+		});
+		blockStart[0] = start;
+		for (int b = 1; b < blockStart.length; ++b) {
+			blockStart[b] += blockStart[b - 1];
+		}
+		forEachBlock(pool, b -> {
+			int pos = blockStart[b];
+			for (int i = getBlockStart(b); i < getBlockEnd(b); ++i) {
+				position[i] = pos;
+				if (kind[i] == OTHER) {
+					others.get(arg[i]).setPosition(pos);
+				}
+				pos += size[i];
+			}
+		});
+		return blockStart[blockStart.length - 1];
+	}
+
+	/**
+	 * Note the first line each label is defined on. Lines are numbered
+	 * across the whole game file, so the area's first line is numbered base.
+	 * @param pool   the pool to run on, or null to run on this thread
+	 * @param base   the number of the first line of this area
+	 * @param first  the first line of each label so far, by symbol id
+	 */
+	void claimLabels(ForkJoinPool pool, int base, AtomicIntegerArray first) {
+		forEachBlock(pool, b -> {
+			for (int i = getBlockStart(b); i < getBlockEnd(b); ++i) {
+				if (kind[i] == LABEL) {
+					first.accumulateAndGet(arg[i], base + i, Math::min);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Find every label line that isn't the first definition of its label.
+	 * @param pool   the pool to run on, or null to run on this thread
+	 * @param base   the number of the first line of this area
+	 * @param first  the first line of each label, by symbol id
+	 * @return a message for each duplicate, in line order
+	 */
+	List<String> findDuplicateLabels(ForkJoinPool pool, int base, AtomicIntegerArray first) {
+		List<List<String>> found = new ArrayList<List<String>>();
+		for (int b = 0; b < getBlockCount(); ++b) {
+			found.add(new ArrayList<String>());
+		}
+		forEachBlock(pool, b -> {
+			for (int i = getBlockStart(b); i < getBlockEnd(b); ++i) {
+				if (kind[i] == LABEL && first.get(arg[i]) != base + i) {
+					found.get(b).add("Label \"" + owner.getSymbolName(arg[i]) + "\" already defined. (Duplicate at "
+							+ getSourceFile(i) + ":" + sourceLine[i] + ")");
+				}
+			}
+		});
+		List<String> result = new ArrayList<String>();
+		for (List<String> block : found) {
+			result.addAll(block);
+		}
+		return result;
+	}
+
+	private static boolean isRelaxable(int mode, int symbol) {
+		return symbol >= 0 && (modes[mode] == Operand.Mode.Constant || modes[mode] == Operand.Mode.Indirect);
+	}
+
+	/**
+	 * Make every symbolic operand that can be relaxed as small as possible.
+	 * Layout then grows them as needed.
+	 * @param pool  the pool to run on, or null to run on this thread
+	 */
+	void shrinkOperands(ForkJoinPool pool) {
+		forEachBlock(pool, b -> {
+			for (int i = getBlockStart(b); i < getBlockEnd(b); ++i) {
+				if (kind[i] != INSTRUCTION) {
+					continue;
+				}
+				for (int op = firstOperand[i]; op < firstOperand[i + 1]; ++op) {
+					if (isRelaxable(operandMode[op], operandSymbol[op])) {
+						operandSize[op] = 1;
+					}
+				}
+				size[i] = instructionSize(i);
+			}
+		});
+	}
+
+	/**
+	 * Grow any relaxed operand whose value, at the current code positions, no
+	 * longer fits in its size. Operands only ever grow, so repeating layout
+	 * until nothing changes always finishes. Each line only changes its own
+	 * operands and size and only reads positions, so the blocks can be
+	 * checked in parallel.
+	 * @param pool  the pool to run on, or null to run on this thread
+	 * @return true if the size of any operand changed
+	 */
+	boolean growOperands(ForkJoinPool pool) {
+		boolean[] grew = new boolean[getBlockCount()];
+		forEachBlock(pool, b -> {
+			for (int i = getBlockStart(b); i < getBlockEnd(b); ++i) {
+				if (kind[i] == INSTRUCTION) {
+					grew[b] |= growOperands(i);
+				}
+			}
+		});
+		for (boolean g : grew) {
+			if (g) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean growOperands(int i) {
+		boolean grew = false;
+		boolean finalRelative = Mnemonic.byOpcode(arg[i]).finalRelative;
+		int last = firstOperand[i + 1] - 1;
+		for (int op = firstOperand[i]; op <= last; ++op) {
+			if (!isRelaxable(operandMode[op], operandSymbol[op]) || operandSize[op] == 4) {
+				continue;
+			}
+			int required;
+			if (!owner.isSymbolKnown(operandSymbol[op])) {
+				// this will be reported as an error when symbols are replaced
+				required = 4;
+			} else {
+				int value = owner.getSymbolValue(operandSymbol[op]);
+				if (op == last && finalRelative) {
+					value -= position[i] + size[i];
+					value += 2;
+				}
+				required = Operand.sizeFor(value, modes[operandMode[op]]);
+			}
+			if (required > operandSize[op]) {
+				operandSize[op] = (byte)required;
+				size[i] = instructionSize(i);
+				grew = true;
+			}
+		}
+		return grew;
+	}
+
+	private int instructionSize(int i) {
+		int count = firstOperand[i + 1] - firstOperand[i];
+		int result = Mnemonic.sizeOfOpcode(arg[i]) + (count + 1) / 2;
+		for (int op = firstOperand[i]; op < firstOperand[i + 1]; ++op) {
+			result += operandSize[op];
+		}
+		return result;
+	}
+
+	/**
+	 * Check that every symbol used as an instruction operand is defined. This
+	 * only looks at the relocation list, not at every line.
+	 */
+	void resolveSymbols() throws AsmException {
+		for (int f = 0; f < fixupCount; ++f) {
+			int i = fixupLine[f];
+			if (kind[i] == INSTRUCTION && !owner.isSymbolKnown(fixupSymbol[f])) {
+				throw new AsmException(getSource(i) + ": Undefined symbol \"" + owner.getSymbolName(fixupSymbol[f]) + "\"");
+			}
+		}
+		resolved = true;
+	}
+
+	/**
+	 * Write the value of every symbolic operand into the byte code, over the
+	 * placeholder written when the line was built. Symbols used as word data
+	 * that aren't defined are written as zero.
+	 * @param code  the buffer holding the byte code
+	 * @return the change this made to the checksum
+	 */
+	int applyFixups(ByteBuffer code) {
+		int checksum = 0;
+		for (int f = 0; f < fixupCount; ++f) {
+			checksum += applyFixup(f, code, 0);
+		}
+		return checksum;
+	}
+
+	/**
+	 * Write the value of one symbolic operand into the byte code.
+	 * @param f     the index of the fixup
+	 * @param code  the buffer holding the byte code
+	 * @param base  the game file position of index 0 of the buffer
+	 * @return the change this made to the checksum
+	 */
+	private int applyFixup(int f, ByteBuffer code, int base) {
+		int i = fixupLine[f];
+		int value = owner.getSymbolValue(fixupSymbol[f]);
+		int at, length;
+		if (kind[i] == VARDATA) {
+			at = position[i] - base + fixupIndex[f] * 4;
+			length = 4;
+		} else {
+			int first = firstOperand[i];
+			int op = first + fixupIndex[f];
+			at = position[i] - base + Mnemonic.sizeOfOpcode(arg[i]) + (firstOperand[i + 1] - first + 1) / 2;
+			for (int j = first; j < op; ++j) {
+				at += operandSize[j];
+			}
+			length = operandSize[op];
+			if (modes[operandMode[op]] == Operand.Mode.Variable) {
+				value *= 4;
+			}
+			if (op == firstOperand[i + 1] - 1 && Mnemonic.byOpcode(arg[i]).finalRelative) {
+				// last operand
+				value -= position[i] + size[i];
+				value += 2;
+			}
+		}
+		int checksum = -GameFileVerifier.checksum(code, at, at + length, base);
+		switch (length) {
+		case 1:
+			code.put(at, (byte)value);
+			break;
+		case 2:
+			code.putShort(at, (short)value);
+			break;
+		case 4:
+			code.putInt(at, value);
+			break;
+		}
+		return checksum + GameFileVerifier.checksum(code, at, at + length, base);
+	}
+
+	/**
+	 * Write the byte code for every line in this area, in order, through a
+	 * bounded window. Each line's symbols are filled in as soon as it has
+	 * been written, while it is still in the window.
+	 * @param out  the writer to write to
+	 */
+	void buildByteCode(StreamingWriter out) throws IOException {
+		int f = 0;
+		for (int i = 0; i < lineCount; ++i) {
+			if (kind[i] == OTHER && others.get(arg[i]) instanceof AsmBinaryFile) {
+				((AsmBinaryFile)others.get(arg[i])).writeTo(out);
+				continue;
+			}
+			ByteBuffer window = out.reserve(position[i], size[i]);
+			buildByteCode(window, i, i + 1);
+			for (; f < fixupCount && fixupLine[f] == i; ++f) {
+				applyFixup(f, window, out.getWindowStart());
+			}
+		}
+	}
+
+	/**
+	 * Write the byte code for every line in this area. Every line already
+	 * has its final position, so each block of lines writes into its own
+	 * view of the buffer, starting at the position of its first line, and
+	 * blocks can be written in parallel. The buffer's own position is not
+	 * changed.
+	 *
+	 * Each block adds what it wrote to the checksum while the bytes are
+	 * still fresh, so the game file doesn't need another pass to find it.
+	 * @param code  the buffer to write to; index 0 is game file position 0
+	 * @param pool  the pool to run on, or null to run on this thread
+	 * @return the checksum of the bytes written
+	 */
+	int buildByteCode(ByteBuffer code, ForkJoinPool pool) {
+		int[] sums = new int[getBlockCount()];
+		forEachBlock(pool, b -> {
+			ByteBuffer slice = code.duplicate();
+			slice.order(code.order());
+			int start = position[getBlockStart(b)];
+			slice.position(start);
+			buildByteCode(slice, getBlockStart(b), getBlockEnd(b));
+			sums[b] = GameFileVerifier.checksum(code, start, slice.position());
+		});
+		int checksum = 0;
+		for (int sum : sums) {
+			checksum += sum;
+		}
+		return checksum;
+	}
+
+	private void buildByteCode(ByteBuffer code, int from, int to) {
+		for (int i = from; i < to; ++i) {
+			switch (kind[i]) {
+			case INSTRUCTION:
+				buildInstruction(code, i);
+				break;
+			case LABEL:
+				AsmLabel.writeHeader(code, getLabelType(i), extra[i] >>> 3);
+				break;
+			case DATA:
+				code.put(pool, arg[i], extra[i]);
+				break;
+			case VARDATA:
+				for (int op = firstOperand[i]; op < firstOperand[i + 1]; ++op) {
+					// symbols are filled in by applyFixups
+					code.putInt(operandSymbol[op] >= 0 ? 0 : valueOf(op));
+				}
+				for (int j = firstOperand[i + 1] - firstOperand[i]; j < extra[i]; ++j) {
+					code.putInt(0);
+				}
+				break;
+			default:
+				others.get(arg[i]).buildByteCode(code);
+			}
+		}
+	}
+
+	private int valueOf(int op) {
+		if (modes[operandMode[op]] == Operand.Mode.Variable) {
+			return operandValue[op] * 4;
+		}
+		return operandValue[op];
+	}
+
+	private void buildInstruction(ByteBuffer code, int i) {
+		int opcode = arg[i];
+		switch (Mnemonic.sizeOfOpcode(opcode)) {
+		case 1:
+			code.put((byte)opcode);
+			break;
+		case 2:
+			code.putShort((short)(opcode | 0x8000));
+			break;
+		default:
+			code.putInt(opcode | 0xC0000000);
+		}
+
+		int first = firstOperand[i], end = firstOperand[i + 1];
+		for (int op = first; op < end; op += 2) {
+			int b = Operand.addressMode(operandSize[op], modes[operandMode[op]]);
+			if (op + 1 < end) {
+				b += Operand.addressMode(operandSize[op + 1], modes[operandMode[op + 1]]) << 4;
+			}
+			code.put((byte)b);
+		}
+
+		Mnemonic m = Mnemonic.byOpcode(opcode);
+		for (int op = first; op < end; ++op) {
+			int value = valueOf(op);
+			if (op == end - 1 && m != null && m.finalRelative) {
+				// last operand
+				value -= position[i] + size[i];
+				value += 2;
+			}
+
+			switch (operandSize[op]) {
+			case 0:
+				break;
+			case 1:
+				code.put((byte)value);
+				break;
+			case 2:
+				code.putShort((short)value);
+				break;
+			case 4:
+				code.putInt(value);
+				break;
+			default:
+				throw new IllegalStateException("Bad operand size " + operandSize[op]);
+			}
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package com.grenslair.glulx.ggasm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ParseCache stores the parsed form of included files on disk so later
+ * builds can skip lexing and parsing them. Each entry is a ParseRecord,
+ * stored in a file named after the hash of the included file's name and
+ * content and the assembler version. An entry is only used if everything
+ * the original parse depended on is unchanged; otherwise the file is parsed
+ * again and the entry replaced.
+ *
+ * A cache can also be kept in memory, for a process that builds the same
+ * game file repeatedly. Only the latest entry for each file is kept.
+ */
+public class ParseCache {
+    private final Path directory;
+    private final Map<String, Entry> memory;
+    private final AtomicInteger hits;
+    private final AtomicInteger misses;
+
+    /**
+     * Create a parse cache that keeps its entries in a directory. The
+     * directory is created if it does not exist.
+     *
+     * @param directory
+     *            the directory to store entries in
+     */
+    public ParseCache(String directory) throws IOException {
+        this.directory = Paths.get(directory);
+        Files.createDirectories(this.directory);
+        memory = null;
+        hits = new AtomicInteger();
+        misses = new AtomicInteger();
+    }
+
+    /**
+     * Create a parse cache that keeps its entries in memory.
+     */
+    public ParseCache() {
+        directory = null;
+        memory = new ConcurrentHashMap<>();
+        hits = new AtomicInteger();
+        misses = new AtomicInteger();
+    }
+
+    /**
+     * An entry of a cache kept in memory.
+     */
+    private static class Entry {
+        final byte[] hash;
+        final byte[] content;
+
+        Entry(byte[] hash, byte[] content) {
+            this.hash = hash;
+            this.content = content;
+        }
+    }
+
+    /**
+     * Compute the hash used to identify the content of a file.
+     *
+     * @param content
+     *            the content of the file
+     * @return the hash of the content
+     */
+    public static byte[] hash(ByteBuffer content) {
+        MessageDigest digest = newDigest();
+        digest.update(content.duplicate());
+        return digest.digest();
+    }
+
+    /**
+     * Read the cache entry for a file, if there is one.
+     *
+     * @param filename
+     *            the name of the file
+     * @param hash
+     *            the hash of the file's content
+     * @return the stored entry, or null if there is none
+     */
+    public byte[] read(String filename, byte[] hash) {
+        if (memory != null) {
+            Entry entry = memory.get(filename);
+            return entry != null && Arrays.equals(entry.hash, hash) ? entry.content : null;
+        }
+        try {
+            return Files.readAllBytes(entryFile(filename, hash));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decode a cache entry read by read().
+     *
+     * @param entry
+     *            the content of the entry
+     * @param headerOnly
+     *            if true, only the list of files the entry depends on is read
+     * @return the record stored in the entry, or null if the entry is
+     *         unusable
+     */
+    public static ParseRecord decode(byte[] entry, boolean headerOnly) {
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return ParseRecord.read(new ByteArrayInputStream(entry), headerOnly);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Store the record of parsing a file. The entry is written to a temporary
+     * file first, so builds running at the same time never see a partly
+     * written entry.
+     *
+     * @param record
+     *            the record to store
+     * @param hash
+     *            the hash of the file's content
+     */
+    public void write(ParseRecord record, byte[] hash) throws IOException {
+        if (!record.isCacheable()) {
+            return;
+        }
+        if (memory != null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            record.write(out);
+            memory.put(record.getPath(), new Entry(hash, out.toByteArray()));
+            return;
+        }
+        Path target = entryFile(record.getPath(), hash);
+        Path temp = Files.createTempFile(directory, "entry", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                record.write(out);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    public void hit() {
+        hits.incrementAndGet();
+    }
+
+    public void miss() {
+        misses.incrementAndGet();
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Return a summary of how the cache was used.
+     *
+     * @return the summary
+     */
+    public String report() {
+        return "parse cache: " + hits.get() + " hits, " + misses.get() + " misses";
+    }
+
+    private Path entryFile(String filename, byte[] hash) {
+        MessageDigest digest = newDigest();
+        digest.update(filename.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(hash);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        sb.append("-").append(Assemble.majorVersion).append(".").append(Assemble.minorVersion).append(".")
+                .append(Assemble.patchVersion).append(".ggc");
+        return directory.resolve(sb.toString());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
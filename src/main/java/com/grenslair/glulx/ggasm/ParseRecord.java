@@ -0,0 +1,607 @@
+package com.grenslair.glulx.ggasm;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A ParseRecord holds everything that parsing a source file (including the
+ * files it includes) did to a game file: the lines it added, the constants
+ * and strings it defined and so on, in the order they happened. Replaying the
+ * record into a game file has the same effect as parsing the file again.
+ *
+ * Parsing a file is only repeatable in the same context, so the record also
+ * notes what the parse depended on from outside the file: the ROM setting it
+ * started with, the result of looking up constants it did not define itself,
+ * and the content of every other file involved.
+ */
+public class ParseRecord {
+    private static final int MAGIC = 0x47475043; // GGPC
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int OP_LINE = 0;
+    private static final int OP_ROM = 1;
+    private static final int OP_CONSTANT = 2;
+    private static final int OP_STRING = 3;
+    private static final int OP_NAMED_STRING = 4;
+    private static final int OP_STACK_SIZE = 5;
+    private static final int OP_MESSAGE = 6;
+    private static final int OP_DEPENDENCY = 7;
+
+    private static final int LINE_LABEL = 0;
+    private static final int LINE_DATA = 1;
+    private static final int LINE_VARDATA = 2;
+    private static final int LINE_INSTRUCTION = 3;
+    private static final int LINE_BINARY = 4;
+
+    /**
+     * One thing done to the game file during parsing.
+     */
+    private static class Op {
+        int type;
+        AsmLine line;
+        String name;
+        String text;
+        int value;
+        byte[] hash;
+    }
+
+    private String path;
+    private boolean startRom;
+    private List<Op> ops;
+    private Map<String, byte[]> files;
+    private Map<String, Boolean> binaryFiles;
+    private Map<String, int[]> constants;
+    private HashSet<String> definedHere;
+    private boolean cacheable;
+
+    /**
+     * Create a new, empty record for parsing a file.
+     *
+     * @param path
+     *            the name of the file being parsed
+     * @param startRom
+     *            whether lines were being added to ROM when the parse started
+     */
+    public ParseRecord(String path, boolean startRom) {
+        this.path = path;
+        this.startRom = startRom;
+        ops = new ArrayList<>();
+        files = new LinkedHashMap<>();
+        binaryFiles = new HashMap<>();
+        constants = new LinkedHashMap<>();
+        definedHere = new HashSet<>();
+        cacheable = true;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Return the files, other than the file itself, that this record depends
+     * on and the hash of their content.
+     *
+     * @return a map from file name to content hash
+     */
+    public Map<String, byte[]> getFiles() {
+        return files;
+    }
+
+    /**
+     * Return whether a file this record depends on was included as binary
+     * data rather than as source.
+     *
+     * @param file
+     *            the name of the file
+     * @return true if the file is binary data
+     */
+    public boolean isBinaryFile(String file) {
+        return Boolean.TRUE.equals(binaryFiles.get(file));
+    }
+
+    /**
+     * Return the symbols this record defines that other files can refer to:
+     * its labels, constants and named strings.
+     *
+     * @return the names of the symbols
+     */
+    public Set<String> getDefinedSymbols() {
+        Set<String> defined = new LinkedHashSet<>();
+        for (Op op : ops) {
+            if (op.type == OP_LINE && op.line instanceof AsmLabel) {
+                defined.add(((AsmLabel) op.line).getName());
+            } else if (op.type == OP_CONSTANT || op.type == OP_NAMED_STRING) {
+                defined.add(op.name);
+            }
+        }
+        return defined;
+    }
+
+    /**
+     * Return the labels of the strings this record added to the string
+     * table without naming them. These are only meaningful within the
+     * record, and are renamed when it is replayed.
+     *
+     * @return the names of the labels
+     */
+    public Set<String> getLocalSymbols() {
+        Set<String> local = new LinkedHashSet<>();
+        for (Op op : ops) {
+            if (op.type == OP_STRING) {
+                local.add(op.name);
+            }
+        }
+        return local;
+    }
+
+    /**
+     * Return the symbols used by the lines of this record that it does not
+     * define itself.
+     *
+     * @return the names of the symbols
+     */
+    public Set<String> getUndefinedSymbols() {
+        Set<String> used = new LinkedHashSet<>();
+        for (Op op : ops) {
+            List<Operand> operands;
+            if (op.type != OP_LINE) {
+                continue;
+            } else if (op.line instanceof AsmInstruction) {
+                operands = ((AsmInstruction) op.line).operands;
+            } else if (op.line instanceof AsmVarData) {
+                operands = ((AsmVarData) op.line).getItems();
+            } else {
+                continue;
+            }
+            for (Operand o : operands) {
+                if (o.isSymbol()) {
+                    used.add(o.getSymbol());
+                }
+            }
+        }
+        used.removeAll(getDefinedSymbols());
+        used.removeAll(getLocalSymbols());
+        return used;
+    }
+
+    /**
+     * Return whether everything this record contains can be written to disk.
+     *
+     * @return true if the record can be stored
+     */
+    public boolean isCacheable() {
+        return cacheable;
+    }
+
+    void addLine(AsmLine line) {
+        if (!(line instanceof AsmLabel || line instanceof AsmData || line instanceof AsmVarData
+                || line instanceof AsmInstruction || line instanceof AsmBinaryFile)) {
+            cacheable = false;
+        }
+        Op op = add(OP_LINE);
+        op.line = line;
+    }
+
+    void addToRom(boolean toROM) {
+        add(OP_ROM).value = toROM ? 1 : 0;
+    }
+
+    void addConstant(String name, int value, int line) {
+        Op op = add(OP_CONSTANT);
+        op.name = name;
+        op.value = value;
+        op.text = Integer.toString(line);
+        definedHere.add(name);
+    }
+
+    void addString(String label, String text) {
+        Op op = add(OP_STRING);
+        op.name = label;
+        op.text = text;
+    }
+
+    void addNamedString(String label, String text) {
+        Op op = add(OP_NAMED_STRING);
+        op.name = label;
+        op.text = text;
+    }
+
+    void setStackSize(int size) {
+        add(OP_STACK_SIZE).value = size;
+    }
+
+    void message(String text) {
+        add(OP_MESSAGE).text = text;
+    }
+
+    void dependsOn(String file, byte[] hash, boolean binary) {
+        Op op = add(OP_DEPENDENCY);
+        op.name = file;
+        op.hash = hash;
+        op.value = binary ? 1 : 0;
+        files.putIfAbsent(file, hash);
+        binaryFiles.putIfAbsent(file, binary);
+    }
+
+    void lookupConstant(String name, boolean defined, int value) {
+        if (!definedHere.contains(name)) {
+            constants.putIfAbsent(name, new int[] { defined ? 1 : 0, value });
+        }
+    }
+
+    private Op add(int type) {
+        Op op = new Op();
+        op.type = type;
+        ops.add(op);
+        return op;
+    }
+
+    /**
+     * Check whether replaying this record into a game file would have the
+     * same result as parsing the file again.
+     *
+     * @param asm
+     *            the game file the record would be replayed into
+     * @param loader
+     *            the source loader used to check the content of the files
+     *            the record depends on
+     * @return true if the record can be replayed
+     */
+    public boolean isValidFor(ObjectFile asm, SourceLoader loader) {
+        if (asm.isToRom() != startRom) {
+            return false;
+        }
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            if (!Arrays.equals(file.getValue(), loader.getHash(file.getKey()))) {
+                return false;
+            }
+        }
+        for (Map.Entry<String, int[]> constant : constants.entrySet()) {
+            boolean defined = asm.isConstantDefined(constant.getKey());
+            if (defined != (constant.getValue()[0] != 0)) {
+                return false;
+            }
+            if (defined && asm.getConstantValue(constant.getKey()) != constant.getValue()[1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Apply the content of this record to a game file. A record may only be
+     * replayed once, since the lines it contains become part of the game
+     * file.
+     *
+     * @param asm
+     *            the game file to add to
+     */
+    public void replay(ObjectFile asm) throws AsmException {
+        // the string table of the game file may already contain other
+        // strings, so the labels given to strings can differ from those
+        // recorded
+        HashMap<String, String> stringLabels = new HashMap<>();
+        for (Op op : ops) {
+            switch (op.type) {
+            case OP_LINE:
+                if (!stringLabels.isEmpty()) {
+                    renameStrings(op.line, stringLabels);
+                }
+                asm.addLine(op.line);
+                break;
+            case OP_ROM:
+                asm.addToRom(op.value != 0);
+                break;
+            case OP_CONSTANT:
+                asm.addConstant(op.name, op.value, Integer.parseInt(op.text));
+                break;
+            case OP_STRING:
+                String label = asm.addString(op.text);
+                if (!label.equals(op.name)) {
+                    stringLabels.put(op.name, label);
+                }
+                break;
+            case OP_NAMED_STRING:
+                asm.addString(op.name, op.text);
+                break;
+            case OP_STACK_SIZE:
+                asm.setStackSize(op.value);
+                break;
+            case OP_MESSAGE:
+                asm.message(op.text);
+                break;
+            case OP_DEPENDENCY:
+                asm.dependsOn(op.name, op.hash, op.value != 0);
+                break;
+            }
+        }
+    }
+
+    private static void renameStrings(AsmLine line, Map<String, String> labels) {
+        List<Operand> operands;
+        if (line instanceof AsmInstruction) {
+            operands = ((AsmInstruction) line).operands;
+        } else if (line instanceof AsmVarData) {
+            operands = ((AsmVarData) line).getItems();
+        } else {
+            return;
+        }
+        for (Operand o : operands) {
+            if (o.isSymbol() && labels.containsKey(o.getSymbol())) {
+                o.setSymbol(labels.get(o.getSymbol()));
+            }
+        }
+    }
+
+    /**
+     * Write this record to a stream.
+     *
+     * @param stream
+     *            the stream to write to
+     */
+    public void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(Assemble.majorVersion);
+        out.writeInt(Assemble.minorVersion);
+        out.writeInt(Assemble.patchVersion);
+        writeString(out, path);
+        out.writeBoolean(startRom);
+
+        out.writeInt(files.size());
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            writeString(out, file.getKey());
+            writeBytes(out, file.getValue());
+            out.writeBoolean(isBinaryFile(file.getKey()));
+        }
+        out.writeInt(constants.size());
+        for (Map.Entry<String, int[]> constant : constants.entrySet()) {
+            writeString(out, constant.getKey());
+            out.writeBoolean(constant.getValue()[0] != 0);
+            out.writeInt(constant.getValue()[1]);
+        }
+
+        out.writeInt(ops.size());
+        for (Op op : ops) {
+            out.writeByte(op.type);
+            switch (op.type) {
+            case OP_LINE:
+                writeLine(out, op.line);
+                break;
+            case OP_ROM:
+            case OP_STACK_SIZE:
+                out.writeInt(op.value);
+                break;
+            case OP_CONSTANT:
+                writeString(out, op.name);
+                out.writeInt(op.value);
+                writeString(out, op.text);
+                break;
+            case OP_STRING:
+            case OP_NAMED_STRING:
+                writeString(out, op.name);
+                writeString(out, op.text);
+                break;
+            case OP_MESSAGE:
+                writeString(out, op.text);
+                break;
+            case OP_DEPENDENCY:
+                writeString(out, op.name);
+                writeBytes(out, op.hash);
+                out.writeInt(op.value);
+                break;
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Read a record from a stream. If the stream was not written by this
+     * version of the assembler, null is returned.
+     *
+     * @param stream
+     *            the stream to read from
+     * @param headerOnly
+     *            if true, stop after the file dependencies; the record
+     *            returned can only be used to find the files it depends on
+     * @return the record read, or null
+     */
+    public static ParseRecord read(InputStream stream, boolean headerOnly) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || in.readInt() != Assemble.majorVersion
+                || in.readInt() != Assemble.minorVersion || in.readInt() != Assemble.patchVersion) {
+            return null;
+        }
+        ParseRecord record = new ParseRecord(readString(in), in.readBoolean());
+
+        int count = in.readInt();
+        for (int i = 0; i < count; ++i) {
+            String file = readString(in);
+            record.files.put(file, readBytes(in));
+            record.binaryFiles.put(file, in.readBoolean());
+        }
+        if (headerOnly) {
+            return record;
+        }
+        count = in.readInt();
+        for (int i = 0; i < count; ++i) {
+            String name = readString(in);
+            record.constants.put(name, new int[] { in.readBoolean() ? 1 : 0, in.readInt() });
+        }
+
+        count = in.readInt();
+        for (int i = 0; i < count; ++i) {
+            Op op = record.add(in.readByte());
+            switch (op.type) {
+            case OP_LINE:
+                op.line = readLine(in);
+                break;
+            case OP_ROM:
+            case OP_STACK_SIZE:
+                op.value = in.readInt();
+                break;
+            case OP_CONSTANT:
+                op.name = readString(in);
+                op.value = in.readInt();
+                op.text = readString(in);
+                break;
+            case OP_STRING:
+            case OP_NAMED_STRING:
+                op.name = readString(in);
+                op.text = readString(in);
+                break;
+            case OP_MESSAGE:
+                op.text = readString(in);
+                break;
+            case OP_DEPENDENCY:
+                op.name = readString(in);
+                op.hash = readBytes(in);
+                op.value = in.readInt();
+                break;
+            default:
+                throw new IOException("Bad parse record entry " + op.type);
+            }
+        }
+        return record;
+    }
+
+    private static void writeLine(DataOutputStream out, AsmLine line) throws IOException {
+        if (line instanceof AsmLabel) {
+            AsmLabel label = (AsmLabel) line;
+            out.writeByte(LINE_LABEL);
+            writeString(out, label.getName());
+            out.writeByte(label.getType().ordinal());
+            out.writeInt(label.getLocalCount());
+        } else if (line instanceof AsmData) {
+            out.writeByte(LINE_DATA);
+            writeBytes(out, ((AsmData) line).getData());
+        } else if (line instanceof AsmVarData) {
+            AsmVarData data = (AsmVarData) line;
+            out.writeByte(LINE_VARDATA);
+            out.writeInt(data.getItemCount());
+            writeOperands(out, data.getItems());
+        } else if (line instanceof AsmInstruction) {
+            AsmInstruction instruction = (AsmInstruction) line;
+            out.writeByte(LINE_INSTRUCTION);
+            out.writeInt(instruction.opcode);
+            writeOperands(out, instruction.operands);
+        } else if (line instanceof AsmBinaryFile) {
+            AsmBinaryFile binary = (AsmBinaryFile) line;
+            out.writeByte(LINE_BINARY);
+            writeString(out, binary.getFilename());
+            out.writeLong(binary.getOffset());
+            out.writeInt(binary.getSize());
+        } else {
+            throw new IOException("Cannot store " + line.getClass().getSimpleName());
+        }
+        writeString(out, line.getSourceFile());
+        out.writeInt(line.getSourceLine());
+    }
+
+    private static AsmLine readLine(DataInputStream in) throws IOException {
+        AsmLine line;
+        int type = in.readByte();
+        switch (type) {
+        case LINE_LABEL:
+            String name = readString(in);
+            AsmLabel.Type labelType = AsmLabel.Type.values()[in.readByte()];
+            line = new AsmLabel(name, labelType, in.readInt());
+            break;
+        case LINE_DATA:
+            line = new AsmData(readBytes(in));
+            break;
+        case LINE_VARDATA:
+            AsmVarData data = new AsmVarData(in.readInt());
+            for (Operand o : readOperands(in)) {
+                data.getItems().add(o);
+            }
+            line = data;
+            break;
+        case LINE_INSTRUCTION:
+            Mnemonic m = Mnemonic.byOpcode(in.readInt());
+            if (m == null) {
+                throw new IOException("Bad opcode in parse record");
+            }
+            AsmInstruction instruction = new AsmInstruction(m);
+            for (Operand o : readOperands(in)) {
+                instruction.addOperand(o);
+            }
+            line = instruction;
+            break;
+        case LINE_BINARY:
+            line = new AsmBinaryFile(readString(in), in.readLong(), in.readInt());
+            break;
+        default:
+            throw new IOException("Bad line type " + type);
+        }
+        line.setSource(readString(in), in.readInt());
+        return line;
+    }
+
+    private static void writeOperands(DataOutputStream out, List<Operand> operands) throws IOException {
+        out.writeInt(operands.size());
+        for (Operand o : operands) {
+            out.writeByte(o.getMode().ordinal());
+            out.writeInt(o.getRawValue());
+            out.writeByte(o.getSize());
+            writeString(out, o.symbolName);
+        }
+    }
+
+    private static List<Operand> readOperands(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Operand> operands = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            Operand.Mode mode = Operand.Mode.values()[in.readByte()];
+            int value = in.readInt();
+            int size = in.readByte();
+            operands.add(new Operand(value, mode, readString(in), size));
+        }
+        return operands;
+    }
+
+    static void writeString(DataOutputStream out, String text) throws IOException {
+        writeBytes(out, text == null ? null : text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        if (bytes == null) {
+            return null;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,283 @@
+package com.grenslair.glulx.ggasm;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The PeepholeOptimizer rewrites short, redundant instruction sequences in a
+ * game file before it is laid out. Each rewrite looks at no more than two
+ * neighbouring instructions and only applies when no label lies between
+ * them, so code that jumps into the middle of a sequence keeps working.
+ */
+public class PeepholeOptimizer {
+	/**
+	 * The rewrites the optimizer knows about.
+	 */
+	public enum Rule {
+		/** copy X sp, followed by an instruction that pops it: use X directly */
+		PushPop,
+		/** a jump to the instruction that follows it anyway: remove it */
+		JumpNext,
+		/** call F N sp, followed by return sp: tailcall F N */
+		TailCall,
+		/** copy of a variable or memory location to itself: remove it */
+		SelfCopy;
+
+		/**
+		 * Return the name used for this rule on the command line and in
+		 * reports.
+		 * @return the name of the rule
+		 */
+		public String getName() {
+			return name().toLowerCase(Locale.US);
+		}
+	}
+
+	/**
+	 * Instructions whose first operand is a store rather than a load, so a
+	 * stack reference there pushes instead of pops.
+	 */
+	private static final Set<Integer> storeFirst = new HashSet<Integer>();
+	static {
+		for (String name : new String[] { "catch", "stkcount", "getmemsize", "verify", "saveundo", "restoreundo",
+				"getstringtbl", "getiosys" }) {
+			storeFirst.add(Mnemonic.list.get(name).opcode);
+		}
+	}
+
+	private static final int COPY = Mnemonic.list.get("copy").opcode;
+	private static final int COPYS = Mnemonic.list.get("copys").opcode;
+	private static final int COPYB = Mnemonic.list.get("copyb").opcode;
+	private static final int JUMP = Mnemonic.list.get("jump").opcode;
+	private static final int CALL = Mnemonic.list.get("call").opcode;
+	private static final int RETURN = Mnemonic.list.get("return").opcode;
+
+	private EnumSet<Rule> rules;
+	private int[] counts;
+	private Set<String> duplicateLabels;
+
+	/**
+	 * Create an optimizer that applies every rule.
+	 */
+	public PeepholeOptimizer() {
+		this(EnumSet.allOf(Rule.class));
+	}
+	/**
+	 * Create an optimizer that applies only some of the rules.
+	 * @param rules  the rules to apply
+	 */
+	public PeepholeOptimizer(Set<Rule> rules) {
+		this.rules = EnumSet.noneOf(Rule.class);
+		this.rules.addAll(rules);
+		counts = new int[Rule.values().length];
+	}
+
+	/**
+	 * Parse a comma separated list of rule names.
+	 * @param names  the list of names
+	 * @return the rules named
+	 */
+	public static Set<Rule> parseRules(String names) throws AsmException {
+		EnumSet<Rule> result = EnumSet.noneOf(Rule.class);
+		for (String name : names.split(",")) {
+			Rule found = null;
+			for (Rule r : Rule.values()) {
+				if (r.getName().equals(name.trim())) {
+					found = r;
+				}
+			}
+			if (found == null) {
+				throw new AsmException("Unknown peephole rule \"" + name + "\"");
+			}
+			result.add(found);
+		}
+		return result;
+	}
+
+	/**
+	 * Return the number of times a rule has been applied.
+	 * @param rule  the rule to check
+	 * @return the number of rewrites done by the rule
+	 */
+	public int getCount(Rule rule) {
+		return counts[rule.ordinal()];
+	}
+
+	/**
+	 * Return a summary of the rewrites that were done.
+	 * @return the summary
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder("peephole:");
+		for (Rule r : Rule.values()) {
+			if (rules.contains(r)) {
+				sb.append(" ").append(r.getName()).append(" ").append(counts[r.ordinal()]);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Optimize the lines of a game file. Every area of the game file must be
+	 * passed in, since a rule may depend on where labels are defined.
+	 * @param areas  the lists of lines making up the game file
+	 * @return the optimized lists, in the same order
+	 */
+	public List<List<AsmLine>> optimize(List<List<AsmLine>> areas) {
+		HashMap<String,Integer> labelCount = new HashMap<String,Integer>();
+		for (List<AsmLine> lines : areas) {
+			for (AsmLine line : lines) {
+				if (line instanceof AsmLabel) {
+					labelCount.merge(((AsmLabel)line).getName(), 1, Integer::sum);
+				}
+			}
+		}
+		duplicateLabels = new HashSet<String>();
+		for (String name : labelCount.keySet()) {
+			if (labelCount.get(name) > 1) {
+				duplicateLabels.add(name);
+			}
+		}
+
+		List<List<AsmLine>> result = new ArrayList<List<AsmLine>>();
+		for (List<AsmLine> lines : areas) {
+			List<AsmLine> current = lines;
+			List<AsmLine> next = pass(current);
+			// a rewrite can bring two more instructions together, so repeat
+			// until nothing changes
+			while (next.size() != current.size()) {
+				current = next;
+				next = pass(current);
+			}
+			result.add(next);
+		}
+		return result;
+	}
+
+	private List<AsmLine> pass(List<AsmLine> lines) {
+		List<AsmLine> out = new ArrayList<AsmLine>(lines.size());
+		for (int i = 0; i < lines.size(); ++i) {
+			AsmLine line = lines.get(i);
+			if (!(line instanceof AsmInstruction)) {
+				out.add(line);
+				continue;
+			}
+			AsmInstruction inst = (AsmInstruction)line;
+			AsmLine following = i + 1 < lines.size() ? lines.get(i + 1) : null;
+			AsmInstruction next = following instanceof AsmInstruction ? (AsmInstruction)following : null;
+
+			if (next != null && rules.contains(Rule.PushPop) && isPushPop(inst, next)) {
+				next.setOperand(0, inst.operands.get(0));
+				++counts[Rule.PushPop.ordinal()];
+				continue;
+			}
+			if (rules.contains(Rule.JumpNext) && isJumpNext(inst, lines, i)) {
+				++counts[Rule.JumpNext.ordinal()];
+				continue;
+			}
+			if (next != null && rules.contains(Rule.TailCall) && isCallReturn(inst, next)) {
+				AsmInstruction tailcall = new AsmInstruction(Mnemonic.list.get("tailcall"),
+						inst.operands.get(0), inst.operands.get(1));
+				tailcall.setSource(inst.getSourceFile(), inst.getSourceLine());
+				tailcall.setObjectFile(inst.getObjectFile());
+				out.add(tailcall);
+				++i;
+				++counts[Rule.TailCall.ordinal()];
+				continue;
+			}
+			if (next != null && rules.contains(Rule.SelfCopy) && isSelfCopy(inst)) {
+				++counts[Rule.SelfCopy.ordinal()];
+				continue;
+			}
+			out.add(line);
+		}
+		return out;
+	}
+
+	private static boolean isStack(Operand o) {
+		return !o.isSymbol() && o.getMode() == Operand.Mode.Variable && o.getRawValue() == -1;
+	}
+
+	/**
+	 * copy X sp, then an instruction whose first operand loads from the
+	 * stack. The value popped is always X.
+	 */
+	private static boolean isPushPop(AsmInstruction inst, AsmInstruction next) {
+		if (inst.opcode != COPY || inst.operands.size() != 2 || !isStack(inst.operands.get(1))) {
+			return false;
+		}
+		if (next.operands.isEmpty() || !isStack(next.operands.get(0))
+				|| storeFirst.contains(next.opcode)) {
+			return false;
+		}
+		// copys and copyb keep the low bits of a value popped from the stack,
+		// but read only the first bytes of a memory location
+		Operand from = inst.operands.get(0);
+		if ((next.opcode == COPYS || next.opcode == COPYB)
+				&& (from.getMode() == Operand.Mode.Indirect || from.getMode() == Operand.Mode.AfterRom)) {
+			return false;
+		}
+		// the last operand of a branch is an offset that is adjusted when the
+		// code is built, so it must stay on the stack
+		return !(next.mnemonic.finalRelative && next.operands.size() == 1);
+	}
+
+	/**
+	 * A jump to a label that comes before the next instruction.
+	 */
+	private boolean isJumpNext(AsmInstruction inst, List<AsmLine> lines, int index) {
+		if (inst.opcode != JUMP || inst.operands.size() != 1 || !inst.operands.get(0).isSymbol()) {
+			return false;
+		}
+		String target = inst.operands.get(0).getSymbol();
+		if (duplicateLabels.contains(target) || inst.getObjectFile().isConstantDefined(target)) {
+			return false;
+		}
+		for (int i = index + 1; i < lines.size(); ++i) {
+			AsmLine line = lines.get(i);
+			if (!(line instanceof AsmLabel) || line.getSize() != 0) {
+				return false;
+			}
+			if (((AsmLabel)line).getName().equals(target)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * call F N sp, then return sp.
+	 */
+	private static boolean isCallReturn(AsmInstruction inst, AsmInstruction next) {
+		return inst.opcode == CALL && inst.operands.size() == 3 && isStack(inst.operands.get(2))
+				&& next.opcode == RETURN && next.operands.size() == 1 && isStack(next.operands.get(0));
+	}
+
+	/**
+	 * copy X X, where X is a local variable or memory location. This is only
+	 * removed when another instruction follows, so a label on it still leads
+	 * to an instruction.
+	 */
+	private static boolean isSelfCopy(AsmInstruction inst) {
+		if (inst.opcode != COPY || inst.operands.size() != 2) {
+			return false;
+		}
+		Operand from = inst.operands.get(0);
+		Operand to = inst.operands.get(1);
+		if (from.getMode() != to.getMode() || isStack(from)) {
+			return false;
+		}
+		if (from.getMode() != Operand.Mode.Variable && from.getMode() != Operand.Mode.Indirect) {
+			return false;
+		}
+		if (from.isSymbol() || to.isSymbol()) {
+			return from.getSymbol().equals(to.getSymbol());
+		}
+		return from.getRawValue() == to.getRawValue();
+	}
+}
@@ -0,0 +1,278 @@
+package com.grenslair.glulx.ggasm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The SourceLoader lexes the source files of a build ahead of parsing. Once a
+ * file has been lexed, its include statements are found and the included files
+ * are lexed as well, each as a separate task on a fork-join pool, so all the
+ * files of a build are lexed concurrently. Parsing still happens one file at a
+ * time in source order, since the meaning of a statement can depend on the
+ * constants and ROM setting left by everything before it; the parser simply
+ * waits for the tokens of each file as it reaches the file.
+ *
+ * If a parse cache is in use, an included file that has a cache entry is not
+ * lexed ahead of time; the files the entry depends on are loaded instead. The
+ * file is only lexed if the parser finds it cannot use the entry.
+ */
+public class SourceLoader {
+    private final ForkJoinPool pool;
+    private final ParseCache cache;
+    private final SourceResolver resolver;
+    private final ConcurrentHashMap<String, LexTask> files;
+    private final ConcurrentHashMap<String, byte[]> hashes;
+
+    /**
+     * Create a new source loader that lexes files on the common fork-join
+     * pool.
+     */
+    public SourceLoader() {
+        this(ForkJoinPool.commonPool(), null);
+    }
+
+    /**
+     * Create a new source loader that lexes files on the specified pool.
+     *
+     * @param pool
+     *            the pool to run lexing tasks on
+     */
+    public SourceLoader(ForkJoinPool pool) {
+        this(pool, null);
+    }
+
+    /**
+     * Create a new source loader that lexes files on the specified pool and
+     * looks up included files in a parse cache.
+     *
+     * @param pool
+     *            the pool to run lexing tasks on
+     * @param cache
+     *            the parse cache to use, or null for none
+     */
+    public SourceLoader(ForkJoinPool pool, ParseCache cache) {
+        this(pool, cache, SourceResolver.FILES);
+    }
+
+    /**
+     * Create a new source loader that lexes files on the specified pool and
+     * takes their content from a resolver.
+     *
+     * @param pool
+     *            the pool to run lexing tasks on
+     * @param cache
+     *            the parse cache to use, or null for none
+     * @param resolver
+     *            the resolver to read source files with
+     */
+    public SourceLoader(ForkJoinPool pool, ParseCache cache, SourceResolver resolver) {
+        this.pool = pool;
+        this.cache = cache;
+        this.resolver = resolver;
+        files = new ConcurrentHashMap<>();
+        hashes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Return the resolver source files are read with.
+     *
+     * @return the resolver
+     */
+    public SourceResolver getResolver() {
+        return resolver;
+    }
+
+    /**
+     * Return the parse cache used by this loader.
+     *
+     * @return the parse cache, or null if there is none
+     */
+    public ParseCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Start lexing a file and, once that is done, everything it includes. It
+     * is safe to call this more than once for the same file.
+     *
+     * @param filename
+     *            the file to lex
+     */
+    public void load(String filename) {
+        load(filename, false);
+    }
+
+    private void load(String filename, boolean included) {
+        LexTask task = new LexTask(filename, included);
+        if (files.putIfAbsent(filename, task) == null) {
+            pool.execute(task);
+        }
+    }
+
+    /**
+     * Get the tokens of a file, waiting for it to be lexed if necessary. If
+     * the file has not been loaded yet, it is loaded now.
+     *
+     * @param filename
+     *            the file to get the tokens of
+     * @return the tokens of the file
+     */
+    public TokenBuffer getTokens(String filename) throws AsmException {
+        LexTask task = join(filename, false);
+        synchronized (task) {
+            if (task.tokens == null && task.error == null) {
+                task.lex();
+            }
+        }
+        if (task.error != null) {
+            throw task.error;
+        }
+        return task.tokens;
+    }
+
+    /**
+     * Get the cache entry for an included file, if there is one. A new record
+     * is returned by each call, since a record can only be replayed once.
+     *
+     * @param filename
+     *            the included file
+     * @return the record from the cache, or null if there is none
+     */
+    public ParseRecord getCachedRecord(String filename) {
+        if (cache == null) {
+            return null;
+        }
+        return ParseCache.decode(join(filename, true).entry, false);
+    }
+
+    /**
+     * Get the hash of a file's content. This is only available when a parse
+     * cache is in use.
+     *
+     * @param filename
+     *            the file to get the hash of
+     * @return the hash of the file, or null if there is no cache or the file
+     *         cannot be read
+     */
+    public byte[] getHash(String filename) {
+        if (cache == null) {
+            return null;
+        }
+        LexTask task = files.get(filename);
+        if (task != null) {
+            task.join();
+            return task.hash;
+        }
+        return hashes.computeIfAbsent(filename, name -> {
+            try {
+                return ParseCache.hash(resolver.read(name));
+            } catch (IOException e) {
+                return null;
+            }
+        });
+    }
+
+    private LexTask join(String filename, boolean included) {
+        load(filename, included);
+        LexTask task = files.get(filename);
+        task.join();
+        return task;
+    }
+
+    /**
+     * Return the directory part of a file name, in the form used as a prefix
+     * for the files it includes.
+     *
+     * @param filename
+     *            the name of the file
+     * @return the directory of the file, ending with a slash
+     */
+    public static String directoryOf(String filename) {
+        Path path = Paths.get(filename);
+        if (path.getParent() != null) {
+            return path.getParent().toString() + "/";
+        }
+        return "./";
+    }
+
+    /**
+     * Lexes a single file, then starts loading the files it includes.
+     */
+    private class LexTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String filename;
+        private final boolean included;
+        private ByteBuffer source;
+        private byte[] hash;
+        private byte[] entry;
+        private TokenBuffer tokens;
+        private AsmException error;
+
+        LexTask(String filename, boolean included) {
+            this.filename = filename;
+            this.included = included;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                source = resolver.read(filename);
+            } catch (IOException e) {
+                error = new AsmException("IO Error: " + e.getMessage());
+                return;
+            }
+
+            if (cache != null) {
+                hash = ParseCache.hash(source);
+                if (included) {
+                    entry = cache.read(filename, hash);
+                    ParseRecord record = ParseCache.decode(entry, true);
+                    if (record != null && record.getPath().equals(filename)) {
+                        for (String file : record.getFiles().keySet()) {
+                            if (!record.isBinaryFile(file)) {
+                                fork(file);
+                            }
+                        }
+                        return;
+                    }
+                    entry = null;
+                }
+            }
+
+            lex();
+            if (error != null) {
+                return;
+            }
+            String directory = directoryOf(filename);
+            TokenCursor stmt = tokens.cursor();
+            while (stmt.next()) {
+                if (stmt.size() == 2 && stmt.equalTo(0, "include") && stmt.isType(1, Token.Type.String)) {
+                    fork(directory + stmt.getStringValue(1));
+                }
+            }
+        }
+
+        void lex() {
+            try {
+                TokenBuffer buffer = new TokenBuffer();
+                new Lexer(filename, source).lex(buffer);
+                tokens = buffer;
+            } catch (AsmException e) {
+                error = e;
+            }
+        }
+
+        private void fork(String includedFile) {
+            LexTask task = new LexTask(includedFile, true);
+            if (files.putIfAbsent(includedFile, task) == null) {
+                task.fork();
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.grenslair.glulx.ggasm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+
+/**
+ * A SourceResolver supplies the content of the source files read by a
+ * SourceLoader. The default reads files from disk; others can supply source
+ * held in memory.
+ */
+public interface SourceResolver {
+    /**
+     * The resolver that maps files from disk.
+     */
+    SourceResolver FILES = filename -> Lexer.mapFile(Paths.get(filename));
+
+    /**
+     * Get the content of a source file.
+     *
+     * @param filename
+     *            the name of the file, as given to the loader or built from
+     *            an include statement
+     * @return the content of the file, positioned at its start
+     */
+    ByteBuffer read(String filename) throws IOException;
+}
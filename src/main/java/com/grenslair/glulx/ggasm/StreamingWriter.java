@@ -0,0 +1,139 @@
+package com.grenslair.glulx.ggasm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The StreamingWriter writes a game file through a window of fixed size, so
+ * the memory used doesn't depend on the size of the game file. Lines are
+ * written into the window in order; once a line no longer fits, the part of
+ * the window before it is added to the checksum and written to the file.
+ * The header is written last, with a positional write, once the checksum of
+ * everything else is known. Included binary files are transferred from
+ * their own file to the game file without passing through the window.
+ */
+class StreamingWriter {
+	/** the default size of the window */
+	static final int WINDOW_SIZE = 1 << 16;
+
+	private FileChannel channel;
+	private int windowSize;
+	private ByteBuffer window;
+	/** the game file position of the start of the window */
+	private int windowStart;
+	private int checksum;
+
+	/**
+	 * Create a writer.
+	 * @param channel     the channel to write to, positioned at the start of
+	 *                    the file
+	 * @param windowSize  the size of the window
+	 */
+	StreamingWriter(FileChannel channel, int windowSize) {
+		this.channel = channel;
+		this.windowSize = windowSize;
+		window = ByteBuffer.allocate(windowSize);
+	}
+
+	/**
+	 * Get the window to write part of the game file into.
+	 * @param position  the game file position of the first byte to write;
+	 *                  never before the end of anything written earlier
+	 * @param length    the number of bytes to be written
+	 * @return the window, positioned at the first byte to write
+	 */
+	ByteBuffer reserve(int position, int length) throws IOException {
+		while (position - windowStart >= window.capacity()) {
+			// nothing was written here, so this part is just zeros
+			flush(windowStart + window.capacity());
+		}
+		if (position + length - windowStart > window.capacity()) {
+			flush(position);
+			if (position + length - windowStart > window.capacity()) {
+				// a single line larger than the window, such as a long
+				// string; the window grows just while it is written
+				window = ByteBuffer.allocate(ObjectFile.roundUp(length));
+			}
+		}
+		window.clear();
+		window.position(position - windowStart);
+		return window;
+	}
+
+	/**
+	 * Get the game file position of index 0 of the window.
+	 */
+	int getWindowStart() {
+		return windowStart;
+	}
+
+	/**
+	 * Write out the window up to a position.
+	 */
+	private void flush(int position) throws IOException {
+		int length = position - windowStart;
+		checksum += GameFileVerifier.checksum(window, 0, length, windowStart);
+		ByteBuffer out = window.duplicate();
+		out.position(0);
+		out.limit(length);
+		while (out.hasRemaining()) {
+			channel.write(out);
+		}
+		if (window.capacity() > windowSize) {
+			window = ByteBuffer.allocate(windowSize);
+		} else {
+			Arrays.fill(window.array(), (byte)0);
+		}
+		windowStart = position;
+	}
+
+	/**
+	 * Copy part of another file into the game file. The bytes are
+	 * transferred from one file to the other, and added to the checksum
+	 * through a memory mapping, without being read onto the heap.
+	 * @param position  the game file position to copy to
+	 * @param source    the file to copy from
+	 * @param offset    the position in the source of the first byte to copy
+	 * @param length    the number of bytes to copy
+	 */
+	void transfer(int position, FileChannel source, long offset, int length) throws IOException {
+		reserve(position, 0);
+		flush(position);
+		checksum += GameFileVerifier.checksum(source.map(FileChannel.MapMode.READ_ONLY, offset, length),
+				0, length, position);
+		long done = 0;
+		while (done < length) {
+			long count = source.transferTo(offset + done, length - done, channel);
+			if (count <= 0) {
+				// the source is shorter than it was when it was included
+				throw new IOException("included file ended " + (length - done) + " bytes early");
+			}
+			done += count;
+		}
+		windowStart += length;
+	}
+
+	/**
+	 * Write out the rest of the game file, padding it with zeros, then write
+	 * the header with its checksum filled in.
+	 * @param length  the length of the game file; a multiple of four
+	 * @param header  the header, with a zero checksum
+	 */
+	void finish(int length, ByteBuffer header) throws IOException {
+		while (windowStart < length) {
+			flush(Math.min(length, windowStart + window.capacity()));
+		}
+		// the space for the header was written as zeros
+		for (int i = 0; i < header.limit(); i += 4) {
+			checksum += header.getInt(i);
+		}
+		header.putInt(32, checksum);
+		header.clear();
+		long at = 0;
+		while (header.hasRemaining()) {
+			at += channel.write(header, at);
+		}
+	}
+}
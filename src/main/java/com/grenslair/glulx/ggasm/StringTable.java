@@ -3,12 +3,15 @@ package com.grenslair.glulx.ggasm;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.TreeMap;
 
 public class StringTable {
 
 	private int nextId;
 	private HashMap<String,String> table;
 	private HashMap<String,ArrayList<String>> alias;
+	private int blockedCount;
+	private int blockedBytes;
 
 
 	public StringTable() {
@@ -78,22 +81,132 @@ public class StringTable {
 		return sb.toString();
 	}
 
-	public void toCode(List<AsmLine> code) {
+	/**
+	 * Add the strings in this table to a list of lines. If the strings are
+	 * compressed, a decoding table for them is added first.
+	 *
+	 * Compression is only used if the compressed strings and their decoding
+	 * table take less space than the uncompressed strings; for a small
+	 * table of strings, the decoding table can be larger than what it saves.
+	 * @param code      the list to add to
+	 * @param compress  true to store the strings as compressed (E1) strings
+	 *                  if that makes them smaller
+	 * @param abbreviations  the most abbreviations to add to the decoding
+	 *                       table
+	 * @return the decoding table, or null if none was needed
+	 */
+	public AsmDecodingTable toCode(List<AsmLine> code, boolean compress, int abbreviations) {
+        AsmDecodingTable decodingTable = null;
+        HashMap<String,byte[]> encoded = new HashMap<String,byte[]>();
+        int plainSize = 0;
         try {
-    		for (String key : table.keySet()) {
-    			String label = table.get(key);
-    			if (alias.containsKey(label)) {
-    				ArrayList<String> al = alias.get(label);
-    				for (String s : al) {
-    					code.add(new AsmLabel(s, AsmLabel.Type.String));
-    				}
-    			}
-    			code.add(new AsmLabel(table.get(key),AsmLabel.Type.String));
-    			code.add(new AsmData(null, key, AsmData.StringType.Automatic));
-    		}
+            for (String key : table.keySet()) {
+                byte[] data = new AsmData(null, 0, key, AsmData.StringType.Automatic).getData();
+                encoded.put(key, data);
+                plainSize += data.length;
+            }
         } catch (AsmException e) {
-            // this should never happen;
-            System.err.println("Unexpected error: " + e.getMessage());
+            // this should never happen
+            throw new IllegalStateException("Unexpected error: " + e.getMessage());
         }
+
+        if (compress && !table.isEmpty()) {
+            AsmDecodingTable candidate = new AsmDecodingTable(table.keySet(),
+                    AbbreviationFinder.find(table.keySet(), abbreviations));
+            HashMap<String,byte[]> compressed = new HashMap<String,byte[]>();
+            int compressedSize = candidate.getSize();
+            for (String key : table.keySet()) {
+                byte[] data = candidate.encode(key);
+                compressed.put(key, data);
+                compressedSize += data.length;
+            }
+            if (compressedSize < plainSize) {
+                decodingTable = candidate;
+                code.add(decodingTable);
+                encoded.putAll(compressed);
+            }
+        }
+        blockedCount = 0;
+        blockedBytes = 0;
+        if (decodingTable == null) {
+            // compressed strings are bit streams, so one could never start
+            // partway through another anyway
+            countBlockedSuffixes(encoded);
+        }
+
+		for (String key : table.keySet()) {
+			String label = table.get(key);
+			if (alias.containsKey(label)) {
+				for (String s : alias.get(label)) {
+					code.add(new AsmLabel(s, AsmLabel.Type.String));
+				}
+			}
+			code.add(new AsmLabel(label, AsmLabel.Type.String));
+			code.add(new AsmData(encoded.get(key)));
+		}
+        return decodingTable;
+	}
+
+	/**
+	 * Count the uncompressed strings whose text ends another string of the
+	 * same type. Such a string could only be stored inside the longer one if
+	 * the character before it there had the value of its type byte: 0xE0,
+	 * which E0 strings never hold since they are ASCII, or 0xE2000000, which
+	 * isn't a character. So none of them can be shared, and they are only
+	 * counted for the report. The strings are sorted by their reversed text,
+	 * which puts every string that ends with a given text right after it.
+	 * @param encoded  the encoded bytes of each string
+	 */
+	private void countBlockedSuffixes(HashMap<String,byte[]> encoded) {
+		HashMap<Byte,TreeMap<String,String>> byText = new HashMap<Byte,TreeMap<String,String>>();
+		for (String key : encoded.keySet()) {
+			byte[] data = encoded.get(key);
+			byText.computeIfAbsent(data[0], k -> new TreeMap<String,String>())
+					.put(reversed(data, typeLength(data)), key);
+		}
+		for (TreeMap<String,String> strings : byText.values()) {
+			for (String reversedText : strings.keySet()) {
+				String next = strings.higherKey(reversedText);
+				if (next != null && next.startsWith(reversedText)) {
+					++blockedCount;
+					blockedBytes += encoded.get(strings.get(reversedText)).length;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the number of bytes at the start of an uncompressed string that
+	 * come before its first character.
+	 */
+	private static int typeLength(byte[] data) {
+		return (data[0] & 0xFF) == 0xE2 ? 4 : 1;
+	}
+
+	/**
+	 * Return the bytes of a string from an offset onwards, in reverse order,
+	 * as a string with one character for each byte. Comparing these strings
+	 * compares the bytes as unsigned values.
+	 */
+	private static String reversed(byte[] data, int from) {
+		char[] chars = new char[data.length - from];
+		for (int i = 0; i < chars.length; ++i) {
+			chars[i] = (char)(data[data.length - 1 - i] & 0xFF);
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Return a summary of how many uncompressed strings ended another string
+	 * but couldn't be stored inside it because of their type byte, as found
+	 * by the last call to toCode.
+	 * @return the summary, or null if there were none
+	 */
+	public String report() {
+		if (blockedCount == 0) {
+			return null;
+		}
+		return "string suffixes: " + blockedCount + " not shared because of the type byte (" + blockedBytes
+				+ " bytes)";
 	}
 }
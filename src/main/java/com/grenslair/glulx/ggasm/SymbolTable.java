@@ -0,0 +1,92 @@
+package com.grenslair.glulx.ggasm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The SymbolTable gives every symbol name used in a game file a dense integer
+ * id, starting at zero. Information about symbols can then be kept in arrays
+ * indexed by id rather than in maps keyed by name, and each name only needs
+ * to be hashed once, when it is first seen.
+ */
+public class SymbolTable {
+	private ArrayList<String> names;
+	private int[] table;
+
+	/**
+	 * Create a new, empty symbol table.
+	 */
+	public SymbolTable() {
+		names = new ArrayList<String>();
+		table = new int[256];
+		Arrays.fill(table, -1);
+	}
+
+	/**
+	 * Find the id of a symbol name, giving it a new id if it has not been
+	 * seen before.
+	 * @param name  the name to look up
+	 * @return the id of the name
+	 */
+	public int intern(String name) {
+		int slot = findSlot(name);
+		if (table[slot] >= 0) {
+			return table[slot];
+		}
+		int id = names.size();
+		names.add(name);
+		table[slot] = id;
+		if (names.size() * 2 > table.length) {
+			rehash();
+		}
+		return id;
+	}
+
+	/**
+	 * Find the id of a symbol name without adding it.
+	 * @param name  the name to look up
+	 * @return the id of the name, or -1 if it has not been seen
+	 */
+	public int find(String name) {
+		return table[findSlot(name)];
+	}
+
+	private int findSlot(String name) {
+		int mask = table.length - 1;
+		int slot = name.hashCode() & mask;
+		while (table[slot] >= 0 && !names.get(table[slot]).equals(name)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void rehash() {
+		table = new int[table.length * 2];
+		Arrays.fill(table, -1);
+		int mask = table.length - 1;
+		for (int id = 0; id < names.size(); ++id) {
+			int slot = names.get(id).hashCode() & mask;
+			while (table[slot] >= 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = id;
+		}
+	}
+
+	/**
+	 * Return the name that has a given id.
+	 * @param id  the id of the name
+	 * @return the name
+	 */
+	public String getName(int id) {
+		return names.get(id);
+	}
+
+	/**
+	 * Return the number of names in the table. All ids are less than this.
+	 * @return the number of names
+	 */
+	public int size() {
+		return names.size();
+	}
+}
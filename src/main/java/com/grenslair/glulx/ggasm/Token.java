@@ -1,8 +1,10 @@
 package com.grenslair.glulx.ggasm;
 
 /**
- * The Token class is used to store an individual token produced by the lexer
- * when scanning a source file.
+ * The Token class represents an individual token produced by the lexer when
+ * scanning a source file. The lexer itself stores tokens in packed form in a
+ * TokenBuffer; Token objects are only created on request, to examine a single
+ * token on its own.
  */
 public class Token {
 	private Type type;
@@ -0,0 +1,321 @@
+package com.grenslair.glulx.ggasm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The TokenBuffer stores the tokens produced by the lexer in packed form.
+ * Rather than one object per token, the type, line and value of each token are
+ * kept in parallel arrays. The value of an Integer token is the integer
+ * itself, the value of a Float token is its raw bit pattern and the value of
+ * an Identifier or String token is an index into a pool of interned strings.
+ * The file each token came from is recorded as a run of tokens per file.
+ */
+public class TokenBuffer {
+	private static final Token.Type[] typeValues = Token.Type.values();
+
+	private byte[] types;
+	private int[] lines;
+	private int[] values;
+	private int count;
+
+	private ArrayList<String> strings;
+	private int[] stringTable;
+	private int[] stringNumbers;
+
+	private ArrayList<String> fileNames;
+	private int[] fileRunStart;
+	private int[] fileRunId;
+	private int fileRuns;
+
+	/**
+	 * Create a new, empty token buffer.
+	 */
+	public TokenBuffer() {
+		types = new byte[256];
+		lines = new int[256];
+		values = new int[256];
+		strings = new ArrayList<String>();
+		stringTable = new int[64];
+		Arrays.fill(stringTable, -1);
+		stringNumbers = new int[64];
+		fileNames = new ArrayList<String>();
+		fileRunStart = new int[4];
+		fileRunId = new int[4];
+	}
+
+	/**
+	 * Set the file that tokens added from now on come from.
+	 * @param name  the name of the file
+	 * @return the id of the file within this buffer
+	 */
+	public int setFile(String name) {
+		int id = fileNames.indexOf(name);
+		if (id < 0) {
+			id = fileNames.size();
+			fileNames.add(name);
+		}
+		if (fileRuns > 0 && fileRunStart[fileRuns - 1] == count) {
+			--fileRuns;
+		}
+		if (fileRuns == fileRunStart.length) {
+			fileRunStart = Arrays.copyOf(fileRunStart, fileRuns * 2);
+			fileRunId = Arrays.copyOf(fileRunId, fileRuns * 2);
+		}
+		fileRunStart[fileRuns] = count;
+		fileRunId[fileRuns] = id;
+		++fileRuns;
+		return id;
+	}
+
+	/**
+	 * Add a token that has an integer value (or no value at all).
+	 * @param type   the type of the token
+	 * @param line   the line the token is on
+	 * @param value  the value of the token
+	 */
+	public void add(Token.Type type, int line, int value) {
+		if (count == types.length) {
+			int newSize = count * 2;
+			types = Arrays.copyOf(types, newSize);
+			lines = Arrays.copyOf(lines, newSize);
+			values = Arrays.copyOf(values, newSize);
+		}
+		types[count] = (byte)type.ordinal();
+		lines[count] = line;
+		values[count] = value;
+		++count;
+	}
+	/**
+	 * Add a Float token.
+	 * @param line   the line the token is on
+	 * @param value  the value of the token
+	 */
+	public void addFloat(int line, float value) {
+		add(Token.Type.Float, line, Float.floatToRawIntBits(value));
+	}
+	/**
+	 * Add a token whose value is text.
+	 * @param type  the type of the token
+	 * @param line  the line the token is on
+	 * @param text  the text of the token
+	 */
+	public void addText(Token.Type type, int line, String text) {
+		add(type, line, intern(text));
+	}
+	/**
+	 * Add a token whose value is text taken directly from the source bytes.
+	 * The text must be pure ASCII. If the same text has already been seen, no
+	 * new String is created.
+	 * @param type    the type of the token
+	 * @param line    the line the token is on
+	 * @param source  the buffer holding the source
+	 * @param start   the position of the first byte of the text
+	 * @param end     the position after the last byte of the text
+	 */
+	public void addAscii(Token.Type type, int line, ByteBuffer source, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; ++i) {
+			hash = 31 * hash + source.get(i);
+		}
+		int mask = stringTable.length - 1;
+		int slot = hash & mask;
+		while (stringTable[slot] >= 0) {
+			String s = strings.get(stringTable[slot]);
+			if (s.length() == end - start && matches(s, source, start)) {
+				add(type, line, stringTable[slot]);
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; ++i) {
+			bytes[i] = source.get(start + i);
+		}
+		add(type, line, intern(new String(bytes, StandardCharsets.ISO_8859_1)));
+	}
+
+	private static boolean matches(String s, ByteBuffer source, int start) {
+		for (int i = 0; i < s.length(); ++i) {
+			if (s.charAt(i) != source.get(start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Note that the most recently added token is an operand identifier, such
+	 * as #5 or *16, whose text after the addressing mode is a number. This is
+	 * recorded once for the text of the token, so it applies to every token
+	 * with the same text.
+	 * @param number  the number the identifier contains
+	 */
+	public void setNumber(int number) {
+		int id = values[count - 1];
+		if (id >= stringNumbers.length) {
+			stringNumbers = Arrays.copyOf(stringNumbers, Math.max(id + 1, stringNumbers.length * 2));
+		}
+		// stored plus one so that zero means "not a number"
+		stringNumbers[id] = number + 1;
+	}
+
+	/**
+	 * Find the id of a string in the string pool, adding it if it is not
+	 * already present.
+	 * @param text  the string to look up
+	 * @return the id of the string
+	 */
+	public int intern(String text) {
+		int mask = stringTable.length - 1;
+		int slot = text.hashCode() & mask;
+		while (stringTable[slot] >= 0) {
+			if (strings.get(stringTable[slot]).equals(text)) {
+				return stringTable[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		int id = strings.size();
+		strings.add(text);
+		stringTable[slot] = id;
+		if (strings.size() * 2 > stringTable.length) {
+			rehash();
+		}
+		return id;
+	}
+
+	private void rehash() {
+		stringTable = new int[stringTable.length * 2];
+		Arrays.fill(stringTable, -1);
+		int mask = stringTable.length - 1;
+		for (int id = 0; id < strings.size(); ++id) {
+			int slot = strings.get(id).hashCode() & mask;
+			while (stringTable[slot] >= 0) {
+				slot = (slot + 1) & mask;
+			}
+			stringTable[slot] = id;
+		}
+	}
+
+	/**
+	 * Return the number of tokens in this buffer.
+	 * @return the number of tokens
+	 */
+	public int size() {
+		return count;
+	}
+	/**
+	 * Return the number of distinct strings in the string pool.
+	 * @return the size of the string pool
+	 */
+	public int stringCount() {
+		return strings.size();
+	}
+
+	public Token.Type getType(int index) {
+		return typeValues[types[index]];
+	}
+	public boolean isType(int index, Token.Type type) {
+		return types[index] == type.ordinal();
+	}
+	public int getLine(int index) {
+		return lines[index];
+	}
+	public int getIntValue(int index) {
+		return values[index];
+	}
+	public float getFloatValue(int index) {
+		return Float.intBitsToFloat(values[index]);
+	}
+	/**
+	 * Get the text of an Identifier or String token. This is null for tokens
+	 * of any other type.
+	 * @param index  the token to get the text of
+	 * @return the text of the token
+	 */
+	public String getStringValue(int index) {
+		if (types[index] != Token.Type.Identifier.ordinal() && types[index] != Token.Type.String.ordinal()) {
+			return null;
+		}
+		return strings.get(values[index]);
+	}
+	/**
+	 * Return whether a token is an operand identifier containing a number,
+	 * as classified by the lexer.
+	 * @param index  the token to check
+	 * @return true if the identifier contains a number
+	 */
+	public boolean isNumber(int index) {
+		return types[index] == Token.Type.Identifier.ordinal() && values[index] < stringNumbers.length
+				&& stringNumbers[values[index]] != 0;
+	}
+	/**
+	 * Return the number contained in an operand identifier. This is only
+	 * meaningful if isNumber() is true.
+	 * @param index  the token to check
+	 * @return the number in the identifier
+	 */
+	public int getNumber(int index) {
+		return stringNumbers[values[index]] - 1;
+	}
+	/**
+	 * Return the name of the file a token came from.
+	 * @param index  the token to check
+	 * @return the name of the file
+	 */
+	public String getFile(int index) {
+		int low = 0, high = fileRuns - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (fileRunStart[mid] <= index) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		if (fileRuns == 0) {
+			return null;
+		}
+		return fileNames.get(fileRunId[low]);
+	}
+	/**
+	 * Return a formatted string containing the file and line that a token
+	 * originated from.
+	 * @param index  the token to check
+	 * @return the name and line of the token's source as a string
+	 */
+	public String getSource(int index) {
+		return getFile(index) + "(" + lines[index] + ")";
+	}
+
+	/**
+	 * Create a stand-alone Token object for one of the tokens in this buffer.
+	 * This is intended for testing and debugging.
+	 * @param index  the token to return
+	 * @return a new Token with the same content
+	 */
+	public Token getToken(int index) {
+		switch (getType(index)) {
+			case Integer:
+				return new Token(getFile(index), lines[index], values[index]);
+			case Float:
+				return new Token(getFile(index), lines[index], getFloatValue(index));
+			case Identifier:
+			case String:
+				return new Token(getFile(index), lines[index], getStringValue(index), getType(index));
+			default:
+				return new Token(getFile(index), lines[index], getType(index));
+		}
+	}
+
+	/**
+	 * Create a new cursor positioned before the first statement in this
+	 * buffer.
+	 * @return the new cursor
+	 */
+	public TokenCursor cursor() {
+		return new TokenCursor(this);
+	}
+}
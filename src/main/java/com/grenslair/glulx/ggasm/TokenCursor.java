@@ -0,0 +1,100 @@
+package com.grenslair.glulx.ggasm;
+
+/**
+ * A TokenCursor steps through the statements in a TokenBuffer. A statement is
+ * the run of tokens up to the next End token. The cursor is a view onto the
+ * buffer; token indexes passed to its methods are relative to the start of the
+ * current statement, and moving to the next statement does not allocate.
+ */
+public class TokenCursor {
+	private TokenBuffer tokens;
+	private int next;
+	private int start;
+	private int size;
+
+	TokenCursor(TokenBuffer tokens) {
+		this.tokens = tokens;
+	}
+
+	/**
+	 * Move to the next statement.
+	 * @return false if there are no statements left, true otherwise
+	 */
+	public boolean next() {
+		int count = tokens.size();
+		if (next >= count) {
+			size = 0;
+			return false;
+		}
+		start = next;
+		int end = start;
+		while (end < count && !tokens.isType(end, Token.Type.End)) {
+			++end;
+		}
+		size = end - start;
+		next = end + 1;
+		return true;
+	}
+
+	/**
+	 * Drop the first token of the current statement.
+	 */
+	public void removeFirst() {
+		++start;
+		--size;
+	}
+
+	/**
+	 * Return the number of tokens in the current statement.
+	 * @return the size of the statement
+	 */
+	public int size() {
+		return size;
+	}
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public Token.Type getType(int index) {
+		return tokens.getType(start + index);
+	}
+	public boolean isType(int index, Token.Type type) {
+		return tokens.isType(start + index, type);
+	}
+	public int getIntValue(int index) {
+		return tokens.getIntValue(start + index);
+	}
+	public float getFloatValue(int index) {
+		return tokens.getFloatValue(start + index);
+	}
+	public String getStringValue(int index) {
+		return tokens.getStringValue(start + index);
+	}
+	public boolean isNumber(int index) {
+		return tokens.isNumber(start + index);
+	}
+	public int getNumber(int index) {
+		return tokens.getNumber(start + index);
+	}
+	public String getFile(int index) {
+		return tokens.getFile(start + index);
+	}
+	public int getLine(int index) {
+		return tokens.getLine(start + index);
+	}
+	public String getSource(int index) {
+		return tokens.getSource(start + index);
+	}
+
+	/**
+	 * Is a token of the current statement equal to the specified text? This
+	 * is always false for Integer or Float type tokens.
+	 * @param index  the token to compare
+	 * @param text   the text to compare the token to
+	 * @return true if the token is equal to the text, false otherwise
+	 */
+	public boolean equalTo(int index, String text) {
+		String value = getStringValue(index);
+		return value != null && value.equals(text);
+	}
+}
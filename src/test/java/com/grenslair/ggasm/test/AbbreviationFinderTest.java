@@ -0,0 +1,75 @@
+package com.grenslair.ggasm.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+import com.grenslair.glulx.ggasm.AbbreviationFinder;
+import com.grenslair.glulx.ggasm.AsmDecodingTable;
+
+public class AbbreviationFinderTest {
+
+  private List<String> strings() {
+      List<String> strings = new ArrayList<String>();
+      for (int i = 0; i < 30; ++i) {
+          strings.add("You see the brass lantern here. (" + i + ")");
+          strings.add("Room " + i + " is dark; it is pitch black.");
+      }
+      return strings;
+  }
+
+  private int encodedSize(AsmDecodingTable table, List<String> strings) {
+      int size = 0;
+      for (String text : strings) {
+          size += table.encode(text).length;
+      }
+      return size;
+  }
+
+  @Test
+  public void testRepeatedPhrasesChosen() {
+      List<String> found = AbbreviationFinder.find(strings(), 8);
+      assertTrue(found.size() <= 8);
+      assertTrue(found.contains("You see the brass lantern here. ("));
+      assertTrue(found.contains(" is dark; it is pitch black."));
+      // the longest, most repeated phrase is the best
+      assertEquals(Collections.singletonList("You see the brass lantern here. ("),
+              AbbreviationFinder.find(strings(), 1));
+  }
+
+  @Test
+  public void testNothingRepeated() {
+      assertTrue(AbbreviationFinder.find(Arrays.asList("abc", "xyz"), 8).isEmpty());
+      assertTrue(AbbreviationFinder.find(strings(), 0).isEmpty());
+  }
+
+  @Test
+  public void testAbbreviatedStringsDecode() {
+      List<String> strings = strings();
+      AsmDecodingTable plain = new AsmDecodingTable(strings);
+      AsmDecodingTable abbreviated = new AsmDecodingTable(strings, AbbreviationFinder.find(strings, 8));
+      for (String text : strings) {
+          assertEquals(text, AsmDecodingTableTest.decode(abbreviated, abbreviated.encode(text)));
+      }
+      assertTrue(encodedSize(abbreviated, strings) < encodedSize(plain, strings));
+  }
+
+  @Test
+  public void testLongestAbbreviationUsed() {
+      // both abbreviations match at the start of each string; the encoder
+      // has to take the longer one
+      List<String> strings = strings();
+      AsmDecodingTable shortOnly = new AsmDecodingTable(strings, Arrays.asList("You see "));
+      AsmDecodingTable both = new AsmDecodingTable(strings,
+              Arrays.asList("You see ", "You see the brass lantern here. ("));
+      for (String text : strings) {
+          assertEquals(text, AsmDecodingTableTest.decode(both, both.encode(text)));
+      }
+      String text = strings.get(0);
+      assertTrue(both.encode(text).length < shortOnly.encode(text).length);
+  }
+}
@@ -0,0 +1,131 @@
+package com.grenslair.ggasm.test;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+
+import com.grenslair.glulx.ggasm.AsmDecodingTable;
+import com.grenslair.glulx.ggasm.AsmLine;
+import com.grenslair.glulx.ggasm.StringTable;
+
+public class AsmDecodingTableTest {
+
+  /** where the table is placed in the test's memory */
+  private static final int BASE = 0x100;
+
+  /**
+   * Decode an E1 string the way a Glulx interpreter does, walking the table
+   * as it was built into memory.
+   * @param table  the table the string was encoded with
+   * @param encoded  the encoded string
+   * @param nodeTypes  filled in with the type of every node visited
+   * @return the decoded text
+   */
+  public static String decode(AsmDecodingTable table, byte[] encoded, Set<Integer> nodeTypes) {
+      ByteBuffer memory = ByteBuffer.allocate(BASE + table.getSize());
+      table.setPosition(BASE);
+      memory.position(BASE);
+      table.buildByteCode(memory);
+      assertEquals(BASE + table.getSize(), memory.position());
+
+      assertEquals(0xE1, encoded[0] & 0xFF);
+      StringBuilder sb = new StringBuilder();
+      int root = memory.getInt(BASE + 8);
+      int node = root;
+      int bit = 8;
+      while (true) {
+          int type = memory.get(node) & 0xFF;
+          nodeTypes.add(type);
+          switch (type) {
+          case 0x00: // branch
+              assertTrue("ran off the end of the string", bit / 8 < encoded.length);
+              boolean right = (encoded[bit / 8] & (1 << (bit % 8))) != 0;
+              ++bit;
+              node = memory.getInt(node + (right ? 5 : 1));
+              continue;
+          case 0x01: // terminator
+              return sb.toString();
+          case 0x02: // character
+              sb.append((char)(memory.get(node + 1) & 0xFF));
+              break;
+          case 0x03: // string
+              for (int at = node + 1; memory.get(at) != 0; ++at) {
+                  sb.append((char)(memory.get(at) & 0xFF));
+              }
+              break;
+          case 0x04: // unicode character
+              sb.appendCodePoint(memory.getInt(node + 1));
+              break;
+          case 0x05: // unicode string
+              for (int at = node + 1; memory.getInt(at) != 0; at += 4) {
+                  sb.appendCodePoint(memory.getInt(at));
+              }
+              break;
+          default:
+              fail("unknown node type " + type);
+          }
+          node = root;
+      }
+  }
+
+  public static String decode(AsmDecodingTable table, byte[] encoded) {
+      return decode(table, encoded, new HashSet<Integer>());
+  }
+
+  @Test
+  public void testRoundTrip() {
+      List<String> strings = Arrays.asList(
+              "The quick brown fox jumps over the lazy dog.",
+              "the snowman: \u2603\u2603 snow",
+              "\u2603\u2603 snow falls on the field, and the \u2603\u2603 snow stays",
+              "caf\u00e9 au lait at the caf\u00e9",
+              "one \u2603 alone",
+              "",
+              "x");
+      // repeat the strings so the abbreviations are worth their nodes
+      List<String> counted = new ArrayList<String>();
+      for (int i = 0; i < 20; ++i) {
+          counted.addAll(strings);
+      }
+      AsmDecodingTable table = new AsmDecodingTable(counted, Arrays.asList("the ", "\u2603\u2603 snow"));
+      Set<Integer> nodeTypes = new HashSet<Integer>();
+      for (String text : strings) {
+          assertEquals(text, decode(table, table.encode(text), nodeTypes));
+      }
+      assertEquals(new HashSet<Integer>(Arrays.asList(0, 1, 2, 3, 4, 5)), nodeTypes);
+  }
+
+  @Test
+  public void testSingleString() {
+      AsmDecodingTable table = new AsmDecodingTable(Arrays.asList("aaaa"));
+      assertEquals("aaaa", decode(table, table.encode("aaaa")));
+      table = new AsmDecodingTable(Arrays.asList(""));
+      assertEquals("", decode(table, table.encode("")));
+  }
+
+  @Test
+  public void testCompressionOnlyWhenSmaller() {
+      // the decoding table for a couple of short strings is bigger than the
+      // strings themselves
+      StringTable strings = new StringTable();
+      strings.addString("Hello");
+      strings.addString("World");
+      List<AsmLine> code = new ArrayList<AsmLine>();
+      assertNull(strings.toCode(code, true, 256));
+
+      strings = new StringTable();
+      for (int i = 0; i < 50; ++i) {
+          strings.addString("You can't go that way from room number " + i + ".");
+      }
+      code = new ArrayList<AsmLine>();
+      assertNotNull(strings.toCode(code, true, 256));
+      code = new ArrayList<AsmLine>();
+      assertNull(strings.toCode(code, false, 256));
+  }
+}
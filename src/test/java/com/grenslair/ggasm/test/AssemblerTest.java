@@ -0,0 +1,137 @@
+package com.grenslair.ggasm.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+import com.grenslair.glulx.ggasm.Assembler;
+import com.grenslair.glulx.ggasm.Diagnostic;
+import com.grenslair.glulx.ggasm.SourceResolver;
+
+public class AssemblerTest {
+
+  private static final String MAIN = "include \"lib.asm\"\n"
+          + "function main 0\n"
+          + "call greet 0 sp\n"
+          + "return 0\n";
+  private static final String LIB = "function greet 0\n"
+          + "streamstr \"Hello\"\n"
+          + "return 0\n";
+
+  /** Supplies lib.asm, and nothing else. */
+  private static final SourceResolver RESOLVER = filename -> {
+      if (filename.endsWith("lib.asm")) {
+          return ByteBuffer.wrap(LIB.getBytes(StandardCharsets.UTF_8));
+      }
+      throw new FileNotFoundException(filename);
+  };
+
+  private static Diagnostic firstError(Assembler.Result result) {
+      for (Diagnostic diagnostic : result.getDiagnostics()) {
+          if (diagnostic.getSeverity() == Diagnostic.Severity.ERROR) {
+              return diagnostic;
+          }
+      }
+      fail("no error reported");
+      return null;
+  }
+
+  @Test
+  public void testAssemble() {
+      Assembler.Result result = new Assembler(RESOLVER).assemble("main.asm", MAIN);
+      assertTrue(result.isSuccess());
+      byte[] gameFile = result.getGameFile();
+      assertEquals(0x476C756C, ByteBuffer.wrap(gameFile).getInt(0)); // Glul
+      assertEquals(0, gameFile.length % 256);
+  }
+
+  @Test
+  public void testConcurrentAssemblies() throws Exception {
+      byte[] expected = new Assembler(RESOLVER).assemble("main.asm", MAIN).getGameFile();
+      assertNotNull(expected);
+      Assembler shared = new Assembler(RESOLVER);
+      ExecutorService pool = Executors.newFixedThreadPool(8);
+      try {
+          List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+          for (int i = 0; i < 64; ++i) {
+              results.add(pool.submit(() -> shared.assemble("main.asm", MAIN).getGameFile()));
+          }
+          for (Future<byte[]> result : results) {
+              assertArrayEquals(expected, result.get());
+          }
+      } finally {
+          pool.shutdown();
+      }
+  }
+
+  @Test
+  public void testErrorHasFileAndLine() {
+      Assembler.Result result = new Assembler(RESOLVER).assemble("bad.asm",
+              "function main 0\nnop\nfrobnicate 1 2\nreturn 0\n");
+      assertFalse(result.isSuccess());
+      assertNull(result.getGameFile());
+      Diagnostic error = firstError(result);
+      assertEquals("bad.asm", error.getFile());
+      assertEquals(3, error.getLine());
+      assertTrue(error.getMessage(), error.getMessage().contains("frobnicate"));
+
+      // errors in included files are reported against them
+      result = new Assembler(filename -> ByteBuffer.wrap("function greet 0\nfrobnicate\n"
+              .getBytes(StandardCharsets.UTF_8))).assemble("main.asm", MAIN);
+      assertFalse(result.isSuccess());
+      error = firstError(result);
+      assertTrue(error.getFile(), error.getFile().endsWith("lib.asm"));
+      assertEquals(2, error.getLine());
+  }
+
+  @Test
+  public void testMissingInclude() {
+      Assembler assembler = new Assembler(RESOLVER);
+      Assembler.Result result = assembler.assemble("missing.asm",
+              "function main 0\nreturn 0\ninclude \"nowhere.asm\"\n");
+      assertFalse(result.isSuccess());
+      assertTrue(firstError(result).getMessage().contains("nowhere.asm"));
+
+      result = assembler.assemble("missing.asm",
+              "includeBinary data length \"nowhere.bin\"\nfunction main 0\nreturn 0\n");
+      assertFalse(result.isSuccess());
+      assertTrue(firstError(result).getMessage().contains("nowhere.bin"));
+
+      // without a resolver nothing can be included
+      result = new Assembler().assemble("main.asm", MAIN);
+      assertFalse(result.isSuccess());
+      assertTrue(firstError(result).getMessage().contains("lib.asm"));
+
+      // the assembler is still usable afterwards
+      assertTrue(assembler.assemble("main.asm", MAIN).isSuccess());
+  }
+
+  @Test
+  public void testNothingPrinted() {
+      PrintStream out = System.out;
+      PrintStream err = System.err;
+      ByteArrayOutputStream printed = new ByteArrayOutputStream();
+      try {
+          System.setOut(new PrintStream(printed, true));
+          System.setErr(new PrintStream(printed, true));
+          Assembler assembler = new Assembler(RESOLVER);
+          assertTrue(assembler.assemble("main.asm", MAIN).isSuccess());
+          assertFalse(assembler.assemble("bad.asm", "function main 0\nfrobnicate\n").isSuccess());
+          assertFalse(assembler.assemble("missing.asm", "include \"nowhere.asm\"\n").isSuccess());
+      } finally {
+          System.setOut(out);
+          System.setErr(err);
+      }
+      assertEquals("", printed.toString());
+  }
+}
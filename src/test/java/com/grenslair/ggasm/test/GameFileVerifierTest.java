@@ -0,0 +1,119 @@
+package com.grenslair.ggasm.test;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+import com.grenslair.glulx.ggasm.Build;
+import com.grenslair.glulx.ggasm.GameFileVerifier;
+
+public class GameFileVerifierTest {
+
+  private static int wordSum(ByteBuffer code) {
+      int sum = 0;
+      for (int i = 0; i < code.limit(); i += 4) {
+          sum += code.getInt(i);
+      }
+      return sum;
+  }
+
+  @Test
+  public void testUnalignedRangesAddUp() {
+      Random random = new Random(5);
+      byte[] bytes = new byte[1024];
+      random.nextBytes(bytes);
+      ByteBuffer code = ByteBuffer.wrap(bytes);
+      int expected = wordSum(code);
+      assertEquals(expected, new GameFileVerifier(null).checksum(code.asIntBuffer()));
+      assertEquals(expected, new GameFileVerifier(ForkJoinPool.commonPool()).checksum(code.asIntBuffer()));
+
+      for (int trial = 0; trial < 100; ++trial) {
+          int sum = 0;
+          int from = 0;
+          while (from < bytes.length) {
+              int to = Math.min(bytes.length, from + random.nextInt(11));
+              sum += GameFileVerifier.checksum(code, from, to);
+              from = to;
+          }
+          assertEquals(expected, sum);
+      }
+      // single bytes in each position of a word
+      for (int i = 0; i < 4; ++i) {
+          assertEquals((bytes[i] & 0xFF) << (24 - 8 * i), GameFileVerifier.checksum(code, i, i + 1));
+      }
+  }
+
+  @Test
+  public void testRangesWithBase() {
+      // a window of the game file starting partway through a word, as the
+      // streaming writer and included binary files have
+      Random random = new Random(9);
+      byte[] bytes = new byte[1024];
+      random.nextBytes(bytes);
+      int expected = wordSum(ByteBuffer.wrap(bytes));
+      for (int base = 1; base < 4; ++base) {
+          ByteBuffer head = ByteBuffer.wrap(bytes, 0, base).slice();
+          ByteBuffer tail = ByteBuffer.wrap(bytes, base, bytes.length - base).slice();
+          int sum = GameFileVerifier.checksum(head, 0, base, 0);
+          int from = 0;
+          while (from < tail.limit()) {
+              int to = Math.min(tail.limit(), from + 1 + random.nextInt(13));
+              sum += GameFileVerifier.checksum(tail, from, to, base);
+              from = to;
+          }
+          assertEquals("base " + base, expected, sum);
+      }
+  }
+
+  private static byte[] gameFile() {
+      ByteBuffer source = ByteBuffer.wrap(("function main 0\n"
+              + "streamstr \"Hello\"\n"
+              + "return 0\n").getBytes(StandardCharsets.UTF_8));
+      Build build = new Build();
+      assertTrue(build.fromFile("main.asm", filename -> source.duplicate()));
+      ByteBuffer code = build.buildInMemory();
+      assertNotNull(code);
+      byte[] bytes = new byte[code.remaining()];
+      code.get(bytes);
+      return bytes;
+  }
+
+  private static List<String> verify(byte[] gameFile) throws Exception {
+      Path file = Files.createTempFile("ggasm", ".ulx");
+      try {
+          Files.write(file, gameFile);
+          return new GameFileVerifier(ForkJoinPool.commonPool()).verify(file.toString());
+      } finally {
+          Files.delete(file);
+      }
+  }
+
+  @Test
+  public void testVerify() throws Exception {
+      byte[] good = gameFile();
+      assertTrue(verify(good).isEmpty());
+
+      byte[] corrupt = good.clone();
+      corrupt[corrupt.length - 5] ^= 0x10;
+      List<String> problems = verify(corrupt);
+      assertEquals(1, problems.size());
+      assertTrue(problems.get(0), problems.get(0).startsWith("checksum is"));
+
+      byte[] badExtStart = good.clone();
+      ByteBuffer.wrap(badExtStart).putInt(12, good.length + 256);
+      problems = verify(badExtStart);
+      assertFalse(problems.isEmpty());
+      assertTrue(problems.toString(), problems.contains("EXTSTART is " + (good.length + 256)
+              + ", but the file is " + good.length + " bytes long"));
+
+      assertEquals("not a Glulx game file", verify(new byte[256]).get(0));
+      assertTrue(verify(new byte[8]).get(0).startsWith("file is too short"));
+  }
+}
@@ -0,0 +1,76 @@
+package com.grenslair.ggasm.test;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import com.grenslair.glulx.ggasm.Build;
+import com.grenslair.glulx.ggasm.Diagnostic;
+import com.grenslair.glulx.ggasm.IncrementalBuild;
+
+public class IncrementalBuildTest {
+
+  private static final String SOURCE = "function main 0\n"
+          + "streamstr \"Hello\"\n"
+          + "return 0\n";
+
+  @Test
+  public void testBytesWritten() throws Exception {
+      Path dir = Files.createTempDirectory("ggasm");
+      Path input = dir.resolve("main.asm");
+      Path output = dir.resolve("main.ulx");
+      try {
+          Files.write(input, SOURCE.getBytes(StandardCharsets.UTF_8));
+          Build settings = new Build();
+          settings.setDiagnosticListener(diagnostic -> { });
+          IncrementalBuild build = new IncrementalBuild(settings, input.toString(), output.toString());
+
+          // a new file is written once, header included
+          assertTrue(build.build());
+          int length = (int)Files.size(output);
+          assertEquals(length, build.getRewrittenBytes());
+
+          // nothing changed, so only the header is written again
+          assertTrue(build.build());
+          assertEquals(36, build.getRewrittenBytes());
+          assertEquals(length, Files.size(output));
+
+          // a change near the end rewrites the header and the rest
+          Files.write(input, (SOURCE + "string extra \"more\"\n").getBytes(StandardCharsets.UTF_8));
+          assertTrue(build.build());
+          assertTrue(build.getRewrittenBytes() > 36);
+          assertTrue(build.getRewrittenBytes() < length + 36);
+      } finally {
+          Files.deleteIfExists(output);
+          Files.deleteIfExists(input);
+          Files.delete(dir);
+      }
+  }
+
+  @Test
+  public void testErrorsReportedThroughSettings() throws Exception {
+      Path dir = Files.createTempDirectory("ggasm");
+      Path input = dir.resolve("bad.asm");
+      try {
+          Files.write(input, "function main 0\nfrobnicate\n".getBytes(StandardCharsets.UTF_8));
+          List<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
+          Build settings = new Build();
+          settings.setDiagnosticListener(diagnostics::add);
+          IncrementalBuild build = new IncrementalBuild(settings, input.toString(),
+                  dir.resolve("bad.ulx").toString());
+          assertFalse(build.build());
+          assertEquals(1, diagnostics.size());
+          assertEquals(Diagnostic.Severity.ERROR, diagnostics.get(0).getSeverity());
+          assertEquals(2, diagnostics.get(0).getLine());
+      } finally {
+          Files.deleteIfExists(dir.resolve("bad.ulx"));
+          Files.delete(input);
+          Files.delete(dir);
+      }
+  }
+}
@@ -0,0 +1,102 @@
+package com.grenslair.ggasm.test;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+import com.grenslair.glulx.ggasm.AsmException;
+import com.grenslair.glulx.ggasm.Lexer;
+import com.grenslair.glulx.ggasm.Token;
+import com.grenslair.glulx.ggasm.TokenBuffer;
+import com.grenslair.glulx.ggasm.TokenCursor;
+
+public class LexerTest {
+
+  private TokenBuffer lex(String source) throws AsmException {
+      TokenBuffer tokens = new TokenBuffer();
+      new Lexer("test.asm", ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8))).lex(tokens);
+      return tokens;
+  }
+
+  @Test
+  public void testInstructionLine() throws AsmException {
+      TokenBuffer tokens = lex("start: copy $1F *dest ; comment\n");
+      assertEquals(7, tokens.size());
+      assertTrue(tokens.isType(0, Token.Type.Identifier));
+      assertEquals("start:", tokens.getStringValue(0));
+      assertEquals("copy", tokens.getStringValue(1));
+      assertTrue(tokens.isType(2, Token.Type.Integer));
+      assertEquals(0x1F, tokens.getIntValue(2));
+      assertEquals("*dest", tokens.getStringValue(3));
+      assertTrue(tokens.isType(4, Token.Type.End));
+      assertTrue(tokens.isType(5, Token.Type.End));
+      assertEquals(2, tokens.getLine(5));
+  }
+
+  @Test
+  public void testNumbers() throws AsmException {
+      TokenBuffer tokens = lex("-12 4294967295 2.5 'a'");
+      assertEquals(-12, tokens.getIntValue(0));
+      assertEquals(-1, tokens.getIntValue(1));
+      assertTrue(tokens.isType(2, Token.Type.Float));
+      assertEquals(2.5f, tokens.getFloatValue(2), 0.0f);
+      assertEquals('a', tokens.getIntValue(3));
+  }
+
+  @Test
+  public void testUnicodeStrings() throws AsmException {
+      TokenBuffer tokens = lex("addString s \"caf\u00e9 \\\"\u2603\\\"\"\n/* block\ncomment */ x");
+      assertTrue(tokens.isType(2, Token.Type.String));
+      assertEquals("caf\u00e9 \"\u2603\"", tokens.getStringValue(2));
+      assertEquals("x", tokens.getStringValue(4));
+      assertEquals(3, tokens.getLine(4));
+  }
+
+  @Test
+  public void testCursorStatements() throws AsmException {
+      TokenCursor stmt = lex("copy 1 sp\n\nlabel: jump label // done\n").cursor();
+      assertTrue(stmt.next());
+      assertEquals(3, stmt.size());
+      assertTrue(stmt.equalTo(0, "copy"));
+      assertTrue(stmt.next());
+      assertTrue(stmt.isEmpty());
+      assertTrue(stmt.next());
+      assertEquals(3, stmt.size());
+      stmt.removeFirst();
+      assertTrue(stmt.equalTo(0, "jump"));
+      assertEquals("label", stmt.getStringValue(1));
+      assertEquals("test.asm(3)", stmt.getSource(1));
+      assertTrue(stmt.next());
+      assertTrue(stmt.isEmpty());
+      assertTrue(stmt.next());
+      assertFalse(stmt.next());
+  }
+
+  @Test
+  public void testIdentifiersAreInterned() throws AsmException {
+      TokenBuffer tokens = lex("copy x y\ncopy y x\n");
+      assertEquals(3, tokens.stringCount());
+      assertSame(tokens.getStringValue(1), tokens.getStringValue(6));
+  }
+
+  @Test
+  public void testOperandNumbers() throws AsmException {
+      TokenBuffer tokens = lex("copy #5 *1024 #local *label #99999999999 #5:");
+      assertTrue(tokens.isNumber(1));
+      assertEquals(5, tokens.getNumber(1));
+      assertTrue(tokens.isNumber(2));
+      assertEquals(1024, tokens.getNumber(2));
+      assertFalse(tokens.isNumber(0));
+      assertFalse(tokens.isNumber(3));
+      assertFalse(tokens.isNumber(4));
+      assertFalse(tokens.isNumber(5));
+      assertFalse(tokens.isNumber(6));
+  }
+
+  @Test(expected = AsmException.class)
+  public void testUnterminatedString() throws AsmException {
+      lex("addString s \"never closed\n");
+  }
+}
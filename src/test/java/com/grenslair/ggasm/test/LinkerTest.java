@@ -0,0 +1,154 @@
+package com.grenslair.ggasm.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+import com.grenslair.glulx.ggasm.AsmException;
+import com.grenslair.glulx.ggasm.Build;
+import com.grenslair.glulx.ggasm.Diagnostic;
+import com.grenslair.glulx.ggasm.Linker;
+import com.grenslair.glulx.ggasm.ObjectModule;
+import com.grenslair.glulx.ggasm.ParseCache;
+import com.grenslair.glulx.ggasm.SourceLoader;
+import com.grenslair.glulx.ggasm.SourceResolver;
+
+public class LinkerTest {
+
+  /** Return a resolver for source files held in a map, by their base name. */
+  private static SourceResolver resolver(Map<String, String> files) {
+      return filename -> {
+          String source = files.get(Paths.get(filename).getFileName().toString());
+          if (source == null) {
+              throw new FileNotFoundException(filename);
+          }
+          return ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8));
+      };
+  }
+
+  private static Map<String, String> program() {
+      Map<String, String> files = new HashMap<String, String>();
+      files.put("whole.asm", "include \"a.asm\"\ninclude \"b.asm\"\n");
+      files.put("a.asm", "include \"lib.asm\"\n"
+              + "function main 0\n"
+              + "call greet 0 sp\n"
+              + "streamstr greeting\n"
+              + "return 0\n");
+      files.put("lib.asm", "constant answer 42\n");
+      files.put("b.asm", "addString greeting \"Hello\"\n"
+              + "function greet 0\n"
+              + "streamnum answer\n"
+              + "streamstr \"Hello\"\n"
+              + "return 0\n");
+      return files;
+  }
+
+  private static ObjectModule module(String filename, SourceResolver resolver) throws AsmException {
+      return ObjectModule.assemble(filename, new SourceLoader(ForkJoinPool.commonPool(), new ParseCache(), resolver));
+  }
+
+  private static byte[] bytes(ByteBuffer code) {
+      assertNotNull(code);
+      byte[] bytes = new byte[code.remaining()];
+      code.get(bytes);
+      return bytes;
+  }
+
+  @Test
+  public void testLinkedEqualsSingleFile() throws Exception {
+      SourceResolver resolver = resolver(program());
+      Build single = new Build();
+      single.setDiagnosticListener(diagnostic -> { });
+      assertTrue(single.fromFile("whole.asm", resolver));
+      byte[] expected = bytes(single.buildInMemory());
+
+      Linker linker = new Linker();
+      linker.add(module("a.asm", resolver));
+      linker.add(module("b.asm", resolver));
+      assertTrue(linker.check().isEmpty());
+      Build linked = new Build();
+      linked.setDiagnosticListener(diagnostic -> { });
+      linker.link(linked.getObjectFile());
+      assertArrayEquals(expected, bytes(linked.buildInMemory()));
+  }
+
+  @Test
+  public void testModuleFileRoundTrip() throws Exception {
+      SourceResolver resolver = resolver(program());
+      ObjectModule module = module("b.asm", resolver);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      module.write(out);
+      ObjectModule read = ObjectModule.read(new ByteArrayInputStream(out.toByteArray()));
+      assertEquals("b.asm", read.getPath());
+      assertEquals(module.getExports(), read.getExports());
+      assertEquals(module.getImports(), read.getImports());
+      assertArrayEquals(module.getSourceHash(), read.getSourceHash());
+  }
+
+  @Test
+  public void testDuplicateAndUndefinedSymbols() throws Exception {
+      Map<String, String> files = new HashMap<String, String>();
+      files.put("a.asm", "function main 0\ncall greet 0 sp\nreturn 0\n");
+      files.put("b.asm", "function main 0\ncall missing 0 sp\nreturn 0\n");
+      SourceResolver resolver = resolver(files);
+      Linker linker = new Linker();
+      linker.add(module("a.asm", resolver));
+      linker.add(module("b.asm", resolver));
+      List<String> problems = linker.check();
+      assertEquals(problems.toString(), 3, problems.size());
+      assertTrue(problems.contains("\"main\" is defined in both a.asm and b.asm"));
+      assertTrue(problems.contains("a.asm: undefined symbol \"greet\""));
+      assertTrue(problems.contains("b.asm: undefined symbol \"missing\""));
+      try {
+          linker.link(new Build().getObjectFile());
+          fail("linked modules with problems");
+      } catch (AsmException e) {
+          assertTrue(e.getMessage(), e.getMessage().contains("undefined symbol \"missing\""));
+      }
+  }
+
+  @Test
+  public void testChangedSourceFound() throws Exception {
+      Map<String, String> files = program();
+      ObjectModule module = module("a.asm", resolver(files));
+      assertNull(module.findChangedFile(resolver(files)));
+
+      files.put("a.asm", files.get("a.asm") + "; changed\n");
+      assertEquals("a.asm", module.findChangedFile(resolver(files)));
+
+      // a change to a file it included counts too
+      files = program();
+      files.put("lib.asm", "constant answer 43\n");
+      assertTrue(module.findChangedFile(resolver(files)).endsWith("lib.asm"));
+
+      // a file that can't be read can't be checked
+      files = program();
+      files.remove("a.asm");
+      assertNull(module.findChangedFile(resolver(files)));
+  }
+
+  @Test
+  public void testMessagesReportedOnce() throws Exception {
+      SourceResolver resolver = resolver(program());
+      Linker linker = new Linker();
+      linker.add(module("a.asm", resolver));
+      linker.add(module("b.asm", resolver));
+      List<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
+      Build linked = new Build();
+      linked.setDiagnosticListener(diagnostics::add);
+      linker.link(linked.getObjectFile());
+      assertEquals(1, diagnostics.size());
+      assertTrue(diagnostics.get(0).getMessage(), diagnostics.get(0).getMessage().startsWith("including"));
+  }
+}
@@ -0,0 +1,105 @@
+package com.grenslair.ggasm.test;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+import com.grenslair.glulx.ggasm.Build;
+import com.grenslair.glulx.ggasm.GameFileVerifier;
+import com.grenslair.glulx.ggasm.ObjectFile;
+
+public class OutputModeTest {
+
+  /** larger than the window the streaming writer uses */
+  private static final int LARGE = 70001;
+
+  /**
+   * Build a source file in every output mode, check the game files are the
+   * same and valid, and return one of them.
+   * @param source  the source to build
+   * @param binary  the content of data.bin beside the source, or null
+   * @param label   a label whose address is checked to be the same in every
+   *                mode, or null
+   * @return the game file and the address of the label, if there is one
+   */
+  private static Object[] buildInEveryMode(String source, byte[] binary, String label) throws Exception {
+      Path dir = Files.createTempDirectory("ggasm");
+      try {
+          Path input = dir.resolve("main.asm");
+          Files.write(input, source.getBytes(StandardCharsets.UTF_8));
+          if (binary != null) {
+              Files.write(dir.resolve("data.bin"), binary);
+          }
+          byte[] expected = null;
+          int address = -1;
+          for (ObjectFile.OutputMode mode : ObjectFile.OutputMode.values()) {
+              Path output = dir.resolve(mode + ".ulx");
+              Build build = new Build();
+              build.setDiagnosticListener(diagnostic -> { });
+              build.setOutputMode(mode);
+              assertTrue(mode.toString(), build.fromFile(input.toString()));
+              assertTrue(mode.toString(), build.build(output.toString()));
+              assertEquals(mode.toString(), Arrays.asList(),
+                      new GameFileVerifier(null).verify(output.toString()));
+              byte[] built = Files.readAllBytes(output);
+              if (expected == null) {
+                  expected = built;
+                  address = label == null ? -1 : build.getObjectFile().getSymbolValue(label);
+              } else {
+                  assertArrayEquals(mode.toString(), expected, built);
+              }
+          }
+          return new Object[] { expected, address };
+      } finally {
+          try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+              files.forEach(file -> file.toFile().delete());
+          }
+          Files.delete(dir);
+      }
+  }
+
+  @Test
+  public void testLineLargerThanWindow() throws Exception {
+      StringBuilder text = new StringBuilder();
+      for (int i = 0; i < LARGE; ++i) {
+          text.append((char)('a' + i % 26));
+      }
+      Object[] built = buildInEveryMode("function main 0\n"
+              + "streamstr big\n"
+              + "return 0\n"
+              + "string big \"" + text + "\"\n"
+              + "bytesFixed after 4\n", null, "big");
+      byte[] code = (byte[])built[0];
+      int big = (Integer)built[1];
+      assertEquals(0xE0, code[big] & 0xFF);
+      assertEquals(new String(code, big + 1, LARGE, StandardCharsets.US_ASCII), text.toString());
+  }
+
+  @Test
+  public void testGapsOfZeros() throws Exception {
+      buildInEveryMode("function main 0\n"
+              + "return 0\n"
+              + "bytesFixed gap1 3\n"
+              + "bytesFixed gap2 200000\n"
+              + "string after \"after the gap\"\n", null, null);
+  }
+
+  @Test
+  public void testIncludeBinary() throws Exception {
+      // larger than the window, and not a whole number of words
+      byte[] binary = new byte[LARGE];
+      new Random(17).nextBytes(binary);
+      Object[] built = buildInEveryMode("bytesFixed before 3\n"
+              + "includeBinary binData binLength \"data.bin\"\n"
+              + "function main 0\n"
+              + "return binLength\n", binary, "binData");
+      byte[] code = (byte[])built[0];
+      int at = (Integer)built[1];
+      assertArrayEquals(binary, Arrays.copyOfRange(code, at, at + binary.length));
+  }
+}
@@ -0,0 +1,126 @@
+package com.grenslair.ggasm.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import org.junit.Test;
+
+import com.grenslair.glulx.ggasm.AsmInstruction;
+import com.grenslair.glulx.ggasm.AsmLabel;
+import com.grenslair.glulx.ggasm.AsmLine;
+import com.grenslair.glulx.ggasm.Mnemonic;
+import com.grenslair.glulx.ggasm.ObjectFile;
+import com.grenslair.glulx.ggasm.Operand;
+import com.grenslair.glulx.ggasm.PeepholeOptimizer;
+import com.grenslair.glulx.ggasm.PeepholeOptimizer.Rule;
+
+public class PeepholeOptimizerTest {
+
+  private static final Operand SP = new Operand(-1, Operand.Mode.Variable);
+
+  private AsmInstruction inst(String mnemonic, Operand... operands) {
+      return new AsmInstruction(Mnemonic.list.get(mnemonic), operands);
+  }
+
+  private List<AsmLine> optimize(PeepholeOptimizer optimizer, AsmLine... lines) {
+      ObjectFile asm = new ObjectFile();
+      for (AsmLine line : lines) {
+          line.setObjectFile(asm);
+      }
+      return optimizer.optimize(Collections.singletonList(Arrays.asList(lines))).get(0);
+  }
+
+  @Test
+  public void testPushPop() {
+      PeepholeOptimizer optimizer = new PeepholeOptimizer(EnumSet.of(Rule.PushPop));
+      List<AsmLine> lines = optimize(optimizer,
+              inst("copy", new Operand(5), SP),
+              inst("add", SP, new Operand(1), new Operand(2, Operand.Mode.Variable)));
+      assertEquals(1, lines.size());
+      AsmInstruction add = (AsmInstruction)lines.get(0);
+      assertEquals(Mnemonic.list.get("add").opcode, add.opcode);
+      assertEquals(Operand.Mode.Constant, add.operands.get(0).getMode());
+      assertEquals(5, add.operands.get(0).getRawValue());
+      assertEquals(1, optimizer.getCount(Rule.PushPop));
+  }
+
+  @Test
+  public void testPushPopKeepsNarrowMemoryLoads() {
+      // copyb of a popped word keeps its low byte, but copyb from memory
+      // reads the first byte of the word, so the value must stay on the stack
+      PeepholeOptimizer optimizer = new PeepholeOptimizer(EnumSet.of(Rule.PushPop));
+      for (String narrow : new String[] { "copyb", "copys" }) {
+          for (Operand.Mode mode : new Operand.Mode[] { Operand.Mode.Indirect, Operand.Mode.AfterRom }) {
+              List<AsmLine> lines = optimize(optimizer,
+                      inst("copy", new Operand(272, mode), SP),
+                      inst(narrow, SP, new Operand(0)));
+              assertEquals(narrow + " " + mode, 2, lines.size());
+          }
+      }
+      assertEquals(0, optimizer.getCount(Rule.PushPop));
+
+      // a local variable is a whole word either way
+      List<AsmLine> lines = optimize(optimizer,
+              inst("copy", new Operand(3, Operand.Mode.Variable), SP),
+              inst("copyb", SP, new Operand(0)));
+      assertEquals(1, lines.size());
+  }
+
+  @Test
+  public void testPushPopKeepsStores() {
+      PeepholeOptimizer optimizer = new PeepholeOptimizer(EnumSet.of(Rule.PushPop));
+      List<AsmLine> lines = optimize(optimizer,
+              inst("copy", new Operand(5), SP),
+              inst("stkcount", SP));
+      assertEquals(2, lines.size());
+  }
+
+  @Test
+  public void testJumpNext() {
+      PeepholeOptimizer optimizer = new PeepholeOptimizer(EnumSet.of(Rule.JumpNext));
+      List<AsmLine> lines = optimize(optimizer,
+              inst("jump", new Operand("next")),
+              new AsmLabel("next"),
+              inst("return", new Operand(0)));
+      assertEquals(2, lines.size());
+      assertTrue(lines.get(0) instanceof AsmLabel);
+      assertEquals(1, optimizer.getCount(Rule.JumpNext));
+
+      // an instruction in between means the jump does something
+      lines = optimize(optimizer,
+              inst("jump", new Operand("next")),
+              inst("nop"),
+              new AsmLabel("next"),
+              inst("return", new Operand(0)));
+      assertEquals(4, lines.size());
+  }
+
+  @Test
+  public void testTailCall() {
+      PeepholeOptimizer optimizer = new PeepholeOptimizer(EnumSet.of(Rule.TailCall));
+      List<AsmLine> lines = optimize(optimizer,
+              inst("call", new Operand("func"), new Operand(0), SP),
+              inst("return", SP));
+      assertEquals(1, lines.size());
+      AsmInstruction tailcall = (AsmInstruction)lines.get(0);
+      assertEquals(Mnemonic.list.get("tailcall").opcode, tailcall.opcode);
+      assertEquals("func", tailcall.operands.get(0).getSymbol());
+      assertEquals(2, tailcall.operands.size());
+      assertEquals(1, optimizer.getCount(Rule.TailCall));
+  }
+
+  @Test
+  public void testSelfCopy() {
+      PeepholeOptimizer optimizer = new PeepholeOptimizer(EnumSet.of(Rule.SelfCopy));
+      List<AsmLine> lines = optimize(optimizer,
+              inst("copy", new Operand(4, Operand.Mode.Variable), new Operand(4, Operand.Mode.Variable)),
+              inst("copy", new Operand(4, Operand.Mode.Variable), new Operand(8, Operand.Mode.Variable)),
+              inst("return", new Operand(0)));
+      assertEquals(2, lines.size());
+      assertEquals(8, ((AsmInstruction)lines.get(0)).operands.get(1).getRawValue());
+      assertEquals(1, optimizer.getCount(Rule.SelfCopy));
+  }
+}
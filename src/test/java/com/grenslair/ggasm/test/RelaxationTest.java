@@ -0,0 +1,104 @@
+package com.grenslair.ggasm.test;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+import com.grenslair.glulx.ggasm.Build;
+import com.grenslair.glulx.ggasm.ObjectFile;
+
+public class RelaxationTest {
+
+  /**
+   * A function whose branches need one, two and four byte offsets. The
+   * inner jumps all need four bytes, which only becomes clear once "far" is
+   * placed; as they grow, "mid" is pushed past a one byte offset and "big"
+   * past a two byte one, and every label after them moves.
+   */
+  private static final String SOURCE;
+  static {
+      StringBuilder sb = new StringBuilder("function main 0\n");
+      sb.append("back: nop\n");
+      sb.append("big: jump bigTarget\n");
+      sb.append("mid: jump midTarget\n");
+      for (int i = 0; i < 20; ++i) {
+          sb.append("inner").append(i).append(": jump far\n");
+      }
+      sb.append("bytesFixed _ 30\n");
+      sb.append("midTarget: nop\n");
+      sb.append("bytesFixed _ 32650\n");
+      sb.append("bigTarget: nop\n");
+      sb.append("loop: nop\n");
+      sb.append("short: jump loop\n");
+      sb.append("small: jump back\n");
+      sb.append("bytesFixed _ 40000\n");
+      sb.append("far: return 0\n");
+      SOURCE = sb.toString();
+  }
+
+  private static class Built {
+      ObjectFile asm;
+      ByteBuffer code;
+  }
+
+  private Built build(boolean relax) {
+      ByteBuffer source = ByteBuffer.wrap(SOURCE.getBytes(StandardCharsets.UTF_8));
+      Build build = new Build();
+      build.setRelaxation(relax);
+      assertTrue(build.fromFile("relax.asm", filename -> source.duplicate()));
+      Built built = new Built();
+      built.code = build.buildInMemory();
+      assertNotNull(built.code);
+      built.asm = build.getObjectFile();
+      return built;
+  }
+
+  /** Return the size of the offset of the jump at a label. */
+  private int offsetSize(Built built, String label) {
+      int at = built.asm.getSymbolValue(label);
+      assertEquals(0x20, built.code.get(at) & 0xFF); // jump
+      int mode = built.code.get(at + 1) & 0x0F;
+      return mode == 3 ? 4 : mode;
+  }
+
+  /** Return the address the jump at a label goes to. */
+  private int jumpTarget(Built built, String label) {
+      int at = built.asm.getSymbolValue(label);
+      int size = offsetSize(built, label);
+      int offset = size == 1 ? built.code.get(at + 2)
+              : size == 2 ? built.code.getShort(at + 2) : built.code.getInt(at + 2);
+      return at + 2 + size + offset - 2;
+  }
+
+  private void checkTargets(Built built) {
+      assertEquals(built.asm.getSymbolValue("bigTarget"), jumpTarget(built, "big"));
+      assertEquals(built.asm.getSymbolValue("midTarget"), jumpTarget(built, "mid"));
+      for (int i = 0; i < 20; ++i) {
+          assertEquals(built.asm.getSymbolValue("far"), jumpTarget(built, "inner" + i));
+      }
+      assertEquals(built.asm.getSymbolValue("loop"), jumpTarget(built, "short"));
+      assertEquals(built.asm.getSymbolValue("back"), jumpTarget(built, "small"));
+  }
+
+  @Test
+  public void testOffsetsAfterGrowth() {
+      Built built = build(true);
+      assertEquals(1, offsetSize(built, "short"));
+      assertEquals(2, offsetSize(built, "mid"));
+      assertEquals(4, offsetSize(built, "big"));
+      assertEquals(4, offsetSize(built, "inner0"));
+      assertEquals(4, offsetSize(built, "small"));
+      checkTargets(built);
+  }
+
+  @Test
+  public void testTargetsWithoutRelaxation() {
+      Built relaxed = build(true);
+      Built fixed = build(false);
+      checkTargets(fixed);
+      assertEquals(4, offsetSize(fixed, "short"));
+      assertTrue(relaxed.code.limit() <= fixed.code.limit());
+  }
+}
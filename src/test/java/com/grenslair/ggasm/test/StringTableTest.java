@@ -0,0 +1,65 @@
+package com.grenslair.ggasm.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import com.grenslair.glulx.ggasm.AsmData;
+import com.grenslair.glulx.ggasm.AsmLine;
+import com.grenslair.glulx.ggasm.StringTable;
+
+public class StringTableTest {
+
+  @Test
+  public void testSuffixesReported() {
+      StringTable strings = new StringTable();
+      strings.addString("Hello world");
+      strings.addString("world");
+      strings.addString("d");
+      strings.addString("Unrelated");
+      // accented text is stored as E2 strings
+      strings.addString("caf\u00e9");
+      strings.addString("\u00e9");
+      List<AsmLine> code = new ArrayList<AsmLine>();
+      assertNull(strings.toCode(code, false, 0));
+      // "world" (7 bytes), "d" (3) and the accented one (12) end longer strings
+      assertEquals("string suffixes: 3 not shared because of the type byte (22 bytes)", strings.report());
+  }
+
+  @Test
+  public void testEveryStringStoredWhole() throws Exception {
+      StringTable strings = new StringTable();
+      strings.addString("Hello world");
+      strings.addString("world");
+      List<AsmLine> code = new ArrayList<AsmLine>();
+      strings.toCode(code, false, 0);
+      int size = 0;
+      for (AsmLine line : code) {
+          size += line.getSize();
+      }
+      assertEquals(new AsmData(null, 0, "Hello world", AsmData.StringType.Automatic).getSize()
+              + new AsmData(null, 0, "world", AsmData.StringType.Automatic).getSize(), size);
+  }
+
+  @Test
+  public void testNothingToReport() {
+      StringTable strings = new StringTable();
+      strings.addString("Hello");
+      strings.addString("World");
+      List<AsmLine> code = new ArrayList<AsmLine>();
+      strings.toCode(code, false, 0);
+      assertNull(strings.report());
+
+      strings = new StringTable();
+      for (int i = 0; i < 50; ++i) {
+          strings.addString("You can't go that way from room number " + i + ".");
+      }
+      strings.addString("way from room number 7.");
+      code = new ArrayList<AsmLine>();
+      assertNotNull(strings.toCode(code, true, 256));
+      // compressed strings are never shared, so there is nothing to say
+      assertNull(strings.report());
+  }
+}